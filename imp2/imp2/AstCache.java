@@ -0,0 +1,167 @@
+package imp2;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Syntax trees of loaded files, stored on disk by the hash of the file they
+ * were parsed from. Entries start with TreeCodec.VERSION, so entries of
+ * other interpreter versions are ignored. When the entries take up more
+ * than the size limit, the least recently used ones are deleted.
+ *
+ * The cache is only an optimization: an entry that can't be read or written
+ * is treated as missing and never causes an error.
+ */
+class AstCache {
+
+    private static final long DEFAULT_LIMIT = 64 << 20;
+    private static final int MAGIC = 0x494d5054; // "IMPT"
+
+    // how long ago a temporary file must have been written to be deleted
+    private static final long STALE = 60 * 60 * 1000;
+
+    private final Path directory;
+    private final long limit;
+
+    AstCache() {
+        this(Paths.get(System.getProperty("user.home"), ".imp2", "cache"), DEFAULT_LIMIT);
+    }
+
+    AstCache(Path directory, long limit) {
+        this.directory = directory;
+        this.limit = limit;
+    }
+
+    // the tree stored for key, or null if there is none
+    Stm load(byte[] key) {
+        return load(key, new Symbols());
+    }
+
+    // names in the tree are interned into symbols
+    Stm load(byte[] key, Symbols symbols) {
+        Path entry = entry(key);
+        if (!Files.isRegularFile(entry)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != TreeCodec.VERSION) {
+                throw new IllegalArgumentException("Stale cache entry.");
+            }
+            Stm tree = TreeCodec.read(in, symbols);
+            if (in.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes in cache entry.");
+            }
+
+            // the modification time is the last use for eviction
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return tree;
+        } catch (IOException | IllegalArgumentException | BufferUnderflowException e) {
+            delete(entry);
+            return null;
+        }
+    }
+
+    void store(byte[] key, Stm tree) {
+        byte[] bytes;
+        try {
+            bytes = TreeCodec.write(tree);
+        } catch (TreeCodec.Incomplete e) {
+            return;
+        }
+
+        Path entry = entry(key);
+        try {
+            Files.createDirectories(directory);
+
+            // written next to the entry and moved into place, so other
+            // sessions never see a partially written entry
+            Path temp = Files.createTempFile(directory, "entry", ".tmp");
+            try {
+                ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(TreeCodec.VERSION);
+                Files.write(temp, header.array());
+                Files.write(temp, bytes, StandardOpenOption.APPEND);
+                try {
+                    Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                // only left over if it couldn't be written or moved
+                delete(temp);
+            }
+
+            evict();
+        } catch (IOException e) {
+            return;
+        }
+    }
+
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        long total = 0;
+        long stale = System.currentTimeMillis() - STALE;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.{ast,tmp}")) {
+            for (Path p : stream) {
+                if (p.toString().endsWith(".ast")) {
+                    entries.add(p);
+                    total += Files.size(p);
+                } else if (lastUse(p).toMillis() < stale) {
+                    // left behind by a session that stopped while writing it,
+                    // while newer ones may still be written
+                    delete(p);
+                }
+            }
+        }
+        if (total <= limit) {
+            return;
+        }
+
+        entries.sort(Comparator.comparing(AstCache::lastUse));
+        for (Path p : entries) {
+            if (total <= limit) {
+                break;
+            }
+            total -= Files.size(p);
+            delete(p);
+        }
+    }
+
+    private Path entry(byte[] key) {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (byte b : key) {
+            stringBuilder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return directory.resolve(stringBuilder.append(".ast").toString());
+    }
+
+    private static FileTime lastUse(Path p) {
+        try {
+            return Files.getLastModifiedTime(p);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void delete(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            return;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package imp2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Rough benchmarks for the different phases of the interpreter.
+ *
+ * Run with `java imp2.Bench <benchmark> [file]`. Without a file, a synthetic
+ * program made of many copies of the procedures in example.imp is used.
+ */
+public class Bench {
+
+    private static final int WARMUP = 5, ROUNDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java imp2.Bench <lex|parallel|tokens|parse|cache|reload|load|stream|closures|quicken> [file]");
+            return;
+        }
+
+        Path path = args.length > 1 ? Paths.get(args[1]) : null;
+
+        switch (args[0]) {
+            case "lex":
+                lex(program(path));
+                break;
+            case "parallel":
+                parallel(path);
+                break;
+            case "tokens":
+                tokens(program(path));
+                break;
+            case "parse":
+                parse(program(path));
+                break;
+            case "cache":
+                cache(path);
+                break;
+            case "reload":
+                reload(program(path));
+                break;
+            case "load":
+                load();
+                break;
+            case "stream":
+                stream(path);
+                break;
+            case "closures":
+                // the synthetic procedures only run once one of them is called
+                compare("closures", "closures", path == null ? synthetic(1) + "; isPrime0(40009; p)" : program(path),
+                    tree -> new ClosureInterpreter().interpret(tree));
+                break;
+            case "quicken":
+                compare("quicken", "nodes", path == null ? synthetic(1) + "; isPrime0(40009; p)" : program(path),
+                    tree -> new NodeInterpreter().interpret(tree));
+                break;
+            default:
+                System.err.println("Unknown benchmark " + args[0] + ".");
+        }
+    }
+
+    private static String program(Path path) throws IOException {
+        if (path == null) {
+            return synthetic(8 << 20);
+        }
+        return new String(Files.readAllBytes(path), Charset.defaultCharset());
+    }
+
+    private static void lex(String program) {
+        long tokens = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            tokens = new Lexer().lex(program).size();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            new Lexer().lex(program);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        double megabytes = (double) program.length() * ROUNDS / (1 << 20);
+        System.out.printf("lex: %d chars, %d tokens, %.1f MB/s%n", program.length(), tokens, megabytes / seconds);
+    }
+
+    private static void parallel(Path path) throws IOException {
+        if (path == null) {
+            path = Files.createTempFile("imp2-bench", ".imp");
+            path.toFile().deleteOnExit();
+            Files.write(path, synthetic(64 << 20).getBytes(Charset.defaultCharset()));
+        }
+
+        try (SourceFile file = new SourceFile(path)) {
+            TokenBuffer sequential = null, parallel = null;
+            double sequentialSeconds = 0, parallelSeconds = 0;
+
+            for (int i = 0; i < 3; i++) {
+                sequential = null;
+                long start = System.nanoTime();
+                sequential = new Lexer().lex(file.reader());
+                sequentialSeconds = (System.nanoTime() - start) / 1e9;
+
+                parallel = null;
+                start = System.nanoTime();
+                parallel = new ChunkedLexer().lex(file);
+                parallelSeconds = (System.nanoTime() - start) / 1e9;
+            }
+
+            double megabytes = (double) file.size() / (1 << 20);
+            System.out.printf("parallel: %d tokens, sequential %.1f MB/s, parallel %.1f MB/s on %d threads, output %s%n",
+                sequential.size(), megabytes / sequentialSeconds, megabytes / parallelSeconds,
+                ForkJoinPool.commonPool().getParallelism(),
+                sameTokens(sequential, parallel) ? "identical" : "DIFFERENT");
+        }
+    }
+
+    private static boolean sameTokens(TokenBuffer a, TokenBuffer b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.type(i) != b.type(i) || a.line(i) != b.line(i) || a.column(i) != b.column(i) ||
+                !a.lexeme(i).equals(b.lexeme(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void tokens(String program) {
+        TokenBuffer buffer = new Lexer().lex(program);
+
+        long before = usedMemory();
+        List<Token> list = buffer.toList();
+        long objects = usedMemory() - before;
+
+        before = usedMemory();
+        TokenBuffer packed = new Lexer().lex(program);
+        long arrays = usedMemory() - before;
+
+        System.out.printf("tokens: %d tokens, %.1f bytes/token as Token objects, %.1f bytes/token packed%n",
+            list.size(), (double) objects / list.size(), (double) arrays / packed.size());
+    }
+
+    private static void parse(String program) {
+        TokenBuffer tokens = new Lexer().lex(program);
+        double backtracking = parseSeconds(new Parser(false), tokens);
+        double predictive = parseSeconds(new Parser(true), tokens);
+
+        double megabytes = (double) program.length() / (1 << 20);
+        System.out.printf("parse: %d tokens, backtracking %.1f MB/s, predictive %.1f MB/s%n",
+            tokens.size(), megabytes / backtracking, megabytes / predictive);
+    }
+
+    private static void cache(Path path) throws IOException {
+        if (path == null) {
+            path = Files.createTempFile("imp2-bench", ".imp");
+            path.toFile().deleteOnExit();
+            Files.write(path, synthetic(8 << 20).getBytes(Charset.defaultCharset()));
+        }
+
+        Path directory = Files.createTempDirectory("imp2-cache");
+        AstCache cache = new AstCache(directory, Long.MAX_VALUE);
+
+        try (SourceFile file = new SourceFile(path)) {
+            Stm parsed = null, loaded = null;
+            double parseSeconds = 0, loadSeconds = 0;
+
+            for (int i = 0; i < WARMUP; i++) {
+                parsed = null;
+                long start = System.nanoTime();
+                parsed = new Parser().parse(new Lexer().lex(file.reader()));
+                parseSeconds = (System.nanoTime() - start) / 1e9;
+
+                if (i == 0) {
+                    cache.store(file.digest(), parsed);
+                }
+
+                loaded = null;
+                start = System.nanoTime();
+                loaded = cache.load(file.digest());
+                loadSeconds = (System.nanoTime() - start) / 1e9;
+            }
+
+            Printer printer = new Printer();
+            System.out.printf("cache: %d bytes, cold parse %.0f ms, cache hit %.0f ms, tree %s%n",
+                file.size(), parseSeconds * 1000, loadSeconds * 1000,
+                parsed.accept(printer).equals(loaded.accept(printer)) ? "identical" : "DIFFERENT");
+        } finally {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    Files.delete(entry);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static void reload(String program) {
+        // the edit changes one number in the middle of the program
+        int position = program.indexOf(":= 1", program.length() / 2) + 3;
+        String edited = program.substring(0, position) + "7" + program.substring(position + 1);
+
+        double fullSeconds = 0, reloadSeconds = 0;
+        boolean same = false;
+        for (int i = 0; i < WARMUP; i++) {
+            long start = System.nanoTime();
+            Stm full = new Parser().parse(new Lexer().lex(edited));
+            fullSeconds = (System.nanoTime() - start) / 1e9;
+
+            IncrementalFile file = new IncrementalFile();
+            file.load(program);
+            start = System.nanoTime();
+            Stm reloaded = file.load(edited);
+            reloadSeconds = (System.nanoTime() - start) / 1e9;
+
+            Printer printer = new Printer();
+            same = full.accept(printer).equals(reloaded.accept(printer));
+        }
+
+        System.out.printf("reload: %d chars, full parse %.1f ms, incremental reload %.1f ms, tree %s%n",
+            program.length(), fullSeconds * 1000, reloadSeconds * 1000, same ? "identical" : "DIFFERENT");
+    }
+
+    private static void load() throws IOException {
+        // files of different sizes, the largest one bounds the parallel load time
+        List<String> files = new ArrayList<>();
+        for (int size = 1 << 20; size <= 16 << 20; size <<= 1) {
+            Path file = Files.createTempFile("imp2-bench", ".imp");
+            file.toFile().deleteOnExit();
+            Files.write(file, synthetic(size).getBytes(Charset.defaultCharset()));
+            files.add(file.toString());
+        }
+
+        List<Stm> sequential = new ArrayList<>(), parallel = new ArrayList<>();
+        double sequentialSeconds = 0, parallelSeconds = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sequential.clear();
+            long start = System.nanoTime();
+            for (String s : files) {
+                try (SourceFile file = new SourceFile(Paths.get(s))) {
+                    sequential.add(new Parser().parse(new Lexer().lex(file.reader())));
+                }
+            }
+            sequentialSeconds = (System.nanoTime() - start) / 1e9;
+
+            parallel.clear();
+            start = System.nanoTime();
+            for (ForkJoinTask<ParallelLoader.Loaded> task : new ParallelLoader(false, null).load(files)) {
+                parallel.add(task.join().tree);
+            }
+            parallelSeconds = (System.nanoTime() - start) / 1e9;
+        }
+
+        boolean same = true;
+        Printer printer = new Printer();
+        for (int i = 0; i < files.size(); i++) {
+            same &= sequential.get(i).accept(printer).equals(parallel.get(i).accept(printer));
+        }
+
+        System.out.printf("load: %d files, sequential %.0f ms, parallel %.0f ms on %d threads, trees %s%n",
+            files.size(), sequentialSeconds * 1000, parallelSeconds * 1000,
+            ForkJoinPool.commonPool().getParallelism(), same ? "identical" : "DIFFERENT");
+    }
+
+    private static void stream(Path path) throws IOException {
+        if (path == null) {
+            path = Files.createTempFile("imp2-bench", ".imp");
+            path.toFile().deleteOnExit();
+            Files.write(path, synthetic(64 << 20).getBytes(Charset.defaultCharset()));
+        }
+
+        try (SourceFile file = new SourceFile(path)) {
+            long start = System.nanoTime();
+            TokenBuffer all = new Lexer().lex(file.reader());
+            new Parser().parse(all);
+            double wholeSeconds = (System.nanoTime() - start) / 1e9;
+            int tokens = all.size();
+            all = null;
+
+            // the time until the first instruction could run, and the most
+            // tokens held at once
+            double firstSeconds = 0;
+            int units = 0, largest = 0;
+            start = System.nanoTime();
+            StatementStream statements = new StatementStream(file.reader());
+            Parser parser = new Parser();
+            for (TokenBuffer unit = statements.next(); unit != null; unit = statements.next()) {
+                parser.parse(unit);
+                if (units++ == 0) {
+                    firstSeconds = (System.nanoTime() - start) / 1e9;
+                }
+                largest = Math.max(largest, unit.size());
+            }
+            double streamSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("stream: %d tokens, whole file %.0f ms until the first instruction, " +
+                "stream %.1f ms until the first instruction and %.0f ms for all %d, at most %d tokens held%n",
+                tokens, wholeSeconds * 1000, firstSeconds * 1000, streamSeconds * 1000, units, largest);
+        }
+    }
+
+    // runs the program with the visitor interpreter and with the given engine
+    private static void compare(String benchmark, String name, String program, Consumer<Stm> engine) {
+        Stm tree = new Parser().parse(new Lexer().lex(program));
+        PrintStream out = System.out;
+        ByteArrayOutputStream visitorOutput = new ByteArrayOutputStream(), engineOutput = new ByteArrayOutputStream();
+
+        // each round runs the program from scratch, turning it into closures
+        // or nodes again
+        double visitorSeconds = 0, engineSeconds = 0;
+        try {
+            for (int i = 0; i < WARMUP + ROUNDS; i++) {
+                visitorOutput.reset();
+                System.setOut(new PrintStream(visitorOutput));
+                long start = System.nanoTime();
+                new Interpreter().interpret(tree);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                visitorSeconds += i < WARMUP ? 0 : seconds;
+
+                engineOutput.reset();
+                System.setOut(new PrintStream(engineOutput));
+                start = System.nanoTime();
+                engine.accept(tree);
+                seconds = (System.nanoTime() - start) / 1e9;
+                engineSeconds += i < WARMUP ? 0 : seconds;
+            }
+        } finally {
+            System.setOut(out);
+        }
+
+        System.out.printf("%s: visitor interpreter %.1f ms, %s %.1f ms, %.1fx faster, output %s%n",
+            benchmark, visitorSeconds * 1000 / ROUNDS, name, engineSeconds * 1000 / ROUNDS, visitorSeconds / engineSeconds,
+            sameLines(visitorOutput.toString(), engineOutput.toString()) ? "identical" : "DIFFERENT");
+    }
+
+    // whether the outputs have the same lines, since the interpreter prints
+    // the variables in no particular order
+    private static boolean sameLines(String a, String b) {
+        String[] linesA = a.split("\n"), linesB = b.split("\n");
+        Arrays.sort(linesA);
+        Arrays.sort(linesB);
+        return Arrays.equals(linesA, linesB);
+    }
+
+    private static double parseSeconds(Parser parser, TokenBuffer tokens) {
+        for (int i = 0; i < WARMUP; i++) {
+            parser.parse(tokens);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            parser.parse(tokens);
+        }
+        return (System.nanoTime() - start) / 1e9 / ROUNDS;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static String synthetic(int length) {
+        StringBuilder stringBuilder = new StringBuilder(length + 1024);
+        for (int i = 0; stringBuilder.length() < length; i++) {
+            stringBuilder.append(
+                "procedure divides" + i + "(a, div; res) begin\n" +
+                "\td := div;\n" +
+                "\twhile d < a do\n" +
+                "\t\td := (d + div)\n" +
+                "\tend;\n" +
+                "\tif d = a then\n" +
+                "\t\tres := 1\n" +
+                "\telse\n" +
+                "\t\tres := 0\n" +
+                "\tend\n" +
+                "end;\n\n" +
+                "procedure isPrime" + i + "(a; res) begin\n" +
+                "\tc := 2;\n" +
+                "\tres := 1;\n" +
+                "\twhile c < a do\n" +
+                "\t\tdivides" + i + "(a, c; d);\n" +
+                "\t\tif d = 1 then\n" +
+                "\t\t\tres := 0;\n" +
+                "\t\t\tc := a\n" +
+                "\t\tend;\n" +
+                "\t\tc := (c + 1)\n" +
+                "\tend\n" +
+                "end;\n\n");
+        }
+        stringBuilder.append("skip");
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,155 @@
+package imp2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Lexes large inputs in parallel. The input is cut into chunks at newlines,
+ * which can never be part of a token, each chunk is lexed on its own in a
+ * fork-join pool, and the token streams are stitched back together with
+ * their line numbers moved into place. The result and the reported errors
+ * are the same as those of a single sequential Lexer.
+ */
+class ChunkedLexer {
+
+    // inputs smaller than this aren't worth splitting
+    static final long THRESHOLD = 4 << 20;
+
+    private static final long MIN_CHUNK = 1 << 20;
+
+    private final ForkJoinPool pool;
+    private final Symbols symbols;
+
+    // collects errors instead of logging them directly, if set
+    private final Diagnostics diagnostics;
+
+    ChunkedLexer() {
+        this(ForkJoinPool.commonPool(), new Symbols());
+    }
+
+    ChunkedLexer(ForkJoinPool pool, Symbols symbols) {
+        this(pool, symbols, null);
+    }
+
+    ChunkedLexer(ForkJoinPool pool, Symbols symbols, Diagnostics diagnostics) {
+        this.pool = pool;
+        this.symbols = symbols;
+        this.diagnostics = diagnostics;
+    }
+
+    TokenBuffer lex(SourceFile file) throws IOException {
+        if (!file.splittable()) {
+            return new Lexer(symbols, diagnostics).lex(file.reader());
+        }
+
+        List<Long> bounds = new ArrayList<>();
+        long chunk = chunkSize(file.size());
+        bounds.add(0L);
+        while (bounds.get(bounds.size() - 1) < file.size()) {
+            long from = bounds.get(bounds.size() - 1);
+            bounds.add(file.nextLineStart(Math.min(from + chunk, file.size())));
+        }
+
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            long from = bounds.get(i), to = bounds.get(i + 1);
+            tasks.add(pool.submit(() -> {
+                // every chunk gets its own symbol table, the lexemes are
+                // interned into the shared one when the chunks are stitched
+                Diagnostics diagnostics = new Diagnostics();
+                try {
+                    TokenBuffer tokens = new Lexer(new Symbols(), diagnostics).lex(file.reader(from, to));
+                    return new Chunk(tokens, diagnostics);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+
+        try {
+            return stitch(new TokenBuffer(null, symbols), tasks);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    TokenBuffer lex(CharSequence input) {
+        List<Integer> bounds = new ArrayList<>();
+        int chunk = (int) chunkSize(input.length());
+        bounds.add(0);
+        while (bounds.get(bounds.size() - 1) < input.length()) {
+            int from = bounds.get(bounds.size() - 1);
+            bounds.add(nextLineStart(input, Math.min(from + chunk, input.length())));
+        }
+
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            int from = bounds.get(i), to = bounds.get(i + 1);
+            tasks.add(pool.submit(() -> {
+                Diagnostics diagnostics = new Diagnostics();
+                CharBuffer view = CharBuffer.wrap(input, from, to).slice();
+                return new Chunk(new Lexer(symbols, diagnostics).lex(view), diagnostics, from);
+            }));
+        }
+
+        return stitch(new TokenBuffer(input, symbols), tasks);
+    }
+
+    private TokenBuffer stitch(TokenBuffer res, List<ForkJoinTask<Chunk>> tasks) {
+        int lines = 0, chars = 0;
+        for (ForkJoinTask<Chunk> task : tasks) {
+            Chunk chunk = task.join();
+            int eof = chunk.tokens.size() - 1;
+
+            res.append(chunk.tokens, lines, chunk.start);
+            chunk.diagnostics.shiftLines(lines);
+            if (diagnostics != null) {
+                diagnostics.addAll(chunk.diagnostics);
+            } else {
+                chunk.diagnostics.flush();
+            }
+
+            // the end of file token of a chunk holds its line and character count
+            lines += chunk.tokens.line(eof) - 1;
+            chars += chunk.tokens.column(eof);
+        }
+
+        res.add(TokenType.EOF, chars, 0, lines + 1, chars);
+        return res;
+    }
+
+    private long chunkSize(long length) {
+        long chunks = 4L * pool.getParallelism();
+        return Math.max(MIN_CHUNK, length / chunks + 1);
+    }
+
+    private static int nextLineStart(CharSequence input, int position) {
+        for (int i = position; i < input.length(); i++) {
+            if (input.charAt(i) == '\n' && (i == 0 || input.charAt(i - 1) != ':')) {
+                return i + 1;
+            }
+        }
+        return input.length();
+    }
+
+    private static class Chunk {
+        final TokenBuffer tokens;
+        final Diagnostics diagnostics;
+        final int start;
+
+        Chunk(TokenBuffer tokens, Diagnostics diagnostics) {
+            this(tokens, diagnostics, 0);
+        }
+
+        Chunk(TokenBuffer tokens, Diagnostics diagnostics, int start) {
+            this.tokens = tokens;
+            this.diagnostics = diagnostics;
+            this.start = start;
+        }
+    }
+}
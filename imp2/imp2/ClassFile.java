@@ -0,0 +1,338 @@
+package imp2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the bytes of a class file, for classes generated while a program
+ * runs.
+ *
+ * The class files are of version 49, which the JVM verifies by inferring
+ * the types of locals and operands itself, so methods don't need the stack
+ * map frames of later versions. Each constant is added to the constant pool
+ * once, and methods are written as bytecode that branches to labels, whose
+ * offsets are filled in when the method is finished.
+ */
+class ClassFile {
+
+    static final int PUBLIC = 0x0001, FINAL = 0x0010, SUPER = 0x0020;
+
+    static final int ICONST_0 = 0x03, LCONST_0 = 0x09, LCONST_1 = 0x0a, BIPUSH = 0x10, SIPUSH = 0x11,
+        LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14, ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, LALOAD = 0x2f,
+        AALOAD = 0x32, ISTORE = 0x36, LSTORE = 0x37, ASTORE = 0x3a, LASTORE = 0x50, LADD = 0x61, LSUB = 0x65,
+        LMUL = 0x69, LAND = 0x7f, LOR = 0x81, LXOR = 0x83, L2I = 0x88, IFEQ = 0x99, IFNE = 0x9a,
+        IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3,
+        IF_ICMPLE = 0xa4, GOTO = 0xa7, TABLESWITCH = 0xaa, IRETURN = 0xac, RETURN = 0xb1, GETFIELD = 0xb4,
+        INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, CHECKCAST = 0xc0, WIDE = 0xc4;
+
+    private static final int VERSION = 49;
+
+    // a growing array of bytes, written in the big-endian order of class files
+    static class Buffer {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        void u1(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void bytes(byte[] values) {
+            for (byte b : values) {
+                u1(b);
+            }
+        }
+
+        void set2(int position, int value) {
+            bytes[position] = (byte) (value >> 8);
+            bytes[position + 1] = (byte) value;
+        }
+
+        void set4(int position, int value) {
+            set2(position, value >> 16);
+            set2(position + 2, value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * The bytecode of a method. Labels are arbitrary numbers, and a branch to
+     * a label may come before or after it.
+     */
+    class Method {
+        private final int access, name, descriptor, maxLocals;
+        private final Buffer code = new Buffer();
+
+        private final Map<Integer, Integer> labels = new HashMap<>();
+        // the branches to labels: where the instruction and its offset are,
+        // whether the offset takes four bytes, and the label
+        private final List<int[]> branches = new ArrayList<>();
+
+        private Method(int access, String name, String descriptor, int maxLocals) {
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.maxLocals = maxLocals;
+        }
+
+        void op(int opcode) {
+            code.u1(opcode);
+        }
+
+        void label(int label) {
+            labels.put(label, code.size());
+        }
+
+        void branch(int opcode, int label) {
+            branches.add(new int[] { code.size(), code.size() + 1, 0, label });
+            code.u1(opcode);
+            code.u2(0);
+        }
+
+        // jumps to the label at the index on the stack, or to the first one
+        // if it's out of range
+        void tableswitch(int[] targets) {
+            int start = code.size();
+            code.u1(TABLESWITCH);
+            while (code.size() % 4 != 0) {
+                code.u1(0);
+            }
+            branches.add(new int[] { start, code.size(), 1, targets[0] });
+            code.u4(0);
+            code.u4(0);
+            code.u4(targets.length - 1);
+            for (int target : targets) {
+                branches.add(new int[] { start, code.size(), 1, target });
+                code.u4(0);
+            }
+        }
+
+        // loads or stores a local variable with one of the opcodes taking an index
+        void local(int opcode, int index) {
+            if (index > 0xff) {
+                code.u1(WIDE);
+                code.u1(opcode);
+                code.u2(index);
+            } else {
+                code.u1(opcode);
+                code.u1(index);
+            }
+        }
+
+        void integer(int value) {
+            if (value >= -1 && value <= 5) {
+                code.u1(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                code.u1(BIPUSH);
+                code.u1(value);
+            } else if (value == (short) value) {
+                code.u1(SIPUSH);
+                code.u2(value);
+            } else {
+                constant(integerConstant(value));
+            }
+        }
+
+        void longValue(long value) {
+            if (value == 0 || value == 1) {
+                code.u1(LCONST_0 + (int) value);
+            } else {
+                code.u1(LDC2_W);
+                code.u2(longConstant(value));
+            }
+        }
+
+        private void constant(int index) {
+            if (index > 0xff) {
+                code.u1(LDC_W);
+                code.u2(index);
+            } else {
+                code.u1(LDC);
+                code.u1(index);
+            }
+        }
+
+        // an instruction followed by the index of a constant, like a field,
+        // method or class
+        void reference(int opcode, int index) {
+            code.u1(opcode);
+            code.u2(index);
+        }
+
+        // fills in the branches and adds the method to the class, and throws
+        // an IllegalStateException if the method is too large for a class file
+        void end() {
+            if (code.size() > Short.MAX_VALUE) {
+                throw new IllegalStateException("method of " + code.size() + " bytes is too large");
+            }
+            for (int[] branch : branches) {
+                int offset = labels.get(branch[3]) - branch[0];
+                if (branch[2] == 1) {
+                    code.set4(branch[1], offset);
+                } else {
+                    code.set2(branch[1], offset);
+                }
+            }
+
+            methods.u2(access);
+            methods.u2(name);
+            methods.u2(descriptor);
+            methods.u2(1);
+            methods.u2(utf8("Code"));
+            methods.u4(12 + code.size());
+            // no expression needs more than a few values on the stack
+            methods.u2(16);
+            methods.u2(maxLocals);
+            methods.u4(code.size());
+            methods.bytes(code.toByteArray());
+            methods.u2(0);
+            methods.u2(0);
+            methodCount++;
+        }
+    }
+
+    private final Buffer constants = new Buffer();
+    private final Map<List<Object>, Integer> indices = new HashMap<>();
+    private int constantCount = 1;
+
+    private final Buffer methods = new Buffer();
+    private int methodCount = 0;
+
+    private final int name, superName;
+    private final int[] interfaces;
+
+    ClassFile(String name, String superName, String... interfaces) {
+        this.name = classConstant(name);
+        this.superName = classConstant(superName);
+        this.interfaces = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            this.interfaces[i] = classConstant(interfaces[i]);
+        }
+    }
+
+    Method method(int access, String name, String descriptor, int maxLocals) {
+        return new Method(access, name, descriptor, maxLocals);
+    }
+
+    int utf8(String value) {
+        List<Object> key = List.of(1, value);
+        Integer index = indices.get(key);
+        if (index == null) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            constants.u1(1);
+            constants.u2(bytes.length);
+            constants.bytes(bytes);
+            index = add(key, 1);
+        }
+        return index;
+    }
+
+    int integerConstant(int value) {
+        List<Object> key = List.of(3, value);
+        Integer index = indices.get(key);
+        if (index == null) {
+            constants.u1(3);
+            constants.u4(value);
+            index = add(key, 1);
+        }
+        return index;
+    }
+
+    int longConstant(long value) {
+        List<Object> key = List.of(5, value);
+        Integer index = indices.get(key);
+        if (index == null) {
+            constants.u1(5);
+            constants.u4((int) (value >> 32));
+            constants.u4((int) value);
+            // a long takes up two entries of the constant pool
+            index = add(key, 2);
+        }
+        return index;
+    }
+
+    int classConstant(String name) {
+        return reference(7, utf8(name));
+    }
+
+    int field(String owner, String name, String descriptor) {
+        return reference(9, classConstant(owner), nameAndType(name, descriptor));
+    }
+
+    int method(String owner, String name, String descriptor) {
+        return reference(10, classConstant(owner), nameAndType(name, descriptor));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return reference(12, utf8(name), utf8(descriptor));
+    }
+
+    // a constant made up of the indices of other constants
+    private int reference(int tag, int... parts) {
+        List<Object> key = new ArrayList<>();
+        key.add(tag);
+        for (int part : parts) {
+            key.add(part);
+        }
+        Integer index = indices.get(key);
+        if (index == null) {
+            constants.u1(tag);
+            for (int part : parts) {
+                constants.u2(part);
+            }
+            index = add(key, 1);
+        }
+        return index;
+    }
+
+    private int add(List<Object> key, int entries) {
+        int index = constantCount;
+        constantCount += entries;
+        indices.put(key, index);
+        return index;
+    }
+
+    byte[] toByteArray() {
+        Buffer res = new Buffer();
+        res.u4(0xcafebabe);
+        res.u2(0);
+        res.u2(VERSION);
+        res.u2(constantCount);
+        res.bytes(constants.toByteArray());
+        res.u2(PUBLIC | FINAL | SUPER);
+        res.u2(name);
+        res.u2(superName);
+        res.u2(interfaces.length);
+        for (int i : interfaces) {
+            res.u2(i);
+        }
+        res.u2(0);
+        res.u2(methodCount);
+        res.bytes(methods.toByteArray());
+        res.u2(0);
+        return res.toByteArray();
+    }
+}
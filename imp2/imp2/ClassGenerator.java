@@ -0,0 +1,391 @@
+package imp2;
+
+import java.lang.invoke.MethodHandles;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static imp2.ClassFile.*;
+
+/**
+ * Compiles code for the virtual machine to a class of the JVM, so that
+ * HotSpot compiles programs and procedures that run for long to machine
+ * code. Each instruction becomes a few bytecodes, and jumps become branches,
+ * so loops are loops of the JVM.
+ *
+ * The variables the code uses are kept in locals of the method while it
+ * runs, in the same form as in the registers of the virtual machine. They
+ * are written back to the registers before anything that reads them there,
+ * like print or a call, and read again after anything that may change them.
+ * Everything else, like calls, scopes and loops computed in closed form, is
+ * left to the virtual machine, so it behaves the same in either.
+ *
+ * The classes are hidden classes, which are unloaded once the code they were
+ * compiled from isn't used anymore, like when a procedure is defined again.
+ */
+class ClassGenerator {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final String VM = "imp2/VirtualMachine", CALL = "imp2/Stm$ProcCall";
+
+    // the locals of the method that hold its arguments, the registers of the
+    // virtual machine, the result of a call, and then the variables
+    private static final int THIS = 0, MACHINE = 1, POOL = 2, REGISTERS = 3, RESULT = 4, VARIABLES = 5;
+
+    private final int[] code;
+    private final ClassFile classFile;
+    private final ClassFile.Method method;
+
+    // the local each register the code uses is kept in, and whether it's
+    // one of a variable, which the virtual machine may read or change
+    private final Map<Integer, Integer> locals = new LinkedHashMap<>();
+    private final Map<Integer, Boolean> variables = new LinkedHashMap<>();
+
+    private ClassGenerator(Code program) {
+        code = program.code;
+        for (int pc = 0; pc < code.length; pc = Code.next(code, pc)) {
+            for (int i = 0; pc + 1 + i < Code.next(code, pc); i++) {
+                int register = code[pc + 1 + i];
+                if (Code.register(code[pc], i) && !locals.containsKey(register)) {
+                    locals.put(register, VARIABLES + 2 * locals.size());
+                    variables.put(register, !Resolver.temporary(program.resolver.name(register)));
+                }
+            }
+        }
+        if (VARIABLES + 2 * locals.size() > 0xffff) {
+            throw new IllegalStateException("code uses too many registers");
+        }
+
+        classFile = new ClassFile("imp2/Compiled", "java/lang/Object", "imp2/Code$Compiled");
+        ClassFile.Method constructor = classFile.method(PUBLIC, "<init>", "()V", 1);
+        constructor.local(ALOAD, THIS);
+        constructor.reference(INVOKESPECIAL, classFile.method("java/lang/Object", "<init>", "()V"));
+        constructor.op(RETURN);
+        constructor.end();
+        method = classFile.method(PUBLIC, "run", "(L" + VM + ";[Ljava/lang/Object;)I", VARIABLES + 2 * locals.size());
+    }
+
+    // throws an IllegalStateException if the code can't be compiled, and is
+    // to be interpreted instead
+    static Code.Compiled compile(Code program) {
+        byte[] bytes = new ClassGenerator(program).generate();
+        try {
+            Class<?> compiled = LOOKUP.defineHiddenClass(bytes, true).lookupClass();
+            return (Code.Compiled) compiled.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private byte[] generate() {
+        registers();
+        for (Map.Entry<Integer, Integer> local : locals.entrySet()) {
+            if (variables.get(local.getKey())) {
+                load(local.getKey());
+            } else {
+                method.longValue(0);
+            }
+            method.local(LSTORE, local.getValue());
+        }
+        for (int pc = 0; pc < code.length; pc = Code.next(code, pc)) {
+            method.label(pc);
+            instruction(pc);
+        }
+        method.end();
+        return classFile.toByteArray();
+    }
+
+    private void instruction(int pc) {
+        int a = code.length > pc + 1 ? code[pc + 1] : 0;
+        int b = code.length > pc + 2 ? code[pc + 2] : 0;
+        int c = code.length > pc + 3 ? code[pc + 3] : 0;
+
+        switch (code[pc]) {
+            case Code.CONST:
+                method.longValue(b & Registers.VALUE | Registers.DEFINED);
+                store(a);
+                break;
+            case Code.MOVE:
+                get(b);
+                defined();
+                store(a);
+                break;
+            case Code.ADD: case Code.SUB: case Code.MUL:
+                get(b);
+                get(c);
+                arithmetic(code[pc] - Code.ADD);
+                store(a);
+                break;
+            case Code.ADD_CONST: case Code.SUB_CONST: case Code.MUL_CONST:
+                get(b);
+                method.longValue(c);
+                arithmetic(code[pc] - Code.ADD_CONST);
+                store(a);
+                break;
+            case Code.EQ: case Code.NEQ: case Code.L: case Code.LEQ: case Code.G: case Code.GEQ:
+                value(b);
+                value(c);
+                // the comparison jumps over false to true
+                method.op(comparison(code[pc] - Code.EQ));
+                method.op(0);
+                method.op(7);
+                method.longValue(0);
+                method.op(GOTO);
+                method.op(0);
+                method.op(4);
+                method.longValue(1);
+                store(a);
+                break;
+            case Code.AND:
+                get(b);
+                get(c);
+                method.op(LAND);
+                store(a);
+                break;
+            case Code.OR:
+                get(b);
+                get(c);
+                method.op(LOR);
+                store(a);
+                break;
+            case Code.NOT:
+                get(b);
+                method.longValue(1);
+                method.op(LXOR);
+                store(a);
+                break;
+            case Code.JUMP:
+                method.branch(GOTO, a);
+                break;
+            case Code.JUMP_FALSE:
+                value(a);
+                method.branch(IFEQ, b);
+                break;
+            case Code.JUMP_EQ: case Code.JUMP_NEQ: case Code.JUMP_L: case Code.JUMP_LEQ: case Code.JUMP_G:
+            case Code.JUMP_GEQ:
+                value(a);
+                value(b);
+                method.branch(comparison(code[pc] - Code.JUMP_EQ), c);
+                break;
+            case Code.JUMP_EQ_CONST: case Code.JUMP_NEQ_CONST: case Code.JUMP_L_CONST: case Code.JUMP_LEQ_CONST:
+            case Code.JUMP_G_CONST: case Code.JUMP_GEQ_CONST:
+                value(a);
+                method.integer(b);
+                method.branch(comparison(code[pc] - Code.JUMP_EQ_CONST), c);
+                break;
+            case Code.BREAK:
+                leave(a);
+                method.branch(GOTO, b);
+                break;
+            case Code.RETURN_BREAK:
+                complete(SlotInterpreter.Completion.BREAK);
+                break;
+            case Code.ABORT:
+                complete(SlotInterpreter.Completion.ABORT);
+                break;
+            case Code.PRINT:
+                save();
+                method.local(ALOAD, MACHINE);
+                machine("print", "()V");
+                break;
+            case Code.SHOW_INT:
+                method.local(ALOAD, MACHINE);
+                value(a);
+                machine("show", "(I)V");
+                break;
+            case Code.SHOW_BOOL:
+                method.local(ALOAD, MACHINE);
+                value(a);
+                machine("show", "(Z)V");
+                break;
+            case Code.CHOOSE: {
+                int[] targets = new int[a];
+                System.arraycopy(code, pc + 2, targets, 0, a);
+                method.local(ALOAD, MACHINE);
+                method.integer(a);
+                machine("choose", "(I)I");
+                method.tableswitch(targets);
+                break;
+            }
+            case Code.ENTER:
+                method.local(ALOAD, MACHINE);
+                get(a);
+                machine("enter", "(J)V");
+                get(b);
+                defined();
+                store(a);
+                break;
+            case Code.LEAVE:
+                method.local(ALOAD, MACHINE);
+                machine("leave", "()J");
+                store(a);
+                break;
+            case Code.DEFINE:
+                method.local(ALOAD, MACHINE);
+                constant(a, "imp2/Stm$ProcDef");
+                machine("define", "(Limp2/Stm$ProcDef;)V");
+                break;
+            case Code.INLINED:
+                method.local(ALOAD, MACHINE);
+                constant(a, CALL);
+                machine("inlined", "(L" + CALL + ";)Z");
+                method.branch(IFEQ, b);
+                break;
+            case Code.CALL:
+                save();
+                method.local(ALOAD, MACHINE);
+                constant(a, CALL);
+                machine("call", "(L" + CALL + ";)V");
+                registers();
+                break;
+            case Code.ARGUMENT:
+                method.local(ALOAD, MACHINE);
+                method.integer(a);
+                get(b);
+                machine("argument", "(IJ)V");
+                // later arguments see the parameters set before them
+                if (code[Code.next(code, pc)] != Code.RETURN) {
+                    restore();
+                }
+                break;
+            case Code.RETURN: {
+                method.local(ALOAD, MACHINE);
+                constant(a, CALL);
+                machine("ret", "(L" + CALL + ";)Limp2/SlotInterpreter$Completion;");
+                method.reference(INVOKEVIRTUAL, classFile.method("imp2/SlotInterpreter$Completion", "ordinal", "()I"));
+                method.local(ISTORE, RESULT);
+                registers();
+                restore();
+                int next = Code.next(code, pc);
+                method.local(ILOAD, RESULT);
+                method.branch(IFEQ, next);
+                if (c < 0) {
+                    // the registers hold what the call left, like the locals
+                    method.local(ILOAD, RESULT);
+                    method.op(IRETURN);
+                } else {
+                    method.local(ILOAD, RESULT);
+                    method.integer(SlotInterpreter.Completion.BREAK.ordinal());
+                    method.branch(IF_ICMPNE, -pc - 1);
+                    leave(b);
+                    method.branch(GOTO, c);
+                    method.label(-pc - 1);
+                    method.local(ILOAD, RESULT);
+                    method.op(IRETURN);
+                }
+                break;
+            }
+            case Code.CLOSED:
+                save();
+                method.local(ALOAD, MACHINE);
+                constant(a, "imp2/ClosedForms$Form");
+                machine("closed", "(Limp2/ClosedForms$Form;)Z");
+                method.local(ISTORE, RESULT);
+                restore();
+                method.local(ILOAD, RESULT);
+                method.branch(IFNE, b);
+                break;
+            case Code.MALFORMED:
+                save();
+                method.local(ALOAD, MACHINE);
+                constant(a, "imp2/Token");
+                machine("malformed", "(Limp2/Token;)V");
+                break;
+            default: // END
+                complete(SlotInterpreter.Completion.NORMAL);
+        }
+    }
+
+    // pushes the register as it's held
+    private void get(int register) {
+        method.local(LLOAD, locals.get(register));
+    }
+
+    // pushes the value the register holds
+    private void value(int register) {
+        get(register);
+        method.op(L2I);
+    }
+
+    private void store(int register) {
+        method.local(LSTORE, locals.get(register));
+    }
+
+    private void defined() {
+        method.longValue(Registers.DEFINED);
+        method.op(LOR);
+    }
+
+    // combines the two registers on the stack
+    private void arithmetic(int operator) {
+        method.op(operator == 0 ? LADD : operator == 1 ? LSUB : LMUL);
+        method.longValue(Registers.VALUE);
+        method.op(LAND);
+        defined();
+    }
+
+    // the branch taken if the comparison, in the order of the opcodes, holds
+    private static int comparison(int operator) {
+        return new int[] { IF_ICMPEQ, IF_ICMPNE, IF_ICMPLT, IF_ICMPLE, IF_ICMPGT, IF_ICMPGE }[operator];
+    }
+
+    private void constant(int index, String type) {
+        method.local(ALOAD, POOL);
+        method.integer(index);
+        method.op(AALOAD);
+        method.reference(CHECKCAST, classFile.classConstant(type));
+    }
+
+    private void machine(String name, String descriptor) {
+        method.reference(INVOKEVIRTUAL, classFile.method(VM, name, descriptor));
+    }
+
+    private void leave(int scopes) {
+        if (scopes > 0) {
+            method.local(ALOAD, MACHINE);
+            method.integer(scopes);
+            machine("leave", "(I)V");
+        }
+    }
+
+    private void complete(SlotInterpreter.Completion completion) {
+        save();
+        method.integer(completion.ordinal());
+        method.op(IRETURN);
+    }
+
+    // reads the registers of the virtual machine again, which a call may grow
+    private void registers() {
+        method.local(ALOAD, MACHINE);
+        method.reference(GETFIELD, classFile.field(VM, "registers", "[J"));
+        method.local(ASTORE, REGISTERS);
+    }
+
+    private void load(int register) {
+        method.local(ALOAD, REGISTERS);
+        method.integer(register);
+        method.op(LALOAD);
+    }
+
+    // writes the variables to the registers
+    private void save() {
+        for (Map.Entry<Integer, Integer> local : locals.entrySet()) {
+            if (variables.get(local.getKey())) {
+                method.local(ALOAD, REGISTERS);
+                method.integer(local.getKey());
+                method.local(LLOAD, local.getValue());
+                method.op(LASTORE);
+            }
+        }
+    }
+
+    // reads the variables from the registers
+    private void restore() {
+        for (Map.Entry<Integer, Integer> local : locals.entrySet()) {
+            if (variables.get(local.getKey())) {
+                load(local.getKey());
+                method.local(LSTORE, local.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static imp2.TokenType.*;
+
+/**
+ * Finds loops whose body only counts variables up or down by amounts that
+ * don't change in the loop, and whose condition compares such variables with
+ * each other or with values that don't change either, like
+ * while d < a do d := (d + div) end. For these, the interpreter works out
+ * how often the loop runs and the values after it from the values before it,
+ * instead of running it. If the loop wouldn't end or a variable would
+ * overflow, it runs the loop as usual.
+ *
+ * A for loop counts its variable up by one until it is equal to the end,
+ * so it is handled like a while loop with that variable and condition.
+ */
+class ClosedForms implements Stm.Visitor<Stm> {
+
+    // how the variables of a loop change, and the comparison that ends it
+    static class Form {
+        // each variable is increased by its step in every iteration
+        final List<String> variables = new ArrayList<>();
+        final List<AExp> steps = new ArrayList<>();
+        final List<Boolean> negated = new ArrayList<>();
+
+        // the slots of the variables, once resolved
+        int[] slots;
+
+        // each side of the comparison is either one of the variables, at that
+        // index, or a value that doesn't change while the loop runs
+        AExp left, right;
+        int leftVariable = -1, rightVariable = -1;
+        BExp.Comparison.OpType operator;
+    }
+
+    private final Optimizer optimizer;
+
+    ClosedForms(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    Stm run(Stm region) {
+        return region.accept(this);
+    }
+
+    // the number of iterations until the comparison of two values fails, if
+    // the difference between them starts out as given and changes by change
+    // in every iteration, null if that never happens
+    static Long trips(long difference, long change, BExp.Comparison.OpType operator) {
+        switch (operator) {
+            case G:
+                return trips(-difference, -change, BExp.Comparison.OpType.L);
+            case GEQ:
+                return trips(-difference, -change, BExp.Comparison.OpType.LEQ);
+            case L:
+                if (difference >= 0) {
+                    return 0L;
+                }
+                return change <= 0 ? null : (-difference + change - 1) / change;
+            case LEQ:
+                if (difference > 0) {
+                    return 0L;
+                }
+                return change <= 0 ? null : -difference / change + 1;
+            case EQ:
+                if (difference != 0) {
+                    return 0L;
+                }
+                return change == 0 ? null : 1L;
+            default:
+                if (difference == 0) {
+                    return 0L;
+                } else if (change == 0 || -difference % change != 0 || -difference / change < 0) {
+                    return null;
+                }
+                return -difference / change;
+        }
+    }
+
+    // where the values of the variables of a loop after it go, by their
+    // index in the form
+    interface Results {
+        void set(int variable, int value);
+    }
+
+    // gives the variables of a loop, which start out with the given values,
+    // their values after it, false if it has to run as usual since it
+    // wouldn't end or a variable would overflow
+    static boolean apply(Form form, long[] start, AExp.Environment env, Results results) {
+        int n = start.length;
+        long[] values = start.clone(), steps = new long[n];
+        for (int i = 0; i < n; i++) {
+            steps[i] = form.negated.get(i) ? -(long) form.steps.get(i).evalInt(env) : form.steps.get(i).evalInt(env);
+        }
+
+        long difference = 0, change = 0;
+        if (form.leftVariable >= 0) {
+            difference += values[form.leftVariable];
+            change += steps[form.leftVariable];
+        } else {
+            difference += form.left.evalInt(env);
+        }
+        if (form.rightVariable >= 0) {
+            difference -= values[form.rightVariable];
+            change -= steps[form.rightVariable];
+        } else {
+            difference -= form.right.evalInt(env);
+        }
+        Long trips = trips(difference, change, form.operator);
+        if (trips == null) {
+            return false;
+        } else if (trips == 0) {
+            return true;
+        }
+
+        // the values change monotonically, so none overflows if the last ones don't
+        for (int i = 0; i < n; i++) {
+            try {
+                values[i] = Math.addExact(values[i], Math.multiplyExact(trips, steps[i]));
+            } catch (ArithmeticException e) {
+                return false;
+            }
+            if (values[i] != (int) values[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            results.set(i, (int) values[i]);
+        }
+        return true;
+    }
+
+    // the same for variables kept in registers like those of the virtual machine
+    static boolean apply(Form form, long[] registers, AExp.Environment env) {
+        long[] start = new long[form.slots.length];
+        for (int i = 0; i < start.length; i++) {
+            start[i] = (int) registers[form.slots[i]];
+        }
+        return apply(form, start, env,
+            (i, value) -> registers[form.slots[i]] = value & Registers.VALUE | Registers.DEFINED);
+    }
+
+    // how the body changes the variables, with the variable of a for loop
+    // first, null if it doesn't only count them
+    private static Form form(Stm body, Stm.For loop) {
+        List<Stm.Assign> assigns = new ArrayList<>();
+        if (!assigns(body, assigns)) {
+            return null;
+        }
+
+        Form res = new Form();
+        if (loop != null) {
+            Token at = ((AExp.Atomic) Optimizer.firstAtom(loop.start)).atom;
+            res.variables.add(loop.loopvar);
+            res.steps.add(new AExp.Atomic(new Token(NUMBER, at.line, at.index, "1")));
+            res.negated.add(false);
+        }
+        for (Stm.Assign assign : assigns) {
+            if (res.variables.contains(assign.name)) {
+                return null;
+            }
+            res.variables.add(assign.name);
+        }
+        for (Stm.Assign assign : assigns) {
+            if (!(assign.exp instanceof AExp.Binary)) {
+                return null;
+            }
+            AExp.Binary binary = (AExp.Binary) assign.exp;
+            AExp step;
+            if (binary.operator != AExp.Binary.OpType.TIMES && reads(binary.left, assign.name)) {
+                step = binary.right;
+            } else if (binary.operator == AExp.Binary.OpType.PLUS && reads(binary.right, assign.name)) {
+                step = binary.left;
+            } else {
+                return null;
+            }
+            if (!invariant(step, res.variables)) {
+                return null;
+            }
+            res.steps.add(step);
+            res.negated.add(binary.operator == AExp.Binary.OpType.MINUS);
+        }
+        return res;
+    }
+
+    // the assignments the body consists of, false if it has other statements
+    private static boolean assigns(Stm body, List<Stm.Assign> assigns) {
+        if (body instanceof Stm.Assign) {
+            assigns.add((Stm.Assign) body);
+            return true;
+        } else if (body instanceof Stm.Seq) {
+            for (Stm s : ((Stm.Seq) body).stms) {
+                if (!assigns(s, assigns)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return body instanceof Stm.Single && ((Stm.Single) body).type == Stm.Single.Type.SKIP;
+    }
+
+    private static boolean reads(AExp aexp, String name) {
+        return aexp instanceof AExp.Atomic && ((AExp.Atomic) aexp).atom.type == IDENTIFIER &&
+            ((AExp.Atomic) aexp).atom.lexeme.equals(name);
+    }
+
+    private static boolean invariant(AExp aexp, List<String> variables) {
+        Uses uses = Uses.of(aexp);
+        if (!Optimizer.safe(aexp)) {
+            return false;
+        }
+        for (String name : uses.reads) {
+            if (variables.contains(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean condition(Form form, AExp left, AExp right, BExp.Comparison.OpType operator) {
+        form.left = left;
+        form.right = right;
+        form.operator = operator;
+        for (int i = 0; i < form.variables.size(); i++) {
+            if (reads(left, form.variables.get(i))) {
+                form.leftVariable = i;
+            }
+            if (reads(right, form.variables.get(i))) {
+                form.rightVariable = i;
+            }
+        }
+        return (form.leftVariable >= 0 || invariant(left, form.variables)) &&
+            (form.rightVariable >= 0 || invariant(right, form.variables));
+    }
+
+    public Stm visitSingle(Stm.Single stm) {
+        return stm;
+    }
+
+    public Stm visitAssign(Stm.Assign stm) {
+        return stm;
+    }
+
+    public Stm visitIf(Stm.If stm) {
+        Stm taken = stm.taken.accept(this), notTaken = stm.notTaken.accept(this);
+        return taken == stm.taken && notTaken == stm.notTaken ? stm : new Stm.If(stm.condition, taken, notTaken);
+    }
+
+    public Stm visitWhile(Stm.While stm) {
+        Form form = form(stm.body, null);
+        if (form != null && stm.condition instanceof BExp.Comparison) {
+            BExp.Comparison comparison = (BExp.Comparison) stm.condition;
+            if (condition(form, comparison.left, comparison.right, comparison.operator)) {
+                optimizer.count(Optimizer.Rule.CLOSED_FORMS, Optimizer.size(stm));
+                Stm.While res = new Stm.While(stm.condition, stm.body);
+                res.closed = form;
+                return res;
+            }
+        }
+        Stm body = stm.body.accept(this);
+        return body == stm.body ? stm : new Stm.While(stm.condition, body);
+    }
+
+    public Stm visitFor(Stm.For stm) {
+        Form form = form(stm.body, stm);
+        if (form != null) {
+            Token at = ((AExp.Atomic) Optimizer.firstAtom(stm.start)).atom;
+            AExp loopvar = new AExp.Atomic(new Token(IDENTIFIER, at.line, at.index, stm.loopvar));
+            if (condition(form, loopvar, stm.end, BExp.Comparison.OpType.NEQ)) {
+                optimizer.count(Optimizer.Rule.CLOSED_FORMS, Optimizer.size(stm));
+                Stm.For res = new Stm.For(stm.loopvar, stm.start, stm.end, stm.body);
+                res.closed = form;
+                return res;
+            }
+        }
+        Stm body = stm.body.accept(this);
+        return body == stm.body ? stm : new Stm.For(stm.loopvar, stm.start, stm.end, body);
+    }
+
+    public Stm visitVar(Stm.Var stm) {
+        Stm body = stm.body.accept(this);
+        return body == stm.body ? stm : new Stm.Var(stm.name, stm.decl, body);
+    }
+
+    public Stm visitSeq(Stm.Seq stm) {
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (Stm s : stm.stms) {
+            Stm res = s.accept(this);
+            changed |= res != s;
+            stms.add(res);
+        }
+        return changed ? new Stm.Seq(stms) : stm;
+    }
+
+    public Stm visitNd(Stm.Nd stm) {
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (Stm s : stm.stms) {
+            Stm res = s.accept(this);
+            changed |= res != s;
+            stms.add(res);
+        }
+        return changed ? new Stm.Nd(stms) : stm;
+    }
+
+    public Stm visitProcDef(Stm.ProcDef stm) {
+        return stm;
+    }
+
+    public Stm visitProcCall(Stm.ProcCall stm) {
+        return stm;
+    }
+
+    public Stm visitBExp(Stm.SB stm) {
+        return stm;
+    }
+
+    public Stm visitAExp(Stm.SA stm) {
+        return stm;
+    }
+}
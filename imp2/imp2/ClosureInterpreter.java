@@ -0,0 +1,331 @@
+package imp2;
+
+import java.util.Random;
+
+import static imp2.TokenType.*;
+
+/**
+ * Runs programs by first turning each node of the tree into a closure that
+ * does what the node does, and then running the closure of the root. The
+ * operator of a node, the slots of its variables and its numbers are
+ * looked at once, when the closure is made, instead of every time the node
+ * runs, and common shapes like a variable compared to a number get closures
+ * of their own. Procedure bodies are turned into closures when they're first
+ * called.
+ *
+ * The closures are passed the interpreter they run in rather than holding on
+ * to it, so the closure of a procedure body can be kept with its definition.
+ * Variables and calls are those of Registers, and scopes, break and abort
+ * behave as in the slot interpreter.
+ */
+class ClosureInterpreter extends Registers implements Stm.Visitor<ClosureInterpreter.Exec>,
+    BExp.Visitor<ClosureInterpreter.Bool>, AExp.Visitor<ClosureInterpreter.Int> {
+
+    interface Exec {
+        SlotInterpreter.Completion run(ClosureInterpreter s);
+    }
+
+    interface Bool {
+        boolean get(ClosureInterpreter s);
+    }
+
+    interface Int {
+        int get(ClosureInterpreter s);
+    }
+
+    private static final SlotInterpreter.Completion NORMAL = SlotInterpreter.Completion.NORMAL,
+        BREAK = SlotInterpreter.Completion.BREAK, ABORT = SlotInterpreter.Completion.ABORT;
+
+    SlotInterpreter.Completion run(Stm tree) {
+        Exec program = tree.accept(this);
+        grow();
+        return program.run(this);
+    }
+
+    private static Integer number(AExp aexp) {
+        return aexp instanceof AExp.Atomic ? ((AExp.Atomic) aexp).value : null;
+    }
+
+    // the slot of the variable the expression is, -1 if it's something else
+    private static int variable(AExp aexp) {
+        return aexp instanceof AExp.Atomic && ((AExp.Atomic) aexp).atom.type == IDENTIFIER ? ((AExp.Atomic) aexp).slot : -1;
+    }
+
+    public Exec visitSingle(Stm.Single stm) {
+        switch (stm.type) {
+            case PRINT:
+                return s -> {
+                    s.print();
+                    return NORMAL;
+                };
+            case ABORT:
+                return s -> ABORT;
+            case BREAK:
+                return s -> BREAK;
+            default:
+                return s -> NORMAL;
+        }
+    }
+
+    public Exec visitAssign(Stm.Assign stm) {
+        int slot = stm.slot;
+        Integer number = number(stm.exp);
+        if (number != null) {
+            long value = number & VALUE | DEFINED;
+            return s -> {
+                s.registers[slot] = value;
+                return NORMAL;
+            };
+        }
+        Int exp = stm.exp.accept(this);
+        return s -> {
+            s.assign(slot, exp.get(s));
+            return NORMAL;
+        };
+    }
+
+    public Exec visitIf(Stm.If stm) {
+        Bool condition = stm.condition.accept(this);
+        Exec taken = stm.taken.accept(this), notTaken = stm.notTaken.accept(this);
+        return s -> condition.get(s) ? taken.run(s) : notTaken.run(s);
+    }
+
+    public Exec visitWhile(Stm.While stm) {
+        ClosedForms.Form closed = stm.closed;
+        Bool condition = stm.condition.accept(this);
+        Exec body = stm.body.accept(this);
+        return s -> {
+            if (closed != null && ClosedForms.apply(closed, s.registers, s)) {
+                return NORMAL;
+            }
+            while (condition.get(s)) {
+                SlotInterpreter.Completion res = body.run(s);
+                if (res == BREAK) {
+                    break;
+                } else if (res == ABORT) {
+                    return res;
+                }
+            }
+            return NORMAL;
+        };
+    }
+
+    public Exec visitFor(Stm.For stm) {
+        int slot = stm.slot;
+        ClosedForms.Form closed = stm.closed;
+        Int start = stm.start.accept(this), end = stm.end.accept(this);
+        Exec body = stm.body.accept(this);
+        return s -> {
+            s.assign(slot, start.get(s));
+            if (closed != null && ClosedForms.apply(closed, s.registers, s)) {
+                return NORMAL;
+            }
+            for (; (int) s.registers[slot] != end.get(s); s.assign(slot, (int) s.registers[slot] + 1)) {
+                SlotInterpreter.Completion res = body.run(s);
+                if (res == BREAK) {
+                    break;
+                } else if (res == ABORT) {
+                    return res;
+                }
+            }
+            return NORMAL;
+        };
+    }
+
+    public Exec visitVar(Stm.Var stm) {
+        int slot = stm.slot;
+        Int decl = stm.decl.accept(this);
+        Exec body = stm.body.accept(this);
+        return s -> {
+            long prev = s.registers[slot];
+            s.assign(slot, decl.get(s));
+            SlotInterpreter.Completion res = body.run(s);
+            // like the interpreter, a break or abort leaves the variable as it is
+            if (res == NORMAL) {
+                s.registers[slot] = prev;
+            }
+            return res;
+        };
+    }
+
+    public Exec visitSeq(Stm.Seq stm) {
+        Exec[] stms = new Exec[stm.stms.size()];
+        for (int i = 0; i < stms.length; i++) {
+            stms[i] = stm.stms.get(i).accept(this);
+        }
+        if (stms.length == 1) {
+            return stms[0];
+        } else if (stms.length == 2) {
+            Exec first = stms[0], second = stms[1];
+            return s -> {
+                SlotInterpreter.Completion res = first.run(s);
+                return res == NORMAL ? second.run(s) : res;
+            };
+        }
+        return s -> {
+            for (Exec e : stms) {
+                SlotInterpreter.Completion res = e.run(s);
+                if (res != NORMAL) {
+                    return res;
+                }
+            }
+            return NORMAL;
+        };
+    }
+
+    public Exec visitNd(Stm.Nd stm) {
+        Exec[] stms = new Exec[stm.stms.size()];
+        for (int i = 0; i < stms.length; i++) {
+            stms[i] = stm.stms.get(i).accept(this);
+        }
+        return s -> {
+            Random r = new Random();
+            return stms[(int)(r.nextDouble() * stms.length)].run(s);
+        };
+    }
+
+    public Exec visitProcDef(Stm.ProcDef stm) {
+        return s -> {
+            s.define(stm);
+            return NORMAL;
+        };
+    }
+
+    public Exec visitProcCall(Stm.ProcCall stm) {
+        Int[] in = new Int[stm.in.size()];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = stm.in.get(i).accept(this);
+        }
+        Exec inlined = stm.target != null && stm.inlined != null ? stm.inlined.accept(this) : null;
+        return s -> s.call(stm, in, inlined);
+    }
+
+    private SlotInterpreter.Completion call(Stm.ProcCall stm, Int[] in, Exec inlined) {
+        Stm.ProcDef proc = procedure(stm);
+        if (proc == null) {
+            return inlined.run(this);
+        }
+        if (proc.closure == null) {
+            proc.closure = proc.body.accept(this);
+        }
+
+        int[] slots = slots(proc);
+        int base = save(slots, proc.out.size());
+        try {
+            for (int i = 0; i < in.length; i++) {
+                assign(proc.inSlots[i], in[i].get(this));
+            }
+            SlotInterpreter.Completion res = proc.closure.run(this);
+            if (res == NORMAL) {
+                restore(base, slots, proc, stm);
+            }
+            return res;
+        } finally {
+            top = base;
+        }
+    }
+
+    public Exec visitBExp(Stm.SB stm) {
+        Bool exp = stm.exp.accept(this);
+        return s -> {
+            System.out.println("==> \033[3m" + (exp.get(s) ? "tt" : "ff") + "\033[0m");
+            return NORMAL;
+        };
+    }
+
+    public Exec visitAExp(Stm.SA stm) {
+        Int exp = stm.exp.accept(this);
+        return s -> {
+            System.out.println("==> \033[3m" + exp.get(s) + "\033[0m");
+            return NORMAL;
+        };
+    }
+
+    public Bool visitBinary(BExp.Binary bexp) {
+        Bool left = bexp.left.accept(this), right = bexp.right.accept(this);
+        // both sides are evaluated, as in the interpreter
+        if (bexp.operator == BExp.Binary.OpType.AND) {
+            return s -> left.get(s) & right.get(s);
+        }
+        return s -> left.get(s) | right.get(s);
+    }
+
+    public Bool visitNot(BExp.Not bexp) {
+        Bool exp = bexp.exp.accept(this);
+        return s -> !exp.get(s);
+    }
+
+    public Bool visitComparison(BExp.Comparison bexp) {
+        int slot = variable(bexp.left);
+        Integer number = number(bexp.right);
+        if (slot >= 0 && number != null) {
+            int n = number;
+            switch (bexp.operator) {
+                case EQ:  return s -> (int) s.registers[slot] == n;
+                case NEQ: return s -> (int) s.registers[slot] != n;
+                case L:   return s -> (int) s.registers[slot] < n;
+                case LEQ: return s -> (int) s.registers[slot] <= n;
+                case G:   return s -> (int) s.registers[slot] > n;
+                default:  return s -> (int) s.registers[slot] >= n;
+            }
+        }
+
+        Int left = bexp.left.accept(this), right = bexp.right.accept(this);
+        switch (bexp.operator) {
+            case EQ:  return s -> left.get(s) == right.get(s);
+            case NEQ: return s -> left.get(s) != right.get(s);
+            case L:   return s -> left.get(s) < right.get(s);
+            case LEQ: return s -> left.get(s) <= right.get(s);
+            case G:   return s -> left.get(s) > right.get(s);
+            default:  return s -> left.get(s) >= right.get(s);
+        }
+    }
+
+    public Bool visitAtomic(BExp.Atomic bexp) {
+        if (bexp.type == BExp.Atomic.Type.TRUE) {
+            return s -> true;
+        }
+        return s -> false;
+    }
+
+    public Int visitBinary(AExp.Binary aexp) {
+        Integer number = number(aexp.right);
+        if (number != null) {
+            int n = number, slot = variable(aexp.left);
+            if (slot >= 0) {
+                switch (aexp.operator) {
+                    case PLUS:  return s -> (int) s.registers[slot] + n;
+                    case MINUS: return s -> (int) s.registers[slot] - n;
+                    default:    return s -> (int) s.registers[slot] * n;
+                }
+            }
+            Int left = aexp.left.accept(this);
+            switch (aexp.operator) {
+                case PLUS:  return s -> left.get(s) + n;
+                case MINUS: return s -> left.get(s) - n;
+                default:    return s -> left.get(s) * n;
+            }
+        }
+
+        Int left = aexp.left.accept(this), right = aexp.right.accept(this);
+        switch (aexp.operator) {
+            case PLUS:  return s -> left.get(s) + right.get(s);
+            case MINUS: return s -> left.get(s) - right.get(s);
+            default:    return s -> left.get(s) * right.get(s);
+        }
+    }
+
+    public Int visitAtomic(AExp.Atomic aexp) {
+        if (aexp.atom.type == IDENTIFIER) {
+            int slot = aexp.slot;
+            return s -> (int) s.registers[slot];
+        } else if (aexp.value != null) {
+            int n = aexp.value;
+            return s -> n;
+        }
+        Token atom = aexp.atom;
+        return s -> {
+            throw new InterpreterException(atom, "Number Format Error.");
+        };
+    }
+}
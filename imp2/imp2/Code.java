@@ -0,0 +1,170 @@
+package imp2;
+
+import java.util.Arrays;
+
+/**
+ * A program or procedure body compiled for the virtual machine: a list of
+ * instructions, each an opcode followed by its operands, all stored in one
+ * int array, and a pool of the objects instructions refer to, like the
+ * procedure calls and the loops computed in closed form.
+ *
+ * Registers are the slots the resolver gives variables, so instructions
+ * read and write variables directly. Intermediate values are kept in
+ * registers of their own, which are never printed.
+ */
+class Code {
+
+    // r[a] := b
+    static final int CONST = 0;
+    // r[a] := r[b]
+    static final int MOVE = 1;
+    // r[a] := r[b] op r[c]
+    static final int ADD = 2, SUB = 3, MUL = 4;
+    // r[a] := r[b] op c
+    static final int ADD_CONST = 5, SUB_CONST = 6, MUL_CONST = 7;
+    // r[a] := r[b] op r[c] ? 1 : 0
+    static final int EQ = 8, NEQ = 9, L = 10, LEQ = 11, G = 12, GEQ = 13;
+    // r[a] := r[b] op r[c], on booleans
+    static final int AND = 14, OR = 15;
+    // r[a] := r[b] = 0 ? 1 : 0
+    static final int NOT = 16;
+    // goto a
+    static final int JUMP = 17;
+    // if r[a] = 0 goto b
+    static final int JUMP_FALSE = 18;
+    // if r[a] op r[b] goto c
+    static final int JUMP_EQ = 19, JUMP_NEQ = 20, JUMP_L = 21, JUMP_LEQ = 22, JUMP_G = 23, JUMP_GEQ = 24;
+    // if r[a] op b goto c
+    static final int JUMP_EQ_CONST = 25, JUMP_NEQ_CONST = 26, JUMP_L_CONST = 27, JUMP_LEQ_CONST = 28,
+        JUMP_G_CONST = 29, JUMP_GEQ_CONST = 30;
+    // leaves a scopes and goes to b, the end of the loop a break ends
+    static final int BREAK = 31;
+    // leaves the code with a break that no loop in it ends
+    static final int RETURN_BREAK = 32;
+    static final int ABORT = 33;
+    static final int PRINT = 34;
+    // prints r[a] as a number, or as a boolean
+    static final int SHOW_INT = 35, SHOW_BOOL = 36;
+    // goes to one of the a addresses that follow, chosen at random
+    static final int CHOOSE = 37;
+    // saves r[a] and sets it to r[b], for the scope of a variable
+    static final int ENTER = 38;
+    // restores r[a] saved when its scope was entered
+    static final int LEAVE = 39;
+    // defines the procedure pool[a]
+    static final int DEFINE = 40;
+    // for the call pool[a], goes to b unless the procedure it was inlined from is still defined
+    static final int INLINED = 41;
+    // starts the call pool[a] by saving what the procedure may change
+    static final int CALL = 42;
+    // sets the parameter a of the procedure being called to r[b]
+    static final int ARGUMENT = 43;
+    // runs the procedure, a break from it leaves b scopes and goes to c, or leaves the code if c < 0
+    static final int RETURN = 44;
+    // sets the variables of the loop pool[a] to their values after it and goes to b, unless it has to run
+    static final int CLOSED = 45;
+    // reports the number pool[a], which doesn't fit into an int
+    static final int MALFORMED = 46;
+    static final int END = 47;
+
+    private static final String[] NAMES = {
+        "const", "move", "add", "sub", "mul", "add", "sub", "mul", "eq", "neq", "l", "leq", "g", "geq",
+        "and", "or", "not", "jump", "jump_false", "jump_eq", "jump_neq", "jump_l", "jump_leq", "jump_g",
+        "jump_geq", "jump_eq", "jump_neq", "jump_l", "jump_leq", "jump_g", "jump_geq", "break",
+        "return_break", "abort", "print", "show_int", "show_bool", "choose", "enter", "leave", "define",
+        "inlined", "call", "argument", "return", "closed", "malformed", "end"
+    };
+
+    // the number of operands of each instruction, apart from choose
+    private static final int[] OPERANDS = {
+        2, 2, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 2, 1, 2, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 2,
+        0, 0, 0, 1, 1, 1, 2, 1, 1, 2, 1, 2, 3, 2, 1, 0
+    };
+
+    // the code compiled to a class of the JVM, which returns the ordinal of
+    // the completion
+    interface Compiled {
+        int run(VirtualMachine vm, Object[] pool);
+    }
+
+    final int[] code;
+    final Object[] pool;
+
+    // the resolver whose slots the registers are
+    final Resolver resolver;
+
+    // whether the code jumps back, so part of it may run many times
+    final boolean loops;
+
+    // how often the code has run, the class it was compiled to, and whether
+    // it couldn't be compiled and is interpreted instead
+    int runs;
+    Compiled compiled;
+    boolean interpreted;
+
+    Code(int[] code, Object[] pool, Resolver resolver) {
+        this.code = code;
+        this.pool = pool;
+        this.resolver = resolver;
+
+        boolean loops = false;
+        for (int pc = 0; pc < code.length; pc = next(code, pc)) {
+            if (code[pc] >= JUMP && code[pc] <= JUMP_GEQ_CONST && code[next(code, pc) - 1] <= pc) {
+                loops = true;
+            }
+        }
+        this.loops = loops;
+    }
+
+    // the address of the instruction after the one at pc
+    static int next(int[] code, int pc) {
+        if (code[pc] == CHOOSE) {
+            return pc + 2 + code[pc + 1];
+        }
+        return pc + 1 + OPERANDS[code[pc]];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc = next(code, pc)) {
+            stringBuilder.append(String.format("%4d  %-12s", pc, NAMES[code[pc]]));
+            int[] operands = Arrays.copyOfRange(code, pc + 1, next(code, pc));
+            for (int i = 0; i < operands.length; i++) {
+                stringBuilder.append(i == 0 ? " " : ", ").append(operand(code[pc], i, operands[i]));
+            }
+            stringBuilder.append('\n');
+        }
+        return stringBuilder.toString();
+    }
+
+    // how an operand is shown: registers by the variable they hold, and
+    // constants and addresses as they are
+    private String operand(int opcode, int index, int operand) {
+        return register(opcode, index) ? resolver.name(operand) : Integer.toString(operand);
+    }
+
+    // whether the operand at the index of an instruction is a register
+    static boolean register(int opcode, int index) {
+        switch (opcode) {
+            case ENTER:
+                return true;
+            case CONST:
+            case LEAVE:
+            case JUMP_FALSE:
+            case SHOW_INT:
+            case SHOW_BOOL:
+                return index == 0;
+            case ARGUMENT:
+                return index == 1;
+            case ADD_CONST: case SUB_CONST: case MUL_CONST:
+            case JUMP_EQ: case JUMP_NEQ: case JUMP_L: case JUMP_LEQ: case JUMP_G: case JUMP_GEQ:
+                return index < 2;
+            case JUMP_EQ_CONST: case JUMP_NEQ_CONST: case JUMP_L_CONST: case JUMP_LEQ_CONST:
+            case JUMP_G_CONST: case JUMP_GEQ_CONST:
+                return index == 0;
+            default:
+                return opcode <= NOT;
+        }
+    }
+}
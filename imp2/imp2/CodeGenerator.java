@@ -0,0 +1,408 @@
+package imp2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import static imp2.TokenType.*;
+
+/**
+ * Compiles a program or procedure body, whose variables have been resolved
+ * to slots, to code for the virtual machine.
+ *
+ * Expressions are computed straight into the variable they're assigned to,
+ * with their parts in temporary registers, and conditions of branches and
+ * loops that compare two values jump on the comparison without storing its
+ * result. Both sides of and and or are computed, as in the interpreter, so a
+ * malformed number is reported in the same places.
+ */
+class CodeGenerator implements Stm.Visitor<Void> {
+
+    // a loop being compiled, with the scopes open when it starts and the
+    // operands of the breaks that go to its end
+    private static class Loop {
+        final int scopes;
+        final List<Integer> breaks = new ArrayList<>();
+
+        Loop(int scopes) {
+            this.scopes = scopes;
+        }
+    }
+
+    private int[] code = new int[64];
+    private int size = 0;
+    private final List<Object> pool = new ArrayList<>();
+
+    private final Deque<Loop> loops = new ArrayDeque<>();
+    private int scopes = 0;
+
+    // the temporary registers in use, and the resolver that gives them slots
+    private int temporaries = 0;
+    private final Resolver resolver;
+
+    private CodeGenerator(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    // the code of a tree resolved by the resolver
+    static Code generate(Stm tree, Resolver resolver) {
+        CodeGenerator generator = new CodeGenerator(resolver);
+        tree.accept(generator);
+        generator.emit(Code.END);
+        return new Code(Arrays.copyOf(generator.code, generator.size), generator.pool.toArray(), resolver);
+    }
+
+    private void emit(int... instruction) {
+        if (size + instruction.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(size + instruction.length, 2 * code.length));
+        }
+        System.arraycopy(instruction, 0, code, size, instruction.length);
+        size += instruction.length;
+    }
+
+    // the address of the last operand emitted, to be set to a later address
+    private int operandToPatch() {
+        return size - 1;
+    }
+
+    private void patch(int operand) {
+        code[operand] = size;
+    }
+
+    private int constant(Object object) {
+        pool.add(object);
+        return pool.size() - 1;
+    }
+
+    private int temporary() {
+        return resolver.temporary(temporaries++);
+    }
+
+    private static Integer number(AExp aexp) {
+        return aexp instanceof AExp.Atomic ? ((AExp.Atomic) aexp).value : null;
+    }
+
+    // emits the code that computes the expression into the register
+    private void compute(AExp aexp, int register) {
+        if (aexp instanceof AExp.Atomic) {
+            AExp.Atomic atomic = (AExp.Atomic) aexp;
+            if (atomic.atom.type == IDENTIFIER) {
+                emit(Code.MOVE, register, atomic.slot);
+            } else if (atomic.value != null) {
+                emit(Code.CONST, register, atomic.value);
+            } else {
+                emit(Code.MALFORMED, constant(atomic.atom));
+            }
+            return;
+        }
+
+        AExp.Binary binary = (AExp.Binary) aexp;
+        int mark = temporaries;
+        int left = operand(binary.left);
+        Integer right = number(binary.right);
+        switch (binary.operator) {
+            case PLUS:
+                if (right != null) {
+                    emit(Code.ADD_CONST, register, left, right);
+                } else {
+                    emit(Code.ADD, register, left, operand(binary.right));
+                }
+                break;
+            case MINUS:
+                if (right != null) {
+                    emit(Code.SUB_CONST, register, left, right);
+                } else {
+                    emit(Code.SUB, register, left, operand(binary.right));
+                }
+                break;
+            default:
+                if (right != null) {
+                    emit(Code.MUL_CONST, register, left, right);
+                } else {
+                    emit(Code.MUL, register, left, operand(binary.right));
+                }
+        }
+        temporaries = mark;
+    }
+
+    // the register holding the value of the expression, which is computed
+    // into a temporary register unless it's a variable
+    private int operand(AExp aexp) {
+        if (aexp instanceof AExp.Atomic && ((AExp.Atomic) aexp).atom.type == IDENTIFIER) {
+            return ((AExp.Atomic) aexp).slot;
+        }
+        int res = temporary();
+        compute(aexp, res);
+        return res;
+    }
+
+    // emits the code that computes the condition into the register, as 1 or 0
+    private void compute(BExp bexp, int register) {
+        int mark = temporaries;
+        if (bexp instanceof BExp.Binary) {
+            BExp.Binary binary = (BExp.Binary) bexp;
+            int left = operand(binary.left), right = operand(binary.right);
+            emit(binary.operator == BExp.Binary.OpType.AND ? Code.AND : Code.OR, register, left, right);
+        } else if (bexp instanceof BExp.Not) {
+            emit(Code.NOT, register, operand(((BExp.Not) bexp).exp));
+        } else if (bexp instanceof BExp.Comparison) {
+            BExp.Comparison comparison = (BExp.Comparison) bexp;
+            int left = operand(comparison.left), right = operand(comparison.right);
+            emit(Code.EQ + comparison.operator.ordinal(), register, left, right);
+        } else {
+            emit(Code.CONST, register, ((BExp.Atomic) bexp).type == BExp.Atomic.Type.TRUE ? 1 : 0);
+        }
+        temporaries = mark;
+    }
+
+    private int operand(BExp bexp) {
+        int res = temporary();
+        compute(bexp, res);
+        return res;
+    }
+
+    private static BExp.Comparison.OpType negated(BExp.Comparison.OpType operator) {
+        switch (operator) {
+            case EQ:  return BExp.Comparison.OpType.NEQ;
+            case NEQ: return BExp.Comparison.OpType.EQ;
+            case L:   return BExp.Comparison.OpType.GEQ;
+            case LEQ: return BExp.Comparison.OpType.G;
+            case G:   return BExp.Comparison.OpType.LEQ;
+            default:  return BExp.Comparison.OpType.L; // '>='
+        }
+    }
+
+    // emits a jump if the two values compare as given, and returns the
+    // operand that is the address it jumps to
+    private int jump(AExp left, AExp right, BExp.Comparison.OpType operator) {
+        int mark = temporaries;
+        int res = jump(operand(left), right, operator);
+        temporaries = mark;
+        return res;
+    }
+
+    private int jump(int l, AExp right, BExp.Comparison.OpType operator) {
+        int mark = temporaries;
+        Integer r = number(right);
+        if (r != null) {
+            emit(Code.JUMP_EQ_CONST + operator.ordinal(), l, r, -1);
+        } else {
+            emit(Code.JUMP_EQ + operator.ordinal(), l, operand(right), -1);
+        }
+        temporaries = mark;
+        return operandToPatch();
+    }
+
+    // emits the code that jumps if the condition doesn't hold, and returns the
+    // operand that is the address it jumps to, or -1 if it always holds
+    private int jumpUnless(BExp condition) {
+        if (condition instanceof BExp.Comparison) {
+            BExp.Comparison comparison = (BExp.Comparison) condition;
+            return jump(comparison.left, comparison.right, negated(comparison.operator));
+        } else if (condition instanceof BExp.Atomic && ((BExp.Atomic) condition).type == BExp.Atomic.Type.TRUE) {
+            return -1;
+        }
+        int mark = temporaries;
+        emit(Code.JUMP_FALSE, operand(condition), -1);
+        temporaries = mark;
+        return operandToPatch();
+    }
+
+    // emits the code that goes to the address if the condition holds
+    private void jumpIf(BExp condition, int target) {
+        if (condition instanceof BExp.Comparison) {
+            BExp.Comparison comparison = (BExp.Comparison) condition;
+            int operand = jump(comparison.left, comparison.right, comparison.operator);
+            code[operand] = target;
+        } else if (condition instanceof BExp.Atomic) {
+            if (((BExp.Atomic) condition).type == BExp.Atomic.Type.TRUE) {
+                emit(Code.JUMP, target);
+            }
+        } else {
+            int mark = temporaries;
+            emit(Code.JUMP_NEQ_CONST, operand(condition), 0, target);
+            temporaries = mark;
+        }
+    }
+
+    private void patchAll(Loop loop) {
+        for (int operand : loop.breaks) {
+            patch(operand);
+        }
+    }
+
+    public Void visitSingle(Stm.Single stm) {
+        switch (stm.type) {
+            case PRINT:
+                emit(Code.PRINT);
+                break;
+            case ABORT:
+                emit(Code.ABORT);
+                break;
+            case BREAK:
+                if (loops.isEmpty()) {
+                    emit(Code.RETURN_BREAK);
+                } else {
+                    emit(Code.BREAK, scopes - loops.peek().scopes, -1);
+                    loops.peek().breaks.add(operandToPatch());
+                }
+                break;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    public Void visitAssign(Stm.Assign stm) {
+        compute(stm.exp, stm.slot);
+        return null;
+    }
+
+    public Void visitIf(Stm.If stm) {
+        int notTaken = jumpUnless(stm.condition);
+        stm.taken.accept(this);
+        if (stm.notTaken instanceof Stm.Single && ((Stm.Single) stm.notTaken).type == Stm.Single.Type.SKIP) {
+            if (notTaken >= 0) {
+                patch(notTaken);
+            }
+            return null;
+        }
+        emit(Code.JUMP, -1);
+        int end = operandToPatch();
+        if (notTaken >= 0) {
+            patch(notTaken);
+        }
+        stm.notTaken.accept(this);
+        patch(end);
+        return null;
+    }
+
+    public Void visitWhile(Stm.While stm) {
+        Loop loop = new Loop(scopes);
+        if (stm.closed != null) {
+            emit(Code.CLOSED, constant(stm.closed), -1);
+            loop.breaks.add(operandToPatch());
+        }
+        // the condition is checked after the body, so each iteration takes one jump
+        emit(Code.JUMP, -1);
+        int condition = operandToPatch();
+        int start = size;
+        loops.push(loop);
+        stm.body.accept(this);
+        loops.pop();
+        patch(condition);
+        jumpIf(stm.condition, start);
+        patchAll(loop);
+        return null;
+    }
+
+    public Void visitFor(Stm.For stm) {
+        Loop loop = new Loop(scopes);
+        compute(stm.start, stm.slot);
+        if (stm.closed != null) {
+            emit(Code.CLOSED, constant(stm.closed), -1);
+            loop.breaks.add(operandToPatch());
+        }
+        emit(Code.JUMP, -1);
+        int condition = operandToPatch();
+        int start = size;
+        loops.push(loop);
+        stm.body.accept(this);
+        loops.pop();
+        emit(Code.ADD_CONST, stm.slot, stm.slot, 1);
+        patch(condition);
+        int loopCondition = jump(stm.slot, stm.end, BExp.Comparison.OpType.NEQ);
+        code[loopCondition] = start;
+        patchAll(loop);
+        return null;
+    }
+
+    public Void visitVar(Stm.Var stm) {
+        int mark = temporaries;
+        emit(Code.ENTER, stm.slot, operand(stm.decl));
+        temporaries = mark;
+        scopes++;
+        stm.body.accept(this);
+        scopes--;
+        emit(Code.LEAVE, stm.slot);
+        return null;
+    }
+
+    public Void visitSeq(Stm.Seq stm) {
+        for (Stm s : stm.stms) {
+            s.accept(this);
+        }
+        return null;
+    }
+
+    public Void visitNd(Stm.Nd stm) {
+        int[] instruction = new int[2 + stm.stms.size()];
+        instruction[0] = Code.CHOOSE;
+        instruction[1] = stm.stms.size();
+        emit(instruction);
+        int table = size - stm.stms.size();
+        List<Integer> ends = new ArrayList<>();
+        for (int i = 0; i < stm.stms.size(); i++) {
+            patch(table + i);
+            stm.stms.get(i).accept(this);
+            emit(Code.JUMP, -1);
+            ends.add(operandToPatch());
+        }
+        for (int operand : ends) {
+            patch(operand);
+        }
+        return null;
+    }
+
+    public Void visitProcDef(Stm.ProcDef stm) {
+        emit(Code.DEFINE, constant(stm));
+        return null;
+    }
+
+    public Void visitProcCall(Stm.ProcCall stm) {
+        int site = constant(stm);
+        int end = -1;
+        if (stm.target != null && stm.inlined != null) {
+            emit(Code.INLINED, site, -1);
+            int call = operandToPatch();
+            stm.inlined.accept(this);
+            emit(Code.JUMP, -1);
+            end = operandToPatch();
+            patch(call);
+        }
+
+        emit(Code.CALL, site);
+        for (int i = 0; i < stm.in.size(); i++) {
+            int mark = temporaries;
+            emit(Code.ARGUMENT, i, operand(stm.in.get(i)));
+            temporaries = mark;
+        }
+        if (loops.isEmpty()) {
+            emit(Code.RETURN, site, 0, -1);
+        } else {
+            emit(Code.RETURN, site, scopes - loops.peek().scopes, -1);
+            loops.peek().breaks.add(operandToPatch());
+        }
+
+        if (end >= 0) {
+            patch(end);
+        }
+        return null;
+    }
+
+    public Void visitBExp(Stm.SB stm) {
+        int mark = temporaries;
+        emit(Code.SHOW_BOOL, operand(stm.exp));
+        temporaries = mark;
+        return null;
+    }
+
+    public Void visitAExp(Stm.SA stm) {
+        int mark = temporaries;
+        emit(Code.SHOW_INT, operand(stm.exp));
+        temporaries = mark;
+        return null;
+    }
+}
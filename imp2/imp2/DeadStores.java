@@ -0,0 +1,270 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes assignments whose value is never read. The statements are walked
+ * backwards, keeping track of the variables that may still be read later on.
+ *
+ * After print or abort, in a procedure call or where an error may occur,
+ * all variables can still be seen. At the end of the program they all stay
+ * visible as well, while at the end of a procedure body only its outputs
+ * do. An assignment is only removed if evaluating its expression can't fail.
+ */
+class DeadStores implements Stm.Visitor<Stm> {
+
+    private final Optimizer optimizer;
+
+    // the variables that may be read after the current statement, and those
+    // that may be read once the innermost loop is left with a break
+    private Live live, breakLive;
+
+    DeadStores(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    Stm run(Stm region, List<String> outputs) {
+        live = outputs == null ? Live.all() : Live.of(outputs);
+        // a break outside a loop leaves the procedure without restoring anything
+        breakLive = Live.all();
+        return region.accept(this);
+    }
+
+    private void read(AExp aexp) {
+        read(Uses.of(aexp));
+    }
+
+    private void read(BExp bexp) {
+        read(Uses.of(bexp));
+    }
+
+    private void read(Uses uses) {
+        if (uses.observes) {
+            live = Live.all();
+        } else {
+            live.addAll(uses.reads);
+        }
+    }
+
+    public Stm visitSingle(Stm.Single stm) {
+        switch (stm.type) {
+            case PRINT: case ABORT:
+                live = Live.all();
+                break;
+            case BREAK:
+                live = breakLive.copy();
+                break;
+            default:
+                break;
+        }
+        return stm;
+    }
+
+    public Stm visitAssign(Stm.Assign stm) {
+        if (!live.contains(stm.name) && Optimizer.safe(stm.exp)) {
+            optimizer.count(Optimizer.Rule.DEAD_STORES, Optimizer.size(stm));
+            return new Stm.Single(Stm.Single.Type.SKIP);
+        }
+        live.remove(stm.name);
+        read(stm.exp);
+        return stm;
+    }
+
+    public Stm visitIf(Stm.If stm) {
+        Live after = live;
+        live = after.copy();
+        Stm notTaken = stm.notTaken.accept(this);
+        Live beforeNotTaken = live;
+        live = after.copy();
+        Stm taken = stm.taken.accept(this);
+        live.addAll(beforeNotTaken);
+        read(stm.condition);
+
+        if (taken == stm.taken && notTaken == stm.notTaken) {
+            return stm;
+        }
+        return new Stm.If(stm.condition, taken, notTaken);
+    }
+
+    // every variable read anywhere in a loop may be read again in its next
+    // iteration, which is less precise than solving for it but always holds
+    private Live head(Stm loop) {
+        Uses uses = Uses.of(loop);
+        Live res = live.copy();
+        if (uses.observes) {
+            return Live.all();
+        }
+        res.addAll(uses.reads);
+        return res;
+    }
+
+    private Stm body(Stm body, Live head) {
+        Live outerBreak = breakLive;
+        breakLive = live;
+        live = head.copy();
+        Stm res = body.accept(this);
+        breakLive = outerBreak;
+        live = head;
+        return res;
+    }
+
+    public Stm visitWhile(Stm.While stm) {
+        Stm body = body(stm.body, head(stm));
+        return body == stm.body ? stm : new Stm.While(stm.condition, body);
+    }
+
+    public Stm visitFor(Stm.For stm) {
+        Stm body = body(stm.body, head(stm));
+        live.remove(stm.loopvar);
+        read(stm.start);
+        return body == stm.body ? stm : new Stm.For(stm.loopvar, stm.start, stm.end, body);
+    }
+
+    public Stm visitVar(Stm.Var stm) {
+        // the variable gets its value back at the end, so what the body
+        // assigns to it is only read in the body
+        boolean readAfter = live.contains(stm.name);
+        live.remove(stm.name);
+        Stm body = stm.body.accept(this);
+        live.remove(stm.name);
+        if (readAfter) {
+            live.add(stm.name);
+        }
+
+        // a declaration the body doesn't use anymore, and that can't be seen, can go
+        Uses uses = Uses.of(body);
+        if (!uses.reads.contains(stm.name) && !uses.assigned.contains(stm.name) && !uses.observes && !uses.breaks &&
+            Optimizer.safe(stm.decl)) {
+            optimizer.count(Optimizer.Rule.DEAD_STORES, 1 + Optimizer.size(stm.decl));
+            return body;
+        }
+        read(stm.decl);
+        return body == stm.body ? stm : new Stm.Var(stm.name, stm.decl, body);
+    }
+
+    public Stm visitSeq(Stm.Seq stm) {
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (int i = stm.stms.size() - 1; i >= 0; i--) {
+            Stm s = stm.stms.get(i);
+            Stm res = s.accept(this);
+            changed |= res != s;
+            if (!(res instanceof Stm.Single && ((Stm.Single) res).type == Stm.Single.Type.SKIP)) {
+                stms.add(0, res);
+            }
+        }
+
+        if (!changed) {
+            return stm;
+        } else if (stms.isEmpty()) {
+            return new Stm.Single(Stm.Single.Type.SKIP);
+        }
+        return stms.size() == 1 ? stms.get(0) : new Stm.Seq(stms);
+    }
+
+    public Stm visitNd(Stm.Nd stm) {
+        Live after = live, before = new Live(false);
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (Stm s : stm.stms) {
+            live = after.copy();
+            Stm res = s.accept(this);
+            changed |= res != s;
+            stms.add(res);
+            before.addAll(live);
+        }
+        live = before;
+        return changed ? new Stm.Nd(stms) : stm;
+    }
+
+    public Stm visitProcDef(Stm.ProcDef stm) {
+        return stm;
+    }
+
+    public Stm visitProcCall(Stm.ProcCall stm) {
+        live = Live.all();
+        return stm;
+    }
+
+    public Stm visitBExp(Stm.SB stm) {
+        read(stm.exp);
+        return stm;
+    }
+
+    public Stm visitAExp(Stm.SA stm) {
+        read(stm.exp);
+        return stm;
+    }
+
+    // either the variables named, or all variables but those named
+    private static class Live {
+        final Set<String> names = new HashSet<>();
+        boolean all;
+
+        Live(boolean all) {
+            this.all = all;
+        }
+
+        static Live all() {
+            return new Live(true);
+        }
+
+        static Live of(Collection<String> names) {
+            Live res = new Live(false);
+            res.names.addAll(names);
+            return res;
+        }
+
+        Live copy() {
+            Live res = of(names);
+            res.all = all;
+            return res;
+        }
+
+        boolean contains(String name) {
+            return all != names.contains(name);
+        }
+
+        void add(String name) {
+            if (all) {
+                names.remove(name);
+            } else {
+                names.add(name);
+            }
+        }
+
+        void addAll(Collection<String> names) {
+            for (String name : names) {
+                add(name);
+            }
+        }
+
+        void addAll(Live other) {
+            if (all && other.all) {
+                names.retainAll(other.names);
+            } else if (all) {
+                names.removeAll(other.names);
+            } else if (other.all) {
+                Set<String> read = new HashSet<>(names);
+                names.clear();
+                names.addAll(other.names);
+                names.removeAll(read);
+                all = true;
+            } else {
+                names.addAll(other.names);
+            }
+        }
+
+        void remove(String name) {
+            if (all) {
+                names.add(name);
+            } else {
+                names.remove(name);
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 
 import static imp2.TokenType.*;
 
@@ -26,13 +27,16 @@ class Debugger implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visitor
         printer = new Printer();
     }
 
-    void debug(Stm tree) {
+    // false if the program was aborted or ran into an error
+    boolean debug(Stm tree) {
         try {
             tree.accept(this);
+            return true;
         } catch (DebugException e) {
             logError(e.token, e.message);
+            return false;
         } catch (DebugAbort a) {
-            return;
+            return false;
         }
     }
 
@@ -62,15 +66,15 @@ class Debugger implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visitor
         System.out.println(indent + stm.accept(printer));
         if (stm.type == Stm.Single.Type.PRINT) {
             System.out.println("   Program State:");
-            for (String s : variables.keySet()) {
-                System.out.println("     " + s + " -> " + variables.get(s));
+            for (Map.Entry<String, Integer> e : new TreeMap<>(variables).entrySet()) {
+                System.out.println("     " + e.getKey() + " -> " + e.getValue());
             }
         }
         awaitEnter(true);
         if (stm.type == Stm.Single.Type.ABORT) {
-            throw new DebugAbort();
+            throw ABORT_SIGNAL;
         } else if (stm.type == Stm.Single.Type.BREAK) {
-            throw new DebugBreak();
+            throw BREAK_SIGNAL;
         }
         return null;
     }
@@ -173,6 +177,10 @@ class Debugger implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visitor
         if (stm.in.size() != proc.in.size() || stm.out.size() != proc.out.size()) {
             throw new DebugException(stm.name, "Argument Lists must match in length.");
         }
+        Stm body = proc.body();
+        if (body == null) {
+            throw new DebugException(stm.name, "Procedure body could not be parsed.");
+        }
         Map<String, Integer> pre_vars = new HashMap<>(variables);
         for (int i = 0; i < proc.in.size(); i++) {
             Integer arg = stm.in.get(i).accept(this);
@@ -180,7 +188,7 @@ class Debugger implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visitor
             variables.put(proc.in.get(i), arg);
             awaitEnter(false);
         }
-        proc.body.accept(this);
+        body.accept(this);
         for (int i = 0; i < proc.out.size(); i++) {
             Integer val = 0;
             if (variables.containsKey(proc.out.get(i))) {
@@ -256,17 +264,29 @@ class Debugger implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visitor
             } else {
                 return 0;
             }
-        } else { // aexp.atom.type == NUMBER
-            try {
-                return Integer.parseInt(aexp.atom.lexeme);
-            } catch (NumberFormatException e) {
-                throw new DebugException(aexp.atom, "Number Format Error.");
-            }
+        } else if (aexp.value != null) { // NUMBER
+            return aexp.value;
+        } else {
+            throw new DebugException(aexp.atom, "Number Format Error.");
         }
     }
 
-    static class DebugAbort extends RuntimeException {}
-    static class DebugBreak extends RuntimeException {}
+    // break and abort throw these same instances, which don't record where
+    // they were thrown, so neither allocates nor walks the stack
+    private static final DebugAbort ABORT_SIGNAL = new DebugAbort();
+    private static final DebugBreak BREAK_SIGNAL = new DebugBreak();
+
+    static class DebugAbort extends RuntimeException {
+        DebugAbort() {
+            super(null, null, false, false);
+        }
+    }
+
+    static class DebugBreak extends RuntimeException {
+        DebugBreak() {
+            super(null, null, false, false);
+        }
+    }
 
     static class DebugException extends RuntimeException {
         Token token;
@@ -0,0 +1,47 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Errors collected while a phase runs off the main thread. They are
+ * reported through Imp.logDirectError in their original order by flush().
+ */
+class Diagnostics {
+
+    private final List<Token> where;
+    private final List<String> messages;
+
+    Diagnostics() {
+        where = new ArrayList<>();
+        messages = new ArrayList<>();
+    }
+
+    void report(Token token, String message) {
+        where.add(token);
+        messages.add(message);
+    }
+
+    boolean isEmpty() {
+        return where.isEmpty();
+    }
+
+    void addAll(Diagnostics other) {
+        where.addAll(other.where);
+        messages.addAll(other.messages);
+    }
+
+    void shiftLines(int lines) {
+        for (Token t : where) {
+            t.line += lines;
+        }
+    }
+
+    void flush() {
+        for (int i = 0; i < where.size(); i++) {
+            Imp.logDirectError(where.get(i), messages.get(i));
+        }
+        where.clear();
+        messages.clear();
+    }
+}
@@ -0,0 +1,173 @@
+package imp2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * What calling a procedure can do with the variables of its caller, so a
+ * call only has to save and restore the variables the procedure may change
+ * instead of copying all of them.
+ *
+ * A procedure reads what its body reads apart from its parameters, and,
+ * since variables are scoped dynamically, what the procedures it calls read;
+ * print reads all variables. It writes its parameters and what its body
+ * assigns. The procedures it calls restore what they write themselves,
+ * unless they are left with a break, which a loop around the call may catch,
+ * so what those write is written by the caller as well. The summaries of
+ * recursive procedures grow until they don't change anymore.
+ *
+ * The summaries hold for the procedures defined at the time, so they are
+ * dropped whenever a procedure is defined. Procedures that define others, or
+ * call ones whose body hasn't been parsed yet, may write any variable.
+ */
+class Effects {
+
+    static class Summary {
+        final Set<String> reads = new TreeSet<>(), writes = new TreeSet<>();
+        boolean readsAll, writesAll;
+
+        // whether a break can leave the procedure
+        boolean breaks;
+
+        // the slots of the variables it writes, once resolved
+        int[] slots;
+
+        // the procedures it may call whose bodies weren't parsed yet
+        private final List<Stm.ProcDef> pending = new ArrayList<>();
+
+        private boolean valid() {
+            for (Stm.ProcDef proc : pending) {
+                if (proc.body != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // adds what calling the procedure summarized by callee does, true if that changed anything
+        private boolean call(Summary callee, List<String> in, boolean outsideLoops) {
+            int size = reads.size() + writes.size() + pending.size();
+            boolean readsAllBefore = readsAll, writesAllBefore = writesAll, breaksBefore = breaks;
+
+            for (String name : callee.reads) {
+                if (!in.contains(name)) {
+                    reads.add(name);
+                }
+            }
+            readsAll |= callee.readsAll;
+            writesAll |= callee.writesAll;
+            if (callee.breaks) {
+                writes.addAll(callee.writes);
+                breaks |= outsideLoops;
+            }
+            for (Stm.ProcDef proc : callee.pending) {
+                if (!pending.contains(proc)) {
+                    pending.add(proc);
+                }
+            }
+
+            return size != reads.size() + writes.size() + pending.size() ||
+                readsAllBefore != readsAll || writesAllBefore != writesAll || breaksBefore != breaks;
+        }
+    }
+
+    private final Map<String, Stm.ProcDef> procedures;
+    private final Map<Stm.ProcDef, Summary> summaries = new HashMap<>();
+
+    Effects(Map<String, Stm.ProcDef> procedures) {
+        this.procedures = procedures;
+    }
+
+    void clear() {
+        summaries.clear();
+    }
+
+    Summary of(Stm.ProcDef proc) {
+        Summary res = summaries.get(proc);
+        if (res == null || !res.valid()) {
+            analyze(proc);
+            res = summaries.get(proc);
+        }
+        return res;
+    }
+
+    String report() {
+        StringBuilder stringBuilder = new StringBuilder("Effects");
+        for (Stm.ProcDef proc : new TreeMap<>(procedures).values()) {
+            Summary summary = of(proc);
+            stringBuilder.append("\n  ").append(proc.name.lexeme).append("(").append(String.join(", ", proc.in))
+                .append("; ").append(String.join(", ", proc.out)).append(")")
+                .append("\n    reads -> ").append(summary.readsAll ? "all variables" : names(summary.reads))
+                .append("\n    writes -> ").append(summary.writesAll ? "all variables" : names(summary.writes));
+            if (summary.breaks) {
+                stringBuilder.append("\n    may be left with break");
+            }
+        }
+        return stringBuilder.toString();
+    }
+
+    private static String names(Set<String> names) {
+        return names.isEmpty() ? "nothing" : String.join(", ", names);
+    }
+
+    // summarizes the procedure and all it may call with the definitions known now
+    private void analyze(Stm.ProcDef proc) {
+        Map<Stm.ProcDef, Summary> found = new LinkedHashMap<>();
+        Map<Stm.ProcDef, Uses> bodies = new HashMap<>();
+        Deque<Stm.ProcDef> work = new ArrayDeque<>(List.of(proc));
+        while (!work.isEmpty()) {
+            Stm.ProcDef p = work.pop();
+            if (found.containsKey(p)) {
+                continue;
+            }
+            Summary summary = new Summary();
+            found.put(p, summary);
+            summary.writes.addAll(p.in);
+
+            // parsing it here would report its errors before it's called
+            if (p.body == null) {
+                summary.pending.add(p);
+                summary.readsAll = summary.writesAll = true;
+                continue;
+            }
+
+            Uses uses = Uses.of(p.body);
+            bodies.put(p, uses);
+            summary.reads.addAll(uses.reads);
+            summary.reads.removeAll(p.in);
+            summary.writes.addAll(uses.assigned);
+            summary.readsAll = uses.prints;
+            summary.writesAll = uses.defines;
+            summary.breaks = uses.breaks;
+            for (String name : uses.called) {
+                Stm.ProcDef callee = procedures.get(name);
+                if (callee != null) {
+                    work.push(callee);
+                }
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Stm.ProcDef, Uses> body : bodies.entrySet()) {
+                Summary summary = found.get(body.getKey());
+                for (String name : body.getValue().called) {
+                    Summary callee = found.get(procedures.get(name));
+                    if (callee != null) {
+                        changed |= summary.call(callee, body.getKey().in, body.getValue().calledOutside.contains(name));
+                    }
+                }
+            }
+        }
+        summaries.putAll(found);
+    }
+}
@@ -0,0 +1,108 @@
+package imp2;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static imp2.TokenType.*;
+
+/**
+ * Hash-consing of expressions. Building an expression that is structurally
+ * equal to one built before through the same table returns the earlier
+ * node, which is then marked as shared. Since the children are built through
+ * the table as well, two expressions are equal exactly if their operators
+ * are and their children are the same nodes.
+ *
+ * Numbers that don't fit into an int are never shared, so the runtime error
+ * they cause points at the place they occur.
+ */
+class ExpressionTable {
+
+    private final Map<Key, Object> nodes = new HashMap<>();
+
+    void clear() {
+        nodes.clear();
+    }
+
+    AExp atomic(Token atom) {
+        AExp.Atomic res = new AExp.Atomic(atom);
+        if (atom.type == NUMBER && res.value == null) {
+            return res;
+        }
+        return aexp(new Key(atom.type, atom.lexeme, null, null), () -> res);
+    }
+
+    AExp binary(AExp left, AExp right, AExp.Binary.OpType operator) {
+        return aexp(new Key(operator, null, left, right), () -> new AExp.Binary(left, right, operator));
+    }
+
+    BExp atomic(BExp.Atomic.Type type) {
+        return bexp(new Key(type, null, null, null), () -> new BExp.Atomic(type));
+    }
+
+    BExp not(BExp exp) {
+        return bexp(new Key(null, null, exp, null), () -> new BExp.Not(exp));
+    }
+
+    BExp binary(BExp left, BExp right, BExp.Binary.OpType operator) {
+        return bexp(new Key(operator, null, left, right), () -> new BExp.Binary(left, right, operator));
+    }
+
+    BExp comparison(AExp left, AExp right, BExp.Comparison.OpType operator) {
+        return bexp(new Key(operator, null, left, right), () -> new BExp.Comparison(left, right, operator));
+    }
+
+    private AExp aexp(Key key, Supplier<AExp> create) {
+        AExp res = (AExp) nodes.get(key);
+        if (res != null) {
+            res.shared = true;
+        } else {
+            res = create.get();
+            nodes.put(key, res);
+        }
+        return res;
+    }
+
+    private BExp bexp(Key key, Supplier<BExp> create) {
+        BExp res = (BExp) nodes.get(key);
+        if (res != null) {
+            res.shared = true;
+        } else {
+            res = create.get();
+            nodes.put(key, res);
+        }
+        return res;
+    }
+
+    // children are compared by identity, as they are hash-consed already
+    private static class Key {
+        final Enum<?> operator;
+        final String text;
+        final Object left, right;
+
+        Key(Enum<?> operator, String text, Object left, Object right) {
+            this.operator = operator;
+            this.text = text;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return operator == k.operator && left == k.left && right == k.right &&
+                (text == null ? k.text == null : text.equals(k.text));
+        }
+
+        @Override
+        public int hashCode() {
+            int res = operator == null ? 0 : operator.hashCode();
+            res = 31 * res + (text == null ? 0 : text.hashCode());
+            res = 31 * res + System.identityHashCode(left);
+            return 31 * res + System.identityHashCode(right);
+        }
+    }
+}
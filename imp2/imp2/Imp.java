@@ -5,25 +5,53 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Imp {
 
-    private static boolean hadError, multiline, debug;
+    private static boolean hadError, multiline, debug, lazy, cache, incremental, parallel, stream, cse, noOptimize, dumpIr, slots, vm, jvm, closures, quicken;
 
     private static Interpreter interpreter;
+    private static SlotInterpreter slotInterpreter;
+    private static VirtualMachine virtualMachine;
+    private static ClosureInterpreter closureInterpreter;
+    private static NodeInterpreter nodeInterpreter;
     private static Debugger debugger;
+    private static Optimizer optimizer;
+    private static AstCache astCache;
+    private static Map<Path, IncrementalFile> loaded;
 
     public static void main(String[] args) {
         List<String> input = Arrays.asList(args);
 
         multiline = input.contains("--multiline") || input.contains("-m");
         debug = input.contains("--debug") || input.contains("-d");
-
-        int argcount = (multiline ? 1 : 0) + (debug ? 1 : 0);
+        lazy = input.contains("--lazy") || input.contains("-l");
+        cache = input.contains("--cache") || input.contains("-c");
+        incremental = input.contains("--incremental") || input.contains("-i");
+        parallel = input.contains("--parallel") || input.contains("-p");
+        stream = input.contains("--stream") || input.contains("-s");
+        cse = input.contains("--cse") || input.contains("-e");
+        noOptimize = input.contains("--no-optimize") || input.contains("-n");
+        dumpIr = input.contains("--dump-ir") || input.contains("-r");
+        slots = input.contains("--slots") || input.contains("-f");
+        vm = input.contains("--vm") || input.contains("-v");
+        jvm = input.contains("--jvm") || input.contains("-j");
+        closures = input.contains("--closures") || input.contains("-t");
+        quicken = input.contains("--quicken") || input.contains("-q");
+
+        int argcount = (multiline ? 1 : 0) + (debug ? 1 : 0) + (lazy ? 1 : 0) + (cache ? 1 : 0) + (incremental ? 1 : 0) +
+            (parallel ? 1 : 0) + (stream ? 1 : 0) + (cse ? 1 : 0) +
+            (noOptimize ? 1 : 0) + (dumpIr ? 1 : 0) + (slots ? 1 : 0) + (vm ? 1 : 0) + (jvm ? 1 : 0) + (closures ? 1 : 0) +
+            (quicken ? 1 : 0);
         if (argcount == args.length) {
             repl();
         } else {
@@ -63,9 +91,17 @@ public class Imp {
                     System.err.println("Need to specify at least one file to load.");
                     return;
                 }
+                List<String> files = new ArrayList<>();
                 for (int i = 1; i < args.length; i++) {
                     if (args[i].isEmpty()) { continue; }
-                    runFile(args[i]);
+                    files.add(args[i]);
+                }
+                if (parallel && !incremental && !stream) {
+                    runFiles(files);
+                } else {
+                    for (String file : files) {
+                        runFile(file);
+                    }
                 }
                 break;
 
@@ -76,6 +112,30 @@ public class Imp {
                 }
                 throw new ImpQuit();
 
+            case ":o": case ":optimizations":
+                if (args.length != 1) {
+                    System.err.println("Optimizations command takes no arguments.");
+                    return;
+                }
+                System.out.println(optimizer.report());
+                break;
+
+            case ":e": case ":effects":
+                if (args.length != 1) {
+                    System.err.println("Effects command takes no arguments.");
+                    return;
+                }
+                System.out.println(new Effects(procedures()).report());
+                break;
+
+            case ":s": case ":specializations":
+                if (args.length != 1) {
+                    System.err.println("Specializations command takes no arguments.");
+                    return;
+                }
+                System.out.println(nodeInterpreter.report());
+                break;
+
             case ":c": case ":clear":
                 if (args.length != 1) {
                     System.err.println("Clear command takes no arguments.");
@@ -90,9 +150,117 @@ public class Imp {
     }
 
     private static void runFile(String s) {
+        if (incremental) {
+            reloadFile(s);
+            return;
+        } else if (stream) {
+            streamFile(s);
+            return;
+        }
+
+        // the file is mapped and decoded through a small window instead of
+        // being read into a String, so large files don't need twice their size in heap
+        try (SourceFile file = new SourceFile(Paths.get(s))) {
+            if (file.size() == 0) {
+                return;
+            }
+
+            hadError = false;
+
+            // unchanged files are loaded from the cache without being lexed or parsed
+            byte[] key = null;
+            if (cache) {
+                key = file.digest();
+                Stm tree = astCache.load(key);
+                if (tree != null) {
+                    execute(tree);
+                    return;
+                }
+            }
+
+            // procedure bodies in loaded files can be left unparsed until they are called,
+            // unless the tree goes into the cache
+            TokenBuffer tokens;
+            if (file.size() >= ChunkedLexer.THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+                tokens = new ChunkedLexer().lex(file);
+            } else {
+                Lexer lexer = new Lexer();
+                tokens = lexer.lex(file.reader());
+            }
+
+            Stm tree = parse(tokens, lazy && !cache);
+            if (tree != null) {
+                if (cache) {
+                    astCache.store(key, tree);
+                }
+                execute(tree);
+            }
+        } catch (IOException e) {
+            System.out.println("for filename " + s + ": " + e.getMessage());
+        }
+    }
+
+    // all files are read, lexed and parsed at once, and executed in order
+    private static void runFiles(List<String> files) {
+        List<ForkJoinTask<ParallelLoader.Loaded>> tasks = new ParallelLoader(lazy, cache ? astCache : null).load(files);
+        for (int i = 0; i < files.size(); i++) {
+            ParallelLoader.Loaded file = tasks.get(i).join();
+            if (file.failure != null) {
+                System.out.println("for filename " + files.get(i) + ": " + file.failure.getMessage());
+                continue;
+            } else if (file.empty) {
+                continue;
+            }
+
+            hadError = false;
+            file.diagnostics.flush();
+
+            if (file.lexerError) {
+                log("Lexer Error. Aborting.");
+            } else if (file.tree == null || hadError) {
+                log("Parsing Error. Aborting.");
+            } else {
+                execute(file.tree);
+            }
+        }
+    }
+
+    // every top-level instruction is executed as soon as it is parsed, so
+    // output starts right away and only one instruction is in memory at a time
+    private static void streamFile(String s) {
+        try (SourceFile file = new SourceFile(Paths.get(s))) {
+            hadError = false;
+
+            StatementStream statements = new StatementStream(file.reader());
+            for (TokenBuffer tokens = statements.next(); tokens != null; tokens = statements.next()) {
+                Stm tree = parse(tokens, lazy);
+                if (tree == null || !execute(tree)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("for filename " + s + ": " + e.getMessage());
+        }
+    }
+
+    // files loaded before are only lexed and parsed again where they changed
+    private static void reloadFile(String s) {
         try {
-            byte[] bytes = Files.readAllBytes(Paths.get(s));
-            run(new String(bytes, Charset.defaultCharset()));
+            Path path = Paths.get(s).toAbsolutePath().normalize();
+            String program = new String(Files.readAllBytes(path), Charset.defaultCharset());
+            if (program.isEmpty()) {
+                return;
+            }
+
+            hadError = false;
+
+            Stm tree = loaded.computeIfAbsent(path, p -> new IncrementalFile()).load(program);
+            if (tree != null) {
+                execute(tree);
+            } else {
+                // reports the errors that kept the file from being split into units
+                run(program);
+            }
         } catch (IOException e) {
             System.out.println("for filename " + s + ": " + e.getMessage());
         }
@@ -106,34 +274,59 @@ public class Imp {
         hadError = false;
 
         Lexer lexer = new Lexer();
-        List<Token> tokens = lexer.lex(program);
+        Stm tree = parse(lexer.lex(program), false);
+        if (tree != null) {
+            execute(tree);
+        }
+    }
 
+    private static Stm parse(TokenBuffer tokens, boolean lazyBodies) {
         if (hadError) {
             log("Lexer Error. Aborting.");
-            return;
+            return null;
         }
 
-        Parser parser = new Parser();
+        Parser parser = new Parser(true, lazyBodies);
         Stm tree = parser.parse(tokens);
 
         if (tree == null || hadError) {
             log("Parsing Error. Aborting.");
-            return;
+            return null;
         }
 
+        return tree;
+    }
+
+    // false if the program was aborted or ran into an error
+    private static boolean execute(Stm tree) {
         //Printer printer = new Printer();
         //System.out.println(printer.print(tree));
 
+        // the debugger shows the program as it was written
+        if (!noOptimize && !debug) {
+            tree = optimizer.optimize(tree);
+        }
+
+        boolean completed;
         if (debug) {
-            debugger.debug(tree);
+            completed = debugger.debug(tree);
+        } else if (vm || jvm) {
+            completed = virtualMachine.interpret(tree);
+        } else if (closures) {
+            completed = closureInterpreter.interpret(tree);
+        } else if (quicken) {
+            completed = nodeInterpreter.interpret(tree);
+        } else if (slots) {
+            completed = slotInterpreter.interpret(tree);
         } else {
-            interpreter.interpret(tree);
+            completed = interpreter.interpret(tree);
         }
 
         if (hadError) {
             log("Runtime Error. Aborting.");
-            return;
+            return false;
         }
+        return completed;
     }
 
     private static String readREPL(BufferedReader reader) throws IOException {
@@ -142,20 +335,22 @@ public class Imp {
             return reader.readLine();
         } else {
             System.out.print(">> ");
-            String res = reader.readLine();
-            while (res != null && (res.isEmpty() || res.charAt(res.length() - 1) != '!')) {
+            String first = reader.readLine();
+            if (first == null) {
+                return null;
+            }
+
+            StringBuilder res = new StringBuilder(first);
+            while (res.length() == 0 || res.charAt(res.length() - 1) != '!') {
                 System.out.print(">> ");
                 String tmp = reader.readLine();
                 if (tmp == null) {
-                    res = null;
-                } else {
-                    res += "\n" + tmp;
+                    return null;
                 }
+                res.append('\n').append(tmp);
             }
-            if (res != null) {
-                res = res.substring(0, res.length() - 1);
-            }
-            return res;
+            res.setLength(res.length() - 1);
+            return res.toString();
         }
     }
 
@@ -165,8 +360,29 @@ public class Imp {
 
     private static void reset() {
         hadError = false;
-        interpreter = new Interpreter();
+        interpreter = new Interpreter(cse);
+        slotInterpreter = new SlotInterpreter();
+        virtualMachine = new VirtualMachine(dumpIr, jvm);
+        closureInterpreter = new ClosureInterpreter();
+        nodeInterpreter = new NodeInterpreter();
         debugger = new Debugger();
+        optimizer = new Optimizer(dumpIr, procedures());
+        astCache = new AstCache();
+        loaded = new HashMap<>();
+    }
+
+    // the procedures defined in whichever way programs are run
+    private static Map<String, Stm.ProcDef> procedures() {
+        if (debug) {
+            return debugger.procedures;
+        } else if (vm || jvm) {
+            return virtualMachine.procedures;
+        } else if (closures) {
+            return closureInterpreter.procedures;
+        } else if (quicken) {
+            return nodeInterpreter.procedures;
+        }
+        return slots ? slotInterpreter.procedures : interpreter.procedures;
     }
 
     private static void markError() {
@@ -0,0 +1,322 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A loaded file that is kept around to be reloaded incrementally.
+ *
+ * The file is split into units, one per top-level instruction, at the
+ * semicolons outside of any block or parentheses. When the file is loaded
+ * again, only the units around the changed characters are lexed and parsed
+ * again. The trees of all other units are reused as they are, with their
+ * line numbers moved if the edit added or removed lines before them.
+ */
+class IncrementalFile {
+
+    private String text;
+    private List<Unit> units;
+
+    // the names of the file, kept for as long as the file is
+    private final Symbols symbols = new Symbols();
+
+    IncrementalFile() {}
+
+    // the tree of text, or null if the file can't be split into units that
+    // parse, in which case nothing is reported and nothing is kept
+    Stm load(String newText) {
+        List<Unit> res = text != null ? reload(newText) : null;
+        if (res == null) {
+            TokenBuffer tokens = lex(newText, 0, newText.length(), 1, 1);
+            res = tokens != null ? split(tokens, 0, newText.length(), 1, 1, true) : null;
+        }
+
+        List<Stm> stms = new ArrayList<>();
+        if (res != null) {
+            for (Unit u : res) {
+                if (u.tree != null) {
+                    stms.add(u.tree);
+                }
+            }
+        }
+
+        if (stms.isEmpty()) {
+            text = null;
+            units = null;
+            return null;
+        }
+
+        text = newText;
+        units = res;
+        return stms.size() > 1 ? new Stm.Seq(stms) : stms.get(0);
+    }
+
+    private List<Unit> reload(String newText) {
+        int oldLength = text.length(), newLength = newText.length();
+        int shorter = Math.min(oldLength, newLength);
+
+        int prefix = 0;
+        while (prefix < shorter && text.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < shorter - prefix && text.charAt(oldLength - 1 - suffix) == newText.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+        if (prefix == oldLength && prefix == newLength) {
+            return units;
+        }
+
+        // the changed characters are [prefix, changeEnd) in the old text
+        int changeEnd = oldLength - suffix, delta = newLength - oldLength;
+        int first = unitAt(prefix), last = unitAt(Math.max(prefix, changeEnd - 1));
+
+        // units that start on the line the change ends on have their columns moved
+        while (last + 1 < units.size() && text.lastIndexOf('\n', units.get(last + 1).start - 1) < changeEnd) {
+            last++;
+        }
+
+        // the changed units have to end where an old unit did, or the units
+        // after them wouldn't be split the same way anymore
+        Unit a = units.get(first);
+        TokenBuffer tokens;
+        int to;
+        while (true) {
+            to = units.get(last).end + delta;
+            tokens = lex(newText, a.start, to, a.line, a.column);
+            if (tokens == null) {
+                return null;
+            } else if (to == newLength || endsUnit(tokens, to)) {
+                break;
+            }
+            last++;
+        }
+
+        List<Unit> changed = split(tokens, a.start, to, a.line, a.column, to == newLength);
+        if (changed == null) {
+            return null;
+        }
+
+        int lineDelta = count(newText, '\n', a.start, to) - count(text, '\n', a.start, to - delta);
+
+        List<Unit> res = new ArrayList<>(units.subList(0, first));
+        res.addAll(changed);
+        LineShifter shifter = new LineShifter(lineDelta);
+        for (Unit u : units.subList(last + 1, units.size())) {
+            if (u.tree != null && lineDelta != 0) {
+                u.tree.accept(shifter);
+            }
+            res.add(new Unit(u.start + delta, u.end + delta, u.line + lineDelta, u.column, u.tree));
+        }
+        return res;
+    }
+
+    // null if the characters don't lex
+    private TokenBuffer lex(String text, int from, int to, int line, int column) {
+        Diagnostics diagnostics = new Diagnostics();
+        TokenBuffer tokens = new Lexer(symbols, diagnostics).lex(text, from, to, line, column);
+        return diagnostics.isEmpty() ? tokens : null;
+    }
+
+    // whether the tokens end with a semicolon outside of any block right before to
+    private static boolean endsUnit(TokenBuffer tokens, int to) {
+        List<Integer> semicolons = Parser.topLevelSemicolons(tokens);
+        int last = tokens.size() - 2;
+        return semicolons != null && !semicolons.isEmpty() && semicolons.get(semicolons.size() - 1) == last &&
+            tokens.start(last) == to - 1;
+    }
+
+    // splits tokens at the semicolons outside of any block and parses the
+    // instructions in between, null if one of them doesn't parse. Only the
+    // unit at the end of the file may be empty.
+    private static List<Unit> split(TokenBuffer tokens, int from, int to, int line, int column, boolean atEnd) {
+        List<Integer> semicolons = Parser.topLevelSemicolons(tokens);
+        if (semicolons == null) {
+            return null;
+        }
+
+        List<Unit> res = new ArrayList<>();
+        Parser parser = new Parser();
+        int unitStart = 0, charStart = from, eof = tokens.size() - 1;
+
+        for (int i : semicolons) {
+            if (i == unitStart) {
+                return null;
+            }
+            Stm tree = parser.parseUnit(tokens.slice(unitStart, i));
+            if (tree == null) {
+                return null;
+            }
+            int charEnd = tokens.start(i) + 1;
+            res.add(new Unit(charStart, charEnd, line, column, tree));
+
+            unitStart = i + 1;
+            charStart = charEnd;
+            line = tokens.line(i);
+            column = tokens.column(i) + 1;
+        }
+
+        if (atEnd) {
+            Stm tree = null;
+            if (unitStart < eof) {
+                tree = parser.parseUnit(tokens.slice(unitStart, eof));
+                if (tree == null) {
+                    return null;
+                }
+            }
+            res.add(new Unit(charStart, to, line, column, tree));
+        }
+        return res;
+    }
+
+    private int unitAt(int position) {
+        int low = 0, high = units.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (units.get(mid).start <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static int count(String s, char c, int from, int to) {
+        int res = 0;
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == c) {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    // a top-level instruction and the characters [start, end) it was parsed
+    // from, including the semicolon after it, starting at line and column
+    private static class Unit {
+        final int start, end, line, column;
+        final Stm tree;
+
+        Unit(int start, int end, int line, int column, Stm tree) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.column = column;
+            this.tree = tree;
+        }
+    }
+
+    // moves every token in a tree down by a number of lines; tokens shared
+    // between nodes are only moved once
+    private static class LineShifter implements Stm.Visitor<Void>, BExp.Visitor<Void>, AExp.Visitor<Void> {
+
+        private final int lines;
+        private final Map<Token, Boolean> shifted = new IdentityHashMap<>();
+
+        LineShifter(int lines) {
+            this.lines = lines;
+        }
+
+        private void shift(Token token) {
+            if (shifted.put(token, true) == null) {
+                token.line += lines;
+            }
+        }
+
+        public Void visitSingle(Stm.Single stm) {
+            return null;
+        }
+
+        public Void visitAssign(Stm.Assign stm) {
+            return stm.exp.accept(this);
+        }
+
+        public Void visitIf(Stm.If stm) {
+            stm.condition.accept(this);
+            stm.taken.accept(this);
+            return stm.notTaken.accept(this);
+        }
+
+        public Void visitWhile(Stm.While stm) {
+            stm.condition.accept(this);
+            return stm.body.accept(this);
+        }
+
+        public Void visitFor(Stm.For stm) {
+            stm.start.accept(this);
+            stm.end.accept(this);
+            return stm.body.accept(this);
+        }
+
+        public Void visitVar(Stm.Var stm) {
+            stm.decl.accept(this);
+            return stm.body.accept(this);
+        }
+
+        public Void visitSeq(Stm.Seq stm) {
+            for (Stm s : stm.stms) {
+                s.accept(this);
+            }
+            return null;
+        }
+
+        public Void visitNd(Stm.Nd stm) {
+            for (Stm s : stm.stms) {
+                s.accept(this);
+            }
+            return null;
+        }
+
+        public Void visitProcDef(Stm.ProcDef stm) {
+            shift(stm.name);
+            return stm.body.accept(this);
+        }
+
+        public Void visitProcCall(Stm.ProcCall stm) {
+            shift(stm.name);
+            for (AExp a : stm.in) {
+                a.accept(this);
+            }
+            return null;
+        }
+
+        public Void visitBExp(Stm.SB stm) {
+            return stm.exp.accept(this);
+        }
+
+        public Void visitAExp(Stm.SA stm) {
+            return stm.exp.accept(this);
+        }
+
+        public Void visitBinary(BExp.Binary bexp) {
+            bexp.left.accept(this);
+            return bexp.right.accept(this);
+        }
+
+        public Void visitNot(BExp.Not bexp) {
+            return bexp.exp.accept(this);
+        }
+
+        public Void visitComparison(BExp.Comparison bexp) {
+            bexp.left.accept(this);
+            return bexp.right.accept(this);
+        }
+
+        public Void visitAtomic(BExp.Atomic bexp) {
+            return null;
+        }
+
+        public Void visitBinary(AExp.Binary aexp) {
+            aexp.left.accept(this);
+            return aexp.right.accept(this);
+        }
+
+        public Void visitAtomic(AExp.Atomic aexp) {
+            shift(aexp.atom);
+            return null;
+        }
+    }
+}
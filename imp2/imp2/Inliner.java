@@ -0,0 +1,188 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static imp2.TokenType.*;
+
+/**
+ * Inlines calls to small procedures that don't call any others, which saves
+ * copying all variables for every call. Each parameter and each variable the
+ * body assigns is declared with var around the body, so they get their
+ * values back at the end as they would after a call, and the outputs are
+ * passed through temporaries named after them, like $res. Bodies that can
+ * print, abort, fail or break out of the call aren't inlined, since the
+ * declarations would be visible then.
+ *
+ * Calls that pass numbers use, or inline, the version of the procedure the
+ * partial evaluator specialized for them.
+ *
+ * Procedures can be defined again at any time, so the call is kept along
+ * with the definition it was optimized for, and the interpreter only runs the
+ * inlined body or the specialized procedure while that is still the
+ * procedure's definition.
+ */
+class Inliner implements Stm.Visitor<Stm> {
+
+    // the number of nodes up to which a procedure body is inlined
+    static final int MAX_SIZE = 48;
+
+    private final Optimizer optimizer;
+
+    // the definitions known before the region, and those met in it so far
+    private final Function<String, Stm.ProcDef> known;
+    private final Map<String, Stm.ProcDef> procedures = new HashMap<>();
+
+    Inliner(Optimizer optimizer, Function<String, Stm.ProcDef> known) {
+        this.optimizer = optimizer;
+        this.known = known;
+    }
+
+    Stm run(Stm region) {
+        return region.accept(this);
+    }
+
+    private boolean inlinable(Stm.ProcCall call, Stm.ProcDef proc) {
+        if (proc.body == null ||
+            call.in.size() != proc.in.size() || call.out.size() != proc.out.size()) {
+            return false;
+        }
+        for (AExp a : call.in) {
+            if (Uses.of(a).observes) {
+                return false;
+            }
+        }
+        Uses uses = Uses.of(proc.body);
+        return !uses.observes && !uses.breaks && Optimizer.size(proc.body) <= MAX_SIZE;
+    }
+
+    private Stm inline(Stm.ProcCall call, Stm.ProcDef proc) {
+        Token at = call.name;
+
+        Set<String> locals = new LinkedHashSet<>(Uses.of(proc.body).assigned);
+        locals.removeAll(proc.in);
+
+        List<Stm> body = new ArrayList<>();
+        body.add(proc.body);
+        for (String name : proc.out) {
+            body.add(new Stm.Assign("$" + name, variable(at, name)));
+        }
+        Stm res = new Stm.Seq(body);
+
+        List<String> names = new ArrayList<>(locals);
+        for (int i = names.size() - 1; i >= 0; i--) {
+            res = new Stm.Var(names.get(i), variable(at, names.get(i)), res);
+        }
+        // later arguments see the parameters bound before them, as in a call
+        for (int i = proc.in.size() - 1; i >= 0; i--) {
+            res = new Stm.Var(proc.in.get(i), call.in.get(i), res);
+        }
+
+        List<Stm> stms = new ArrayList<>();
+        stms.add(res);
+        for (int i = 0; i < call.out.size(); i++) {
+            stms.add(new Stm.Assign(call.out.get(i), variable(at, "$" + proc.out.get(i))));
+        }
+        res = new Stm.Seq(stms);
+        for (int i = proc.out.size() - 1; i >= 0; i--) {
+            res = new Stm.Var("$" + proc.out.get(i), new AExp.Atomic(new Token(NUMBER, at.line, at.index, "0")), res);
+        }
+        return res;
+    }
+
+    private static AExp variable(Token at, String name) {
+        return new AExp.Atomic(new Token(IDENTIFIER, at.line, at.index, name));
+    }
+
+    public Stm visitSingle(Stm.Single stm) {
+        return stm;
+    }
+
+    public Stm visitAssign(Stm.Assign stm) {
+        return stm;
+    }
+
+    public Stm visitIf(Stm.If stm) {
+        Stm taken = stm.taken.accept(this), notTaken = stm.notTaken.accept(this);
+        return taken == stm.taken && notTaken == stm.notTaken ? stm : new Stm.If(stm.condition, taken, notTaken);
+    }
+
+    public Stm visitWhile(Stm.While stm) {
+        Stm body = stm.body.accept(this);
+        return body == stm.body ? stm : new Stm.While(stm.condition, body);
+    }
+
+    public Stm visitFor(Stm.For stm) {
+        Stm body = stm.body.accept(this);
+        return body == stm.body ? stm : new Stm.For(stm.loopvar, stm.start, stm.end, body);
+    }
+
+    public Stm visitVar(Stm.Var stm) {
+        Stm body = stm.body.accept(this);
+        return body == stm.body ? stm : new Stm.Var(stm.name, stm.decl, body);
+    }
+
+    public Stm visitSeq(Stm.Seq stm) {
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (Stm s : stm.stms) {
+            Stm res = s.accept(this);
+            changed |= res != s;
+            stms.add(res);
+        }
+        return changed ? new Stm.Seq(stms) : stm;
+    }
+
+    public Stm visitNd(Stm.Nd stm) {
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (Stm s : stm.stms) {
+            Stm res = s.accept(this);
+            changed |= res != s;
+            stms.add(res);
+        }
+        return changed ? new Stm.Nd(stms) : stm;
+    }
+
+    public Stm visitProcDef(Stm.ProcDef stm) {
+        procedures.put(stm.name.lexeme, stm);
+        return stm;
+    }
+
+    public Stm visitProcCall(Stm.ProcCall stm) {
+        Stm.ProcDef proc = procedures.get(stm.name.lexeme);
+        if (proc == null) {
+            proc = known.apply(stm.name.lexeme);
+        }
+        if (proc == null) {
+            return stm;
+        }
+
+        Stm.ProcDef specialized = optimizer.partialEvaluator.specialize(proc, stm.in);
+        Stm.ProcCall res = new Stm.ProcCall(stm.name, stm.in, stm.out);
+        res.target = proc;
+        if (inlinable(stm, specialized != null ? specialized : proc)) {
+            optimizer.count(Optimizer.Rule.INLINING, 1);
+            res.inlined = inline(stm, specialized != null ? specialized : proc);
+        } else if (specialized != null) {
+            optimizer.count(Optimizer.Rule.SPECIALIZATION, 1);
+            res.specialized = specialized;
+        } else {
+            return stm;
+        }
+        return res;
+    }
+
+    public Stm visitBExp(Stm.SB stm) {
+        return stm;
+    }
+
+    public Stm visitAExp(Stm.SA stm) {
+        return stm;
+    }
+}
@@ -6,27 +6,43 @@ import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 
 import static imp2.TokenType.*;
 
-class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visitor<Integer> {
+class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visitor<Integer>, AExp.Environment {
 
     Map<String, Integer> variables;
     Map<String, Stm.ProcDef> procedures;
 
+    // values of shared expressions, if they are cached
+    private final SubexpressionCache cache;
+
+    // what the procedures defined can change, so calls don't copy all variables
+    private final Effects effects;
+
     public Interpreter() {
+        this(false);
+    }
+
+    Interpreter(boolean cacheExpressions) {
         variables = new HashMap<>();
         procedures = new HashMap<>();
+        cache = cacheExpressions ? new SubexpressionCache() : null;
+        effects = new Effects(procedures);
         reset();
     }
 
-    void interpret(Stm tree) {
+    // false if the program was aborted or ran into an error
+    boolean interpret(Stm tree) {
         try {
             tree.accept(this);
+            return true;
         } catch (InterpreterException e) {
             logError(e.token, e.message);
+            return false;
         } catch (InterpreterAbort a) {
-            return;
+            return false;
         }
     }
 
@@ -37,6 +53,33 @@ class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visi
     private void reset() {
         variables.clear();
         procedures.clear();
+        effects.clear();
+    }
+
+    // the value of an expression, through the visitor only if shared values
+    // are cached, since the entries are kept on the nodes it visits
+    private int value(AExp aexp) {
+        return cache != null ? aexp.accept(this) : aexp.evalInt(this);
+    }
+
+    private boolean value(BExp bexp) {
+        return cache != null ? bexp.accept(this) : bexp.evalBool(this);
+    }
+
+    private void assign(String name, Integer value) {
+        variables.put(name, value);
+        if (cache != null) {
+            cache.assigned(name);
+        }
+    }
+
+    // lists the variables by name, so the order doesn't depend on how they
+    // are stored or on the calls made before
+    static void print(Map<String, Integer> variables) {
+        System.out.println("Program State");
+        for (Map.Entry<String, Integer> e : new TreeMap<>(variables).entrySet()) {
+            System.out.println("  " + e.getKey() + " -> " + e.getValue());
+        }
     }
 
     public Void visitNd(Stm.Nd stm) {
@@ -48,25 +91,22 @@ class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visi
 
     public Void visitSingle(Stm.Single stm) {
         if (stm.type == Stm.Single.Type.PRINT) {
-            System.out.println("Program State");
-            for (String s : variables.keySet()) {
-                System.out.println("  " + s + " -> " + variables.get(s));
-            }
+            print(variables);
         } else if (stm.type == Stm.Single.Type.ABORT) {
-            throw new InterpreterAbort();
+            throw ABORT_SIGNAL;
         } else if (stm.type == Stm.Single.Type.BREAK) {
-            throw new InterpreterBreak();
+            throw BREAK_SIGNAL;
         }
         return null;
     }
 
     public Void visitAssign(Stm.Assign stm) {
-        variables.put(stm.name, stm.exp.accept(this));
+        assign(stm.name, value(stm.exp));
         return null;
     }
 
     public Void visitIf(Stm.If stm) {
-        if (stm.condition.accept(this)) {
+        if (value(stm.condition)) {
             stm.taken.accept(this);
         } else {
             stm.notTaken.accept(this);
@@ -75,8 +115,11 @@ class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visi
     }
 
     public Void visitWhile(Stm.While stm) {
+        if (stm.closed != null && closed(stm.closed)) {
+            return null;
+        }
         try {
-            while (stm.condition.accept(this)) {
+            while (value(stm.condition)) {
                 stm.body.accept(this);
             }
         } catch (InterpreterBreak b) {}
@@ -86,9 +129,12 @@ class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visi
 
     public Void visitFor(Stm.For stm) {
         try {
-            for (variables.put(stm.loopvar, stm.start.accept(this));
-                !variables.get(stm.loopvar).equals(stm.end.accept(this));
-                variables.put(stm.loopvar, variables.get(stm.loopvar) + 1)) {
+            assign(stm.loopvar, value(stm.start));
+            if (stm.closed != null && closed(stm.closed)) {
+                return null;
+            }
+            for (; variables.get(stm.loopvar) != value(stm.end);
+                assign(stm.loopvar, variables.get(stm.loopvar) + 1)) {
                 
                 stm.body.accept(this);
             }
@@ -97,18 +143,32 @@ class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visi
         return null;
     }
 
+    // sets the variables of a loop to their values after it, false if it has
+    // to run as usual since it wouldn't end or a variable would overflow
+    private boolean closed(ClosedForms.Form form) {
+        long[] start = new long[form.variables.size()];
+        for (int i = 0; i < start.length; i++) {
+            Integer value = variables.get(form.variables.get(i));
+            start[i] = value == null ? 0 : value;
+        }
+        return ClosedForms.apply(form, start, this, (i, value) -> assign(form.variables.get(i), value));
+    }
+
     public Void visitVar(Stm.Var stm) {
         boolean contains = variables.containsKey(stm.name);
         Integer prev = 0;
         if (contains) {
             prev = variables.get(stm.name);
         }
-        variables.put(stm.name, stm.decl.accept(this));
+        assign(stm.name, value(stm.decl));
         stm.body.accept(this);
         if (contains) {
-            variables.put(stm.name, prev);
+            assign(stm.name, prev);
         } else {
             variables.remove(stm.name);
+            if (cache != null) {
+                cache.assigned(stm.name);
+            }
         }
         return null;
     }
@@ -122,50 +182,96 @@ class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visi
 
     public Void visitProcDef(Stm.ProcDef stm) {
         procedures.put(stm.name.lexeme, stm);
+        effects.clear();
         return null;
     }
 
     public Void visitProcCall(Stm.ProcCall stm) {
-        if (!procedures.containsKey(stm.name.lexeme)) {
+        Stm.ProcDef proc = procedures.get(stm.name.lexeme);
+        if (stm.target != null && proc == stm.target) {
+            if (stm.inlined != null) {
+                stm.inlined.accept(this);
+                return null;
+            }
+            proc = stm.specialized;
+        } else if (proc == null) {
             throw new InterpreterException(stm.name, "Procedure undefined.");
         }
 
-        Stm.ProcDef proc = procedures.get(stm.name.lexeme);
         if (stm.in.size() != proc.in.size() || stm.out.size() != proc.out.size()) {
             throw new InterpreterException(stm.name, "Argument Lists must match in length.");
         }
-        Map<String, Integer> pre_vars = new HashMap<>(variables);
+        Stm body = proc.body();
+        if (body == null) {
+            throw new InterpreterException(stm.name, "Procedure body could not be parsed.");
+        }
+        // only the variables the procedure may change are saved, and null
+        // stands for one that wasn't defined
+        Effects.Summary summary = effects.of(proc);
+        Map<String, Integer> pre_vars;
+        if (summary.writesAll) {
+            pre_vars = new HashMap<>(variables);
+        } else {
+            pre_vars = new HashMap<>();
+            for (String name : summary.writes) {
+                pre_vars.put(name, variables.get(name));
+            }
+        }
         for (int i = 0; i < proc.in.size(); i++) {
-            variables.put(proc.in.get(i), stm.in.get(i).accept(this));
+            assign(proc.in.get(i), value(stm.in.get(i)));
+        }
+        body.accept(this);
+        Integer[] results = new Integer[proc.out.size()];
+        for (int i = 0; i < proc.out.size(); i++) {
+            results[i] = variables.containsKey(proc.out.get(i)) ? variables.get(proc.out.get(i)) : 0;
+        }
+        if (summary.writesAll) {
+            variables = pre_vars;
+        } else {
+            for (Map.Entry<String, Integer> saved : pre_vars.entrySet()) {
+                if (saved.getValue() == null) {
+                    variables.remove(saved.getKey());
+                } else {
+                    variables.put(saved.getKey(), saved.getValue());
+                }
+            }
         }
-        proc.body.accept(this);
         for (int i = 0; i < proc.out.size(); i++) {
-            pre_vars.put(stm.out.get(i), variables.containsKey(proc.out.get(i)) ? variables.get(proc.out.get(i)) : 0);
+            variables.put(stm.out.get(i), results[i]);
+        }
+        if (cache != null) {
+            cache.invalidateAll();
         }
-        variables = pre_vars;
         return null;
     }
 
     public Void visitBExp(Stm.SB stm) {
-        System.out.println("==> \033[3m" + (stm.exp.accept(this) ? "tt" : "ff") + "\033[0m");
+        System.out.println("==> \033[3m" + (value(stm.exp) ? "tt" : "ff") + "\033[0m");
         return null;
     }
 
     public Void visitAExp(Stm.SA stm) {
-        System.out.println("==> \033[3m" + stm.exp.accept(this) + "\033[0m");
+        System.out.println("==> \033[3m" + value(stm.exp) + "\033[0m");
         return null;
     }
 
     public Boolean visitBinary(BExp.Binary bexp) {
+        SubexpressionCache.Entry entry = cached(bexp);
+        if (entry != null && entry.valid()) {
+            return entry.value != 0;
+        }
+
         // IMP doesn't specify whether it uses short-circuit evaluation,
         // but because expressions don't have side-effects, there is no
         // harm in evaluating both sides of a boolean binary expression.
         Boolean left = bexp.left.accept(this), right = bexp.right.accept(this);
+        boolean res;
         if (bexp.operator == BExp.Binary.OpType.AND) {
-            return left && right;
+            res = left && right;
         } else {
-            return left || right;
+            res = left || right;
         }
+        return store(entry, res);
     }
 
     public Boolean visitNot(BExp.Not bexp) {
@@ -173,15 +279,20 @@ class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visi
     }
 
     public Boolean visitComparison(BExp.Comparison bexp) {
+        SubexpressionCache.Entry entry = cached(bexp);
+        if (entry != null && entry.valid()) {
+            return entry.value != 0;
+        }
+
         int left = bexp.left.accept(this), right = bexp.right.accept(this);
 
         switch (bexp.operator) {
-            case EQ:  return left == right;
-            case NEQ: return left != right;
-            case G:   return left >  right;
-            case GEQ: return left >= right;
-            case L:   return left <  right;
-            default:  return left <= right; // '<='
+            case EQ:  return store(entry, left == right);
+            case NEQ: return store(entry, left != right);
+            case G:   return store(entry, left >  right);
+            case GEQ: return store(entry, left >= right);
+            case L:   return store(entry, left <  right);
+            default:  return store(entry, left <= right); // '<='
         }
     }
 
@@ -193,12 +304,17 @@ class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visi
     }
 
     public Integer visitBinary(AExp.Binary aexp) {
+        SubexpressionCache.Entry entry = cached(aexp);
+        if (entry != null && entry.valid()) {
+            return entry.value;
+        }
+
         Integer left = aexp.left.accept(this), right = aexp.right.accept(this);
 
         switch (aexp.operator) {
-            case PLUS:  return left + right;
-            case MINUS: return left - right;
-            default:    return left * right;
+            case PLUS:  return store(entry, left + right);
+            case MINUS: return store(entry, left - right);
+            default:    return store(entry, left * right);
         }
     }
 
@@ -209,17 +325,60 @@ class Interpreter implements Stm.Visitor<Void>, BExp.Visitor<Boolean>, AExp.Visi
             } else {
                 return 0;
             }
-        } else { // NUMBER
-            try {
-                return Integer.parseInt(aexp.atom.lexeme);
-            } catch (NumberFormatException e) {
-                throw new InterpreterException(aexp.atom, "Number Format Error.");
-            }
+        } else if (aexp.value != null) { // NUMBER
+            return aexp.value;
+        } else {
+            throw new InterpreterException(aexp.atom, "Number Format Error.");
+        }
+    }
+
+    public int read(AExp.Atomic aexp) {
+        if (aexp.atom.type == IDENTIFIER) {
+            Integer value = variables.get(aexp.atom.lexeme);
+            return value == null ? 0 : value;
         }
+        throw new InterpreterException(aexp.atom, "Number Format Error.");
     }
 
-    private static class InterpreterAbort extends RuntimeException {}
-    private static class InterpreterBreak extends RuntimeException {}
+    // the cache entry of an expression that occurs more than once, if values are cached
+    private SubexpressionCache.Entry cached(AExp aexp) {
+        return cache != null && aexp.shared ? cache.entry(aexp) : null;
+    }
+
+    private SubexpressionCache.Entry cached(BExp bexp) {
+        return cache != null && bexp.shared ? cache.entry(bexp) : null;
+    }
+
+    private static int store(SubexpressionCache.Entry entry, int value) {
+        if (entry != null) {
+            entry.store(value);
+        }
+        return value;
+    }
+
+    private static boolean store(SubexpressionCache.Entry entry, boolean value) {
+        if (entry != null) {
+            entry.store(value ? 1 : 0);
+        }
+        return value;
+    }
+
+    // break and abort throw these same instances, which don't record where
+    // they were thrown, so neither allocates nor walks the stack
+    private static final InterpreterAbort ABORT_SIGNAL = new InterpreterAbort();
+    private static final InterpreterBreak BREAK_SIGNAL = new InterpreterBreak();
+
+    private static class InterpreterAbort extends RuntimeException {
+        InterpreterAbort() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static class InterpreterBreak extends RuntimeException {
+        InterpreterBreak() {
+            super(null, null, false, false);
+        }
+    }
 
     private static class InterpreterException extends RuntimeException {
         Token token;
@@ -1,101 +1,220 @@
 package imp2;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static imp2.TokenType.*;
 
 public class Lexer {
     
+    // size of the character window when lexing from a Reader
+    private static final int WINDOW = 1 << 16;
+
     private int line, lineindex, index;
-    private String program;
+    private CharSequence program;
+    private TokenBuffer res;
+    private final Symbols symbols;
 
-    public Lexer() {}
+    // collects errors instead of logging them directly, if set
+    private Diagnostics diagnostics;
 
-    List<Token> lex(String input) {
+    // when lexing from a Reader, program is a window over the input that
+    // starts at the absolute index base and keeps the current token from mark
+    private Reader in;
+    private char[] window;
+    private int base, mark;
+
+    public Lexer() {
+        this(new Symbols());
+    }
+
+    Lexer(Symbols symbols) {
+        this.symbols = symbols;
+    }
+
+    Lexer(Symbols symbols, Diagnostics diagnostics) {
+        this.symbols = symbols;
+        this.diagnostics = diagnostics;
+    }
+
+    TokenBuffer lex(CharSequence input) {
         program = input;
+        in = null;
+        base = 0;
+
+        res = new TokenBuffer(input, symbols);
+        return scan(0, 1, 1);
+    }
 
-        List<Token> res = new ArrayList<>();
-        resetHead();
+    // lexes the characters of input from index from up to index to, as if
+    // from was at the given line and column, with positions as in all of input
+    TokenBuffer lex(CharSequence input, int from, int to, int startLine, int startColumn) {
+        program = to == input.length() ? input : CharBuffer.wrap(input, 0, to);
+        in = null;
+        base = 0;
 
-        while (inBounds()) {
+        res = new TokenBuffer(input, symbols);
+        return scan(from, startLine, startColumn);
+    }
+
+    TokenBuffer lex(Reader input) throws IOException {
+        in = input;
+        window = new char[WINDOW];
+        base = 0;
+        program = CharBuffer.wrap(window, 0, 0);
+
+        // the window doesn't outlive the token, so lexemes are copied into the buffer
+        res = new TokenBuffer(null, symbols);
+        try {
+            return scan(0, 1, 1);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            in = null;
+            window = null;
+            program = null;
+        }
+    }
+
+    // starts lexing input one token at a time, see next
+    void open(Reader input) {
+        in = input;
+        window = new char[WINDOW];
+        base = 0;
+        program = CharBuffer.wrap(window, 0, 0);
+        resetHead(0, 1, 1);
+    }
 
-            int tmpline = line, tmpindex = lineindex;
-            char c = advance();
-
-            switch (c) {
-                case ' ': case '\n': case '\t': case '\r':
-                    break; // ignore whitespace
-                
-                case '(':
-                    res.add(new Token(LPAREN, tmpline, tmpindex, "("));
-                    break;
-                case ')':
-                    res.add(new Token(RPAREN, tmpline, tmpindex, ")"));
-                    break;
-                case '+':
-                    res.add(new Token(PLUS, tmpline, tmpindex, "+"));
-                    break;
-                case '-':
-                    res.add(new Token(MINUS, tmpline, tmpindex, "-"));
-                    break;
-                case '*':
-                    res.add(new Token(TIMES, tmpline, tmpindex, "*"));
-                    break;
-                case '=':
-                    res.add(new Token(EQUAL, tmpline, tmpindex, "="));
-                    break;
-                case '#':
-                    res.add(new Token(NOT_EQUAL, tmpline, tmpindex, "#"));
-                    break;
-                case '<':
-                    if (peek() == '=') {
-                        advance();
-                        res.add(new Token(LESS_EQUAL, tmpline, tmpindex, "<="));
-                    } else {
-                        res.add(new Token(LESS, tmpline, tmpindex, "<"));
-                    }
-                    break;
-                case '>':
-                    if (peek() == '=') {
-                        advance();
-                        res.add(new Token(GREATER_EQUAL, tmpline, tmpindex, ">="));
-                    } else {
-                        res.add(new Token(GREATER, tmpline, tmpindex, ">"));
-                    }
-                    break;
-                case ':':
-                    if (advance() == '=') {
-                        res.add(new Token(ASSIGN, tmpline, tmpindex, ":="));
-                    } else {
-                        logError(new Token(ERROR, tmpline, tmpindex, ":"), "':' character requires ':='.");
-                    }
-                    break;
-                case ';':
-                    res.add(new Token(SEMICOLON, tmpline, tmpindex, ";"));
-                    break;
-                case '|':
-                    res.add(new Token(PIPE, tmpline, tmpindex, "|"));
-                    break;
-                case ',':
-                    res.add(new Token(COMMA, tmpline, tmpindex, ","));
-                    break;
-
-                default:
-                    if (isNum(c)) {
-                        res.add(number(c, tmpline, tmpindex));
-                    } else if (isAlpha(c)) {
-                        res.add(idOrKey(c, tmpline, tmpindex));
-                    } else {
-                        logError(new Token(ERROR, tmpline, tmpindex, Character.toString(c)), "Unexpected Character.");
-                    }
-                    break;
+    // lexes the next token of the input given to open into target, false
+    // if the input has ended. Only as much of the input is read as needed.
+    boolean next(TokenBuffer target) throws IOException {
+        int size = target.size();
+        res = target;
+        try {
+            while (target.size() == size && inBounds()) {
+                scanToken();
             }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            res = null;
         }
+        return target.size() > size;
+    }
 
-        res.add(new Token(EOF, line, index, "<eof>"));
+    // the position after the last token lexed by next
+    int line() {
+        return line;
+    }
 
-        return res;
+    int index() {
+        return index;
+    }
+
+    private TokenBuffer scan(int from, int startLine, int startColumn) {
+        resetHead(from, startLine, startColumn);
+
+        while (inBounds()) {
+            scanToken();
+        }
+
+        // the end of file token reports the overall character index as its column
+        res.add(EOF, index, 0, line, index);
+
+        TokenBuffer tokens = res;
+        res = null;
+        program = null;
+        return tokens;
+    }
+
+    // lexes the characters up to and including the next token
+    private void scanToken() {
+        int tmpline = line, tmpindex = lineindex, start = index;
+        mark = start;
+        char c = advance();
+
+        switch (c) {
+            case ' ': case '\n': case '\t': case '\r':
+                break; // ignore whitespace
+            
+            case '(':
+                emit(LPAREN, start, tmpline, tmpindex);
+                break;
+            case ')':
+                emit(RPAREN, start, tmpline, tmpindex);
+                break;
+            case '+':
+                emit(PLUS, start, tmpline, tmpindex);
+                break;
+            case '-':
+                emit(MINUS, start, tmpline, tmpindex);
+                break;
+            case '*':
+                emit(TIMES, start, tmpline, tmpindex);
+                break;
+            case '=':
+                emit(EQUAL, start, tmpline, tmpindex);
+                break;
+            case '#':
+                emit(NOT_EQUAL, start, tmpline, tmpindex);
+                break;
+            case '<':
+                if (peek() == '=') {
+                    advance();
+                    emit(LESS_EQUAL, start, tmpline, tmpindex);
+                } else {
+                    emit(LESS, start, tmpline, tmpindex);
+                }
+                break;
+            case '>':
+                if (peek() == '=') {
+                    advance();
+                    emit(GREATER_EQUAL, start, tmpline, tmpindex);
+                } else {
+                    emit(GREATER, start, tmpline, tmpindex);
+                }
+                break;
+            case ':':
+                if (advance() == '=') {
+                    emit(ASSIGN, start, tmpline, tmpindex);
+                } else {
+                    logError(new Token(ERROR, tmpline, tmpindex, ":"), "':' character requires ':='.");
+                }
+                break;
+            case ';':
+                emit(SEMICOLON, start, tmpline, tmpindex);
+                break;
+            case '|':
+                emit(PIPE, start, tmpline, tmpindex);
+                break;
+            case ',':
+                emit(COMMA, start, tmpline, tmpindex);
+                break;
+
+            default:
+                if (isNum(c)) {
+                    number(start, tmpline, tmpindex);
+                } else if (isAlpha(c)) {
+                    idOrKey(start, tmpline, tmpindex);
+                } else {
+                    logError(new Token(ERROR, tmpline, tmpindex, Character.toString(c)), "Unexpected Character.");
+                }
+                break;
+        }
+    }
+
+    private void emit(TokenType type, int start, int tmpline, int tmpindex) {
+        if (window != null && type.text == null) {
+            String lexeme = symbols.intern(program, start - base, index - base);
+            res.add(type, start, index - start, tmpline, tmpindex, lexeme);
+        } else {
+            res.add(type, start, index - start, tmpline, tmpindex);
+        }
     }
 
     private static boolean isNum(char c) {
@@ -106,19 +225,48 @@ public class Lexer {
         return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
     }
 
-    private void resetHead() {
-        line = 1;
-        lineindex = 1;
-        index = 0;
+    private void resetHead(int from, int startLine, int startColumn) {
+        line = startLine;
+        lineindex = startColumn;
+        index = from;
     }
 
     private boolean inBounds() {
-        return index < program.length();
+        return index - base < program.length() || refill();
+    }
+
+    // moves the window forward, keeping everything from the start of the current token
+    private boolean refill() {
+        if (in == null) {
+            return false;
+        }
+
+        int keep = program.length() - (mark - base);
+        if (window.length - keep < 2) {
+            window = Arrays.copyOf(window, window.length * 2);
+        }
+        System.arraycopy(window, mark - base, window, 0, keep);
+        base = mark;
+
+        try {
+            int read = in.read(window, keep, window.length - keep);
+            while (read == 0) {
+                read = in.read(window, keep, window.length - keep);
+            }
+            if (read < 0) {
+                in = null;
+                read = 0;
+            }
+            program = CharBuffer.wrap(window, 0, keep + read);
+            return read > 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private char peek() {
         if (inBounds()) {
-            return program.charAt(index);
+            return program.charAt(index - base);
         } else {
             return '\0';
         }
@@ -126,7 +274,7 @@ public class Lexer {
 
     private char advance() {
         if (inBounds()) {
-            char res = program.charAt(index++);
+            char res = program.charAt(index++ - base);
             if (res == '\n') {
                 line++; lineindex = 1;
             } else {
@@ -138,50 +286,71 @@ public class Lexer {
         }
     }
 
-    private Token number(char first, int tmpline, int tmpindex) {
-        String resString = Character.toString(first);
+    private void number(int start, int tmpline, int tmpindex) {
         while (isNum(peek())) {
-            resString += advance();
+            advance();
         }
-        return new Token(NUMBER, tmpline, tmpindex, resString);
+        emit(NUMBER, start, tmpline, tmpindex);
     }
 
-    private Token idOrKey(char first, int tmpline, int tmpindex) {
-        String resString = Character.toString(first);
+    private void idOrKey(int start, int tmpline, int tmpindex) {
         while (isAlpha(peek()) || isNum(peek())) {
-            resString += advance();
-        }
-        
-        TokenType type = IDENTIFIER;
-        switch (resString) {
-            case "and":       type = AND;       break;
-            case "or":        type = OR;        break;
-            case "not":       type = NOT;       break;
-            case "if":        type = IF;        break;
-            case "then":      type = THEN;      break;
-            case "else":      type = ELSE;      break;
-            case "var":       type = VAR;       break;
-            case "in":        type = IN;        break;
-            case "abort":     type = ABORT;     break;
-            case "true":      type = TRUE;      break;
-            case "false":     type = FALSE;     break;
-            case "do":        type = DO;        break;
-            case "break":     type = BREAK;     break;
-            case "for":       type = FOR;       break;
-            case "to":        type = TO;        break;
-            case "while":     type = WHILE;     break;
-            case "skip":      type = SKIP;      break;
-            case "print":     type = PRINT;     break;
-            case "procedure": type = PROCEDURE; break;
-            case "begin":     type = BEGIN;     break;
-            case "par":       type = PAR;       break;
-            case "end":       type = END;       break;
-        }
-
-        return new Token(type, tmpline, tmpindex, resString);
+            advance();
+        }
+
+        TokenType keyword = keyword(program, start - base, index - base);
+        emit(keyword != null ? keyword : IDENTIFIER, start, tmpline, tmpindex);
+    }
+
+    // keywords bucketed by their length, so a lookup only compares
+    // characters against the handful of keywords that could match
+    private static final TokenType[][] keywords = bucket(
+        AND, OR, NOT, IF, THEN, ELSE, VAR, IN, ABORT, TRUE, FALSE, DO,
+        BREAK, FOR, TO, WHILE, SKIP, PRINT, PROCEDURE, BEGIN, PAR, END
+    );
+
+    private static TokenType[][] bucket(TokenType... all) {
+        int maxLength = 0;
+        for (TokenType t : all) {
+            maxLength = Math.max(maxLength, t.text.length());
+        }
+
+        TokenType[][] res = new TokenType[maxLength + 1][];
+        for (int length = 0; length <= maxLength; length++) {
+            List<TokenType> bucket = new ArrayList<>();
+            for (TokenType t : all) {
+                if (t.text.length() == length) {
+                    bucket.add(t);
+                }
+            }
+            res[length] = bucket.toArray(new TokenType[0]);
+        }
+        return res;
+    }
+
+    private static TokenType keyword(CharSequence source, int start, int end) {
+        int length = end - start;
+        if (length >= keywords.length) {
+            return null;
+        }
+
+        for (TokenType t : keywords[length]) {
+            int i = 0;
+            while (i < length && t.text.charAt(i) == source.charAt(start + i)) {
+                i++;
+            }
+            if (i == length) {
+                return t;
+            }
+        }
+        return null;
     }
 
     private void logError(Token token, String message) {
-        Imp.logDirectError(token, message);
+        if (diagnostics != null) {
+            diagnostics.report(token, message);
+        } else {
+            Imp.logDirectError(token, message);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,279 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static imp2.TokenType.*;
+
+/**
+ * Computes arithmetic that doesn't change while a loop runs once before the
+ * loop, instead of in every iteration. The values are kept in temporaries
+ * declared around the loop, named $0, $1 and so on, which can't clash with
+ * variables of the program since the lexer doesn't accept such names.
+ *
+ * Only loops in which the variables can't be seen are changed, so the
+ * temporaries never show up in print or after an abort, and only
+ * expressions that can't fail are moved, since the loop may not run at all.
+ * Inner loops are handled first, so an expression that doesn't change in
+ * the outer loop either moves out of both.
+ */
+class LoopInvariants implements Stm.Visitor<Stm> {
+
+    private final Optimizer optimizer;
+    private int temporaries = 0;
+
+    // the names in the region, which may already include temporaries when a
+    // body is optimized again after it was specialized
+    private Set<String> taken;
+
+    LoopInvariants(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    Stm run(Stm region) {
+        Uses uses = Uses.of(region);
+        taken = uses.assigned;
+        taken.addAll(uses.reads);
+        return region.accept(this);
+    }
+
+    private String temporary() {
+        String res = "$" + temporaries++;
+        return taken.contains(res) ? temporary() : res;
+    }
+
+    // declares the temporaries around the loop, the first one outermost
+    private static Stm declare(Stm loop, Hoist hoist) {
+        Stm res = loop;
+        for (int i = hoist.hoisted.size() - 1; i >= 0; i--) {
+            res = new Stm.Var(hoist.names.get(i), hoist.hoisted.get(i), res);
+        }
+        return res;
+    }
+
+    public Stm visitSingle(Stm.Single stm) {
+        return stm;
+    }
+
+    public Stm visitAssign(Stm.Assign stm) {
+        return stm;
+    }
+
+    public Stm visitIf(Stm.If stm) {
+        Stm taken = stm.taken.accept(this), notTaken = stm.notTaken.accept(this);
+        return taken == stm.taken && notTaken == stm.notTaken ? stm : new Stm.If(stm.condition, taken, notTaken);
+    }
+
+    public Stm visitWhile(Stm.While stm) {
+        Stm body = stm.body.accept(this);
+        Uses uses = Uses.of(stm);
+        if (uses.observes) {
+            return body == stm.body ? stm : new Stm.While(stm.condition, body);
+        }
+
+        Hoist hoist = new Hoist(uses.assigned);
+        return declare(new Stm.While(hoist.expression(stm.condition), body.accept(hoist)), hoist);
+    }
+
+    public Stm visitFor(Stm.For stm) {
+        Stm body = stm.body.accept(this);
+        Uses uses = Uses.of(stm);
+        if (uses.observes) {
+            return body == stm.body ? stm : new Stm.For(stm.loopvar, stm.start, stm.end, body);
+        }
+
+        // the start is only evaluated once anyway
+        Hoist hoist = new Hoist(uses.assigned);
+        return declare(new Stm.For(stm.loopvar, stm.start, hoist.expression(stm.end), body.accept(hoist)), hoist);
+    }
+
+    public Stm visitVar(Stm.Var stm) {
+        Stm body = stm.body.accept(this);
+        return body == stm.body ? stm : new Stm.Var(stm.name, stm.decl, body);
+    }
+
+    public Stm visitSeq(Stm.Seq stm) {
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (Stm s : stm.stms) {
+            Stm res = s.accept(this);
+            changed |= res != s;
+            stms.add(res);
+        }
+        return changed ? new Stm.Seq(stms) : stm;
+    }
+
+    public Stm visitNd(Stm.Nd stm) {
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (Stm s : stm.stms) {
+            Stm res = s.accept(this);
+            changed |= res != s;
+            stms.add(res);
+        }
+        return changed ? new Stm.Nd(stms) : stm;
+    }
+
+    public Stm visitProcDef(Stm.ProcDef stm) {
+        return stm;
+    }
+
+    public Stm visitProcCall(Stm.ProcCall stm) {
+        return stm;
+    }
+
+    public Stm visitBExp(Stm.SB stm) {
+        return stm;
+    }
+
+    public Stm visitAExp(Stm.SA stm) {
+        return stm;
+    }
+
+    // replaces the invariant expressions in the body of a loop, including
+    // those of the loops nested in it, by temporaries
+    private class Hoist implements Stm.Visitor<Stm> {
+
+        final List<AExp> hoisted = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        private final Set<String> assigned;
+
+        Hoist(Set<String> assigned) {
+            this.assigned = assigned;
+        }
+
+        private boolean invariant(AExp aexp) {
+            if (aexp instanceof AExp.Binary) {
+                return invariant(((AExp.Binary) aexp).left) && invariant(((AExp.Binary) aexp).right);
+            }
+            AExp.Atomic atomic = (AExp.Atomic) aexp;
+            return atomic.atom.type == IDENTIFIER ? !assigned.contains(atomic.atom.lexeme) : atomic.value != null;
+        }
+
+        AExp expression(AExp aexp) {
+            if (!(aexp instanceof AExp.Binary)) {
+                return aexp;
+            } else if (invariant(aexp)) {
+                int i = 0;
+                while (i < hoisted.size() && !Optimizer.equal(hoisted.get(i), aexp)) {
+                    i++;
+                }
+                if (i == hoisted.size()) {
+                    hoisted.add(aexp);
+                    names.add(temporary());
+                }
+                optimizer.count(Optimizer.Rule.LOOP_INVARIANTS, Optimizer.size(aexp));
+                Token at = ((AExp.Atomic) Optimizer.firstAtom(aexp)).atom;
+                return new AExp.Atomic(new Token(IDENTIFIER, at.line, at.index, names.get(i)));
+            }
+
+            AExp.Binary binary = (AExp.Binary) aexp;
+            AExp left = expression(binary.left), right = expression(binary.right);
+            if (left == binary.left && right == binary.right) {
+                return aexp;
+            }
+            AExp res = new AExp.Binary(left, right, binary.operator);
+            res.shared = binary.shared;
+            return res;
+        }
+
+        BExp expression(BExp bexp) {
+            if (bexp instanceof BExp.Binary) {
+                BExp.Binary binary = (BExp.Binary) bexp;
+                BExp left = expression(binary.left), right = expression(binary.right);
+                return left == binary.left && right == binary.right ? bexp : new BExp.Binary(left, right, binary.operator);
+            } else if (bexp instanceof BExp.Not) {
+                BExp exp = expression(((BExp.Not) bexp).exp);
+                return exp == ((BExp.Not) bexp).exp ? bexp : new BExp.Not(exp);
+            } else if (bexp instanceof BExp.Comparison) {
+                BExp.Comparison comparison = (BExp.Comparison) bexp;
+                AExp left = expression(comparison.left), right = expression(comparison.right);
+                if (left == comparison.left && right == comparison.right) {
+                    return bexp;
+                }
+                return new BExp.Comparison(left, right, comparison.operator);
+            }
+            return bexp;
+        }
+
+        public Stm visitSingle(Stm.Single stm) {
+            return stm;
+        }
+
+        public Stm visitAssign(Stm.Assign stm) {
+            AExp exp = expression(stm.exp);
+            return exp == stm.exp ? stm : new Stm.Assign(stm.name, exp);
+        }
+
+        public Stm visitIf(Stm.If stm) {
+            BExp condition = expression(stm.condition);
+            Stm taken = stm.taken.accept(this), notTaken = stm.notTaken.accept(this);
+            if (condition == stm.condition && taken == stm.taken && notTaken == stm.notTaken) {
+                return stm;
+            }
+            return new Stm.If(condition, taken, notTaken);
+        }
+
+        public Stm visitWhile(Stm.While stm) {
+            BExp condition = expression(stm.condition);
+            Stm body = stm.body.accept(this);
+            return condition == stm.condition && body == stm.body ? stm : new Stm.While(condition, body);
+        }
+
+        public Stm visitFor(Stm.For stm) {
+            AExp start = expression(stm.start), end = expression(stm.end);
+            Stm body = stm.body.accept(this);
+            if (start == stm.start && end == stm.end && body == stm.body) {
+                return stm;
+            }
+            return new Stm.For(stm.loopvar, start, end, body);
+        }
+
+        public Stm visitVar(Stm.Var stm) {
+            AExp decl = expression(stm.decl);
+            Stm body = stm.body.accept(this);
+            return decl == stm.decl && body == stm.body ? stm : new Stm.Var(stm.name, decl, body);
+        }
+
+        public Stm visitSeq(Stm.Seq stm) {
+            List<Stm> stms = new ArrayList<>();
+            boolean changed = false;
+            for (Stm s : stm.stms) {
+                Stm res = s.accept(this);
+                changed |= res != s;
+                stms.add(res);
+            }
+            return changed ? new Stm.Seq(stms) : stm;
+        }
+
+        public Stm visitNd(Stm.Nd stm) {
+            List<Stm> stms = new ArrayList<>();
+            boolean changed = false;
+            for (Stm s : stm.stms) {
+                Stm res = s.accept(this);
+                changed |= res != s;
+                stms.add(res);
+            }
+            return changed ? new Stm.Nd(stms) : stm;
+        }
+
+        public Stm visitProcDef(Stm.ProcDef stm) {
+            return stm;
+        }
+
+        public Stm visitProcCall(Stm.ProcCall stm) {
+            return stm;
+        }
+
+        public Stm visitBExp(Stm.SB stm) {
+            BExp exp = expression(stm.exp);
+            return exp == stm.exp ? stm : new Stm.SB(exp);
+        }
+
+        public Stm visitAExp(Stm.SA stm) {
+            AExp exp = expression(stm.exp);
+            return exp == stm.exp ? stm : new Stm.SA(exp);
+        }
+    }
+}
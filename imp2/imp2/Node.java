@@ -0,0 +1,901 @@
+package imp2;
+
+import java.util.Random;
+
+/**
+ * A node of the trees the node interpreter runs. Each node stands for a
+ * node of the syntax tree and starts out uninitialized: the first time it
+ * runs, it replaces itself in its parent with a node specialized for what it
+ * stands for, like a variable plus a number, an assignment that counts a
+ * variable up, or an if that compares a variable with a number, and then
+ * runs that one. The children of the new node are uninitialized in turn, so
+ * the parts of a program that never run are never specialized.
+ *
+ * A specialized node that assumes something that may change while the
+ * program runs, like which procedure a call runs, checks it every time and
+ * replaces itself again once it doesn't hold anymore.
+ */
+abstract class Node {
+
+    Node parent;
+
+    // puts the node in the place of this one, and counts the specialization
+    <T extends Node> T replace(T node, NodeInterpreter s) {
+        node.parent = parent;
+        parent.replaceChild(this, node);
+        s.specialized(node);
+        return node;
+    }
+
+    // nodes with children put the node in the place of the child, which
+    // may have been replaced already by a call the child was running in
+    void replaceChild(Node child, Node node) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no children.");
+    }
+
+    <T extends Node> T adopt(T child) {
+        child.parent = this;
+        return child;
+    }
+
+    <T extends Node> T[] adopt(T[] children) {
+        for (T child : children) {
+            adopt(child);
+        }
+        return children;
+    }
+
+    // whether the value is in the range from lo with the given bound, see
+    // NodeInterpreter.Range
+    static boolean inRange(int value, int lo, int bound) {
+        return (value - lo ^ Integer.MIN_VALUE) <= bound;
+    }
+
+    abstract static class Int extends Node {
+        abstract int execute(NodeInterpreter s);
+    }
+
+    static final class UninitializedInt extends Int {
+        final AExp aexp;
+
+        UninitializedInt(AExp aexp) {
+            this.aexp = aexp;
+        }
+
+        int execute(NodeInterpreter s) {
+            return replace(aexp.accept(s), s).execute(s);
+        }
+    }
+
+    static final class Constant extends Int {
+        final int value;
+
+        Constant(int value) {
+            this.value = value;
+        }
+
+        int execute(NodeInterpreter s) {
+            return value;
+        }
+    }
+
+    static final class Variable extends Int {
+        final int slot;
+
+        Variable(int slot) {
+            this.slot = slot;
+        }
+
+        int execute(NodeInterpreter s) {
+            return (int) s.registers[slot];
+        }
+    }
+
+    static final class Malformed extends Int {
+        final Token token;
+
+        Malformed(Token token) {
+            this.token = token;
+        }
+
+        int execute(NodeInterpreter s) {
+            throw s.error(token, "Number Format Error.");
+        }
+    }
+
+    // a variable plus or minus a number, which is the same as plus its negation
+    static final class VariablePlusConstant extends Int {
+        final int slot, value;
+
+        VariablePlusConstant(int slot, int value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        int execute(NodeInterpreter s) {
+            return (int) s.registers[slot] + value;
+        }
+    }
+
+    static final class VariableTimesConstant extends Int {
+        final int slot, value;
+
+        VariableTimesConstant(int slot, int value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        int execute(NodeInterpreter s) {
+            return (int) s.registers[slot] * value;
+        }
+    }
+
+    // an expression plus or minus a number
+    static final class PlusConstant extends Int {
+        Int left;
+        final int value;
+
+        PlusConstant(Int left, int value) {
+            this.left = adopt(left);
+            this.value = value;
+        }
+
+        int execute(NodeInterpreter s) {
+            return left.execute(s) + value;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (left == child) {
+                left = (Int) node;
+            }
+        }
+    }
+
+    static final class TimesConstant extends Int {
+        Int left;
+        final int value;
+
+        TimesConstant(Int left, int value) {
+            this.left = adopt(left);
+            this.value = value;
+        }
+
+        int execute(NodeInterpreter s) {
+            return left.execute(s) * value;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (left == child) {
+                left = (Int) node;
+            }
+        }
+    }
+
+    abstract static class Binary extends Int {
+        Int left, right;
+
+        Binary(Int left, Int right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (left == child) {
+                left = (Int) node;
+            } else if (right == child) {
+                right = (Int) node;
+            }
+        }
+    }
+
+    static final class Plus extends Binary {
+        Plus(Int left, Int right) {
+            super(left, right);
+        }
+
+        int execute(NodeInterpreter s) {
+            return left.execute(s) + right.execute(s);
+        }
+    }
+
+    static final class Minus extends Binary {
+        Minus(Int left, Int right) {
+            super(left, right);
+        }
+
+        int execute(NodeInterpreter s) {
+            return left.execute(s) - right.execute(s);
+        }
+    }
+
+    static final class Times extends Binary {
+        Times(Int left, Int right) {
+            super(left, right);
+        }
+
+        int execute(NodeInterpreter s) {
+            return left.execute(s) * right.execute(s);
+        }
+    }
+
+    abstract static class Bool extends Node {
+        abstract boolean execute(NodeInterpreter s);
+    }
+
+    static final class UninitializedBool extends Bool {
+        final BExp bexp;
+
+        UninitializedBool(BExp bexp) {
+            this.bexp = bexp;
+        }
+
+        boolean execute(NodeInterpreter s) {
+            return replace(bexp.accept(s), s).execute(s);
+        }
+    }
+
+    static final class Truth extends Bool {
+        final boolean value;
+
+        Truth(boolean value) {
+            this.value = value;
+        }
+
+        boolean execute(NodeInterpreter s) {
+            return value;
+        }
+    }
+
+    static final class Not extends Bool {
+        Bool exp;
+
+        Not(Bool exp) {
+            this.exp = adopt(exp);
+        }
+
+        boolean execute(NodeInterpreter s) {
+            return !exp.execute(s);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (exp == child) {
+                exp = (Bool) node;
+            }
+        }
+    }
+
+    // both sides are evaluated, as in the interpreter
+    abstract static class Connective extends Bool {
+        Bool left, right;
+
+        Connective(Bool left, Bool right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (left == child) {
+                left = (Bool) node;
+            } else if (right == child) {
+                right = (Bool) node;
+            }
+        }
+    }
+
+    static final class And extends Connective {
+        And(Bool left, Bool right) {
+            super(left, right);
+        }
+
+        boolean execute(NodeInterpreter s) {
+            return left.execute(s) & right.execute(s);
+        }
+    }
+
+    static final class Or extends Connective {
+        Or(Bool left, Bool right) {
+            super(left, right);
+        }
+
+        boolean execute(NodeInterpreter s) {
+            return left.execute(s) | right.execute(s);
+        }
+    }
+
+    // a variable compared to a number
+    static final class InRange extends Bool {
+        final int slot, lo, bound;
+        final boolean negated;
+
+        InRange(NodeInterpreter.Range range) {
+            slot = range.slot;
+            lo = range.lo;
+            bound = range.bound;
+            negated = range.negated;
+        }
+
+        boolean execute(NodeInterpreter s) {
+            return inRange((int) s.registers[slot], lo, bound) != negated;
+        }
+    }
+
+    // a < b, or a >= b if negated
+    static final class VariablesLess extends Bool {
+        final int a, b;
+        final boolean negated;
+
+        VariablesLess(int a, int b, boolean negated) {
+            this.a = a;
+            this.b = b;
+            this.negated = negated;
+        }
+
+        boolean execute(NodeInterpreter s) {
+            return ((int) s.registers[a] < (int) s.registers[b]) != negated;
+        }
+    }
+
+    // a = b, or a # b if negated
+    static final class VariablesEqual extends Bool {
+        final int a, b;
+        final boolean negated;
+
+        VariablesEqual(int a, int b, boolean negated) {
+            this.a = a;
+            this.b = b;
+            this.negated = negated;
+        }
+
+        boolean execute(NodeInterpreter s) {
+            return ((int) s.registers[a] == (int) s.registers[b]) != negated;
+        }
+    }
+
+    static final class Comparison extends Bool {
+        Int left, right;
+        final BExp.Comparison.OpType operator;
+
+        Comparison(Int left, Int right, BExp.Comparison.OpType operator) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.operator = operator;
+        }
+
+        boolean execute(NodeInterpreter s) {
+            int left = this.left.execute(s), right = this.right.execute(s);
+            switch (operator) {
+                case EQ:  return left == right;
+                case NEQ: return left != right;
+                case L:   return left < right;
+                case LEQ: return left <= right;
+                case G:   return left > right;
+                default:  return left >= right;
+            }
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (left == child) {
+                left = (Int) node;
+            } else if (right == child) {
+                right = (Int) node;
+            }
+        }
+    }
+
+    abstract static class Exec extends Node {
+        abstract SlotInterpreter.Completion execute(NodeInterpreter s);
+    }
+
+    static final class UninitializedExec extends Exec {
+        final Stm stm;
+
+        UninitializedExec(Stm stm) {
+            this.stm = stm;
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            return replace(stm.accept(s), s).execute(s);
+        }
+    }
+
+    // the parent of a program or procedure body
+    static final class Root extends Exec {
+        Exec body;
+
+        Root(Exec body) {
+            this.body = adopt(body);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            return body.execute(s);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (body == child) {
+                body = (Exec) node;
+            }
+        }
+    }
+
+    static final class Print extends Exec {
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            s.print();
+            return SlotInterpreter.Completion.NORMAL;
+        }
+    }
+
+    // skip, break or abort
+    static final class Result extends Exec {
+        final SlotInterpreter.Completion completion;
+
+        Result(SlotInterpreter.Completion completion) {
+            this.completion = completion;
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            return completion;
+        }
+    }
+
+    static final class Assign extends Exec {
+        final int slot;
+        Int exp;
+
+        Assign(int slot, Int exp) {
+            this.slot = slot;
+            this.exp = adopt(exp);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            s.assign(slot, exp.execute(s));
+            return SlotInterpreter.Completion.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (exp == child) {
+                exp = (Int) node;
+            }
+        }
+    }
+
+    static final class AssignConstant extends Exec {
+        final int slot;
+        final long value;
+
+        AssignConstant(int slot, int value) {
+            this.slot = slot;
+            this.value = value & Registers.VALUE | Registers.DEFINED;
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            s.registers[slot] = value;
+            return SlotInterpreter.Completion.NORMAL;
+        }
+    }
+
+    // x := (x + c) or x := (x - c)
+    static final class Increment extends Exec {
+        final int slot, value;
+
+        Increment(int slot, int value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            s.assign(slot, (int) s.registers[slot] + value);
+            return SlotInterpreter.Completion.NORMAL;
+        }
+    }
+
+    static final class If extends Exec {
+        Bool condition;
+        Exec taken, notTaken;
+
+        If(Bool condition, Exec taken, Exec notTaken) {
+            this.condition = adopt(condition);
+            this.taken = adopt(taken);
+            this.notTaken = adopt(notTaken);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            return condition.execute(s) ? taken.execute(s) : notTaken.execute(s);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (condition == child) {
+                condition = (Bool) node;
+            } else if (taken == child) {
+                taken = (Exec) node;
+            } else if (notTaken == child) {
+                notTaken = (Exec) node;
+            }
+        }
+    }
+
+    // an if that compares a variable with a number and branches on it
+    static final class IfInRange extends Exec {
+        final int slot, lo, bound;
+        final boolean negated;
+        Exec taken, notTaken;
+
+        IfInRange(NodeInterpreter.Range range, Exec taken, Exec notTaken) {
+            slot = range.slot;
+            lo = range.lo;
+            bound = range.bound;
+            negated = range.negated;
+            this.taken = adopt(taken);
+            this.notTaken = adopt(notTaken);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            return inRange((int) s.registers[slot], lo, bound) != negated ? taken.execute(s) : notTaken.execute(s);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (taken == child) {
+                taken = (Exec) node;
+            } else if (notTaken == child) {
+                notTaken = (Exec) node;
+            }
+        }
+    }
+
+    static final class While extends Exec {
+        final ClosedForms.Form closed;
+        Bool condition;
+        Exec body;
+
+        While(ClosedForms.Form closed, Bool condition, Exec body) {
+            this.closed = closed;
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            if (closed != null && ClosedForms.apply(closed, s.registers, s)) {
+                return SlotInterpreter.Completion.NORMAL;
+            }
+            while (condition.execute(s)) {
+                SlotInterpreter.Completion res = body.execute(s);
+                if (res == SlotInterpreter.Completion.BREAK) {
+                    break;
+                } else if (res == SlotInterpreter.Completion.ABORT) {
+                    return res;
+                }
+            }
+            return SlotInterpreter.Completion.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (condition == child) {
+                condition = (Bool) node;
+            } else if (body == child) {
+                body = (Exec) node;
+            }
+        }
+    }
+
+    // a while loop that compares a variable with a number
+    static final class WhileInRange extends Exec {
+        final ClosedForms.Form closed;
+        final int slot, lo, bound;
+        final boolean negated;
+        Exec body;
+
+        WhileInRange(ClosedForms.Form closed, NodeInterpreter.Range range, Exec body) {
+            this.closed = closed;
+            slot = range.slot;
+            lo = range.lo;
+            bound = range.bound;
+            negated = range.negated;
+            this.body = adopt(body);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            if (closed != null && ClosedForms.apply(closed, s.registers, s)) {
+                return SlotInterpreter.Completion.NORMAL;
+            }
+            while (inRange((int) s.registers[slot], lo, bound) != negated) {
+                SlotInterpreter.Completion res = body.execute(s);
+                if (res == SlotInterpreter.Completion.BREAK) {
+                    break;
+                } else if (res == SlotInterpreter.Completion.ABORT) {
+                    return res;
+                }
+            }
+            return SlotInterpreter.Completion.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (body == child) {
+                body = (Exec) node;
+            }
+        }
+    }
+
+    static final class For extends Exec {
+        final int slot;
+        final ClosedForms.Form closed;
+        Int start, end;
+        Exec body;
+
+        For(int slot, ClosedForms.Form closed, Int start, Int end, Exec body) {
+            this.slot = slot;
+            this.closed = closed;
+            this.start = adopt(start);
+            this.end = adopt(end);
+            this.body = adopt(body);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            s.assign(slot, start.execute(s));
+            if (closed != null && ClosedForms.apply(closed, s.registers, s)) {
+                return SlotInterpreter.Completion.NORMAL;
+            }
+            for (; (int) s.registers[slot] != end.execute(s); s.assign(slot, (int) s.registers[slot] + 1)) {
+                SlotInterpreter.Completion res = body.execute(s);
+                if (res == SlotInterpreter.Completion.BREAK) {
+                    break;
+                } else if (res == SlotInterpreter.Completion.ABORT) {
+                    return res;
+                }
+            }
+            return SlotInterpreter.Completion.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (start == child) {
+                start = (Int) node;
+            } else if (end == child) {
+                end = (Int) node;
+            } else if (body == child) {
+                body = (Exec) node;
+            }
+        }
+    }
+
+    static final class Var extends Exec {
+        final int slot;
+        Int decl;
+        Exec body;
+
+        Var(int slot, Int decl, Exec body) {
+            this.slot = slot;
+            this.decl = adopt(decl);
+            this.body = adopt(body);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            long prev = s.registers[slot];
+            s.assign(slot, decl.execute(s));
+            SlotInterpreter.Completion res = body.execute(s);
+            // like the interpreter, a break or abort leaves the variable as it is
+            if (res == SlotInterpreter.Completion.NORMAL) {
+                s.registers[slot] = prev;
+            }
+            return res;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (decl == child) {
+                decl = (Int) node;
+            } else if (body == child) {
+                body = (Exec) node;
+            }
+        }
+    }
+
+    static final class Seq extends Exec {
+        final Exec[] stms;
+
+        Seq(Exec[] stms) {
+            this.stms = adopt(stms);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            for (Exec stm : stms) {
+                SlotInterpreter.Completion res = stm.execute(s);
+                if (res != SlotInterpreter.Completion.NORMAL) {
+                    return res;
+                }
+            }
+            return SlotInterpreter.Completion.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            for (int i = 0; i < stms.length; i++) {
+                if (stms[i] == child) {
+                    stms[i] = (Exec) node;
+                }
+            }
+        }
+    }
+
+    // a sequence of two statements, the most common kind
+    static final class Pair extends Exec {
+        Exec first, second;
+
+        Pair(Exec first, Exec second) {
+            this.first = adopt(first);
+            this.second = adopt(second);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            SlotInterpreter.Completion res = first.execute(s);
+            return res == SlotInterpreter.Completion.NORMAL ? second.execute(s) : res;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (first == child) {
+                first = (Exec) node;
+            } else if (second == child) {
+                second = (Exec) node;
+            }
+        }
+    }
+
+    static final class Nd extends Exec {
+        final Exec[] stms;
+
+        Nd(Exec[] stms) {
+            this.stms = adopt(stms);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            Random r = new Random();
+            return stms[(int)(r.nextDouble() * stms.length)].execute(s);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            for (int i = 0; i < stms.length; i++) {
+                if (stms[i] == child) {
+                    stms[i] = (Exec) node;
+                }
+            }
+        }
+    }
+
+    static final class Define extends Exec {
+        final Stm.ProcDef proc;
+
+        Define(Stm.ProcDef proc) {
+            this.proc = proc;
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            s.define(proc);
+            return SlotInterpreter.Completion.NORMAL;
+        }
+    }
+
+    // the arguments of a call, and the inlined body it may run instead
+    abstract static class Call extends Exec {
+        final Stm.ProcCall stm;
+        final Int[] in;
+        Exec inlined;
+
+        Call(Stm.ProcCall stm, Int[] in, Exec inlined) {
+            this.stm = stm;
+            this.in = adopt(in);
+            this.inlined = inlined == null ? null : adopt(inlined);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (inlined == child) {
+                inlined = (Exec) node;
+            }
+            for (int i = 0; i < in.length; i++) {
+                if (in[i] == child) {
+                    in[i] = (Int) node;
+                }
+            }
+        }
+    }
+
+    // a call that runs what it found to run when it was specialized, the
+    // inlined body if proc is null, as long as no procedure has been defined
+    // since in the interpreter it was specialized in
+    static final class CachedCall extends Call {
+        final NodeInterpreter owner;
+        final int definitions;
+        final Stm.ProcDef proc;
+        // the slots of the variables the procedure may change, null for all
+        final int[] slots;
+        // how often the call was specialized again before
+        final int misses;
+
+        CachedCall(Stm.ProcCall stm, Int[] in, Exec inlined, NodeInterpreter owner, Stm.ProcDef proc, int[] slots,
+                int misses) {
+            super(stm, in, inlined);
+            this.owner = owner;
+            this.definitions = owner.definitions;
+            this.proc = proc;
+            this.slots = slots;
+            this.misses = misses;
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            if (s != owner || s.definitions != definitions) {
+                return replace(s.call(stm, in, inlined, misses + 1), s).execute(s);
+            } else if (proc == null) {
+                return inlined.execute(s);
+            }
+            return s.invoke(stm, proc, slots, in);
+        }
+    }
+
+    // a call that finds what to run every time, once procedures were defined
+    // again too often while it ran
+    static final class GenericCall extends Call {
+        GenericCall(Stm.ProcCall stm, Int[] in, Exec inlined) {
+            super(stm, in, inlined);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            Stm.ProcDef proc = s.target(stm);
+            if (proc == null) {
+                return inlined.execute(s);
+            }
+            return s.invoke(stm, proc, s.slots(proc), in);
+        }
+    }
+
+    static final class ShowInt extends Exec {
+        Int exp;
+
+        ShowInt(Int exp) {
+            this.exp = adopt(exp);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            System.out.println("==> \033[3m" + exp.execute(s) + "\033[0m");
+            return SlotInterpreter.Completion.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (exp == child) {
+                exp = (Int) node;
+            }
+        }
+    }
+
+    static final class ShowBool extends Exec {
+        Bool exp;
+
+        ShowBool(Bool exp) {
+            this.exp = adopt(exp);
+        }
+
+        SlotInterpreter.Completion execute(NodeInterpreter s) {
+            System.out.println("==> \033[3m" + (exp.execute(s) ? "tt" : "ff") + "\033[0m");
+            return SlotInterpreter.Completion.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (exp == child) {
+                exp = (Bool) node;
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package imp2;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static imp2.TokenType.*;
+
+/**
+ * Runs programs as trees of nodes that specialize themselves the first time
+ * they run, see Node. This class picks the node each node of the syntax tree
+ * is specialized to, and does what's shared between nodes, like calls.
+ *
+ * Variables and calls are those of Registers, and scopes, break and abort
+ * behave as in the slot interpreter. How many nodes of each kind were made
+ * so far is counted, to see which specializations programs actually use.
+ */
+class NodeInterpreter extends Registers implements Stm.Visitor<Node.Exec>, BExp.Visitor<Node.Bool>,
+    AExp.Visitor<Node.Int> {
+
+    private static final SlotInterpreter.Completion NORMAL = SlotInterpreter.Completion.NORMAL;
+
+    // how often a call is specialized again before it looks up its procedure
+    // every time instead
+    private static final int MISSES = 3;
+
+    /**
+     * The values from lo to hi of a variable compared to a number, for which
+     * the comparison holds, or doesn't if negated. A value is in the range if
+     * it's at most hi - lo above lo when compared as unsigned numbers, which
+     * is a single signed comparison once the sign bits of both are flipped,
+     * so the bound is kept that way.
+     */
+    static class Range {
+        final int slot, lo, bound;
+        final boolean negated;
+
+        Range(int slot, int lo, int hi, boolean negated) {
+            this.slot = slot;
+            this.lo = lo;
+            this.bound = hi - lo ^ Integer.MIN_VALUE;
+            this.negated = negated;
+        }
+    }
+
+    // how many procedures were defined so far, which calls check to see
+    // whether the procedure they found is still the one to run
+    int definitions = 0;
+
+    private final Map<String, Integer> specializations = new TreeMap<>();
+
+    SlotInterpreter.Completion run(Stm tree) {
+        Node.Root program = new Node.Root(new Node.UninitializedExec(tree));
+        grow();
+        return program.execute(this);
+    }
+
+    RuntimeException error(Token token, String message) {
+        return new InterpreterException(token, message);
+    }
+
+    void specialized(Node node) {
+        specializations.merge(node.getClass().getSimpleName(), 1, Integer::sum);
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder("Specializations");
+        for (Map.Entry<String, Integer> e : specializations.entrySet()) {
+            sb.append("\n  ").append(e.getKey()).append(" -> ").append(e.getValue())
+                .append(e.getValue() == 1 ? " node" : " nodes");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    void define(Stm.ProcDef proc) {
+        super.define(proc);
+        definitions++;
+    }
+
+    private static Integer number(AExp aexp) {
+        return aexp instanceof AExp.Atomic ? ((AExp.Atomic) aexp).value : null;
+    }
+
+    // the slot of the variable the expression is, -1 if it's something else
+    private static int variable(AExp aexp) {
+        return aexp instanceof AExp.Atomic && ((AExp.Atomic) aexp).atom.type == IDENTIFIER ? ((AExp.Atomic) aexp).slot : -1;
+    }
+
+    // the range of a variable compared to a number, either way around, null
+    // for any other condition
+    private static Range range(BExp bexp) {
+        if (!(bexp instanceof BExp.Comparison)) {
+            return null;
+        }
+        BExp.Comparison cmp = (BExp.Comparison) bexp;
+        BExp.Comparison.OpType op = cmp.operator;
+        int slot = variable(cmp.left);
+        Integer number = number(cmp.right);
+        if (slot < 0 || number == null) {
+            slot = variable(cmp.right);
+            number = number(cmp.left);
+            if (slot < 0 || number == null) {
+                return null;
+            }
+            switch (op) {
+                case L:   op = BExp.Comparison.OpType.G;   break;
+                case LEQ: op = BExp.Comparison.OpType.GEQ; break;
+                case G:   op = BExp.Comparison.OpType.L;   break;
+                case GEQ: op = BExp.Comparison.OpType.LEQ; break;
+                default:  break;
+            }
+        }
+
+        int n = number, min = Integer.MIN_VALUE, max = Integer.MAX_VALUE;
+        switch (op) {
+            case EQ:  return new Range(slot, n, n, false);
+            case NEQ: return new Range(slot, n, n, true);
+            // no value is below the smallest or above the largest, so these
+            // hold for none of all values
+            case L:   return n == min ? new Range(slot, min, max, true) : new Range(slot, min, n - 1, false);
+            case LEQ: return new Range(slot, min, n, false);
+            case G:   return n == max ? new Range(slot, min, max, true) : new Range(slot, n + 1, max, false);
+            default:  return new Range(slot, n, max, false);
+        }
+    }
+
+    private Node.Int[] arguments(Stm.ProcCall stm) {
+        Node.Int[] in = new Node.Int[stm.in.size()];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = new Node.UninitializedInt(stm.in.get(i));
+        }
+        return in;
+    }
+
+    private static Node.Exec[] uninitialized(List<Stm> stms) {
+        Node.Exec[] res = new Node.Exec[stms.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = new Node.UninitializedExec(stms.get(i));
+        }
+        return res;
+    }
+
+    public Node.Exec visitSingle(Stm.Single stm) {
+        switch (stm.type) {
+            case PRINT:
+                return new Node.Print();
+            case ABORT:
+                return new Node.Result(SlotInterpreter.Completion.ABORT);
+            case BREAK:
+                return new Node.Result(SlotInterpreter.Completion.BREAK);
+            default:
+                return new Node.Result(NORMAL);
+        }
+    }
+
+    public Node.Exec visitAssign(Stm.Assign stm) {
+        Integer number = number(stm.exp);
+        if (number != null) {
+            return new Node.AssignConstant(stm.slot, number);
+        }
+        if (stm.exp instanceof AExp.Binary) {
+            AExp.Binary exp = (AExp.Binary) stm.exp;
+            Integer n = number(exp.right);
+            if (n != null && variable(exp.left) == stm.slot && exp.operator != AExp.Binary.OpType.TIMES) {
+                return new Node.Increment(stm.slot, exp.operator == AExp.Binary.OpType.PLUS ? n : -n);
+            }
+        }
+        return new Node.Assign(stm.slot, new Node.UninitializedInt(stm.exp));
+    }
+
+    public Node.Exec visitIf(Stm.If stm) {
+        Node.Exec taken = new Node.UninitializedExec(stm.taken), notTaken = new Node.UninitializedExec(stm.notTaken);
+        Range range = range(stm.condition);
+        if (range != null) {
+            return new Node.IfInRange(range, taken, notTaken);
+        }
+        return new Node.If(new Node.UninitializedBool(stm.condition), taken, notTaken);
+    }
+
+    public Node.Exec visitWhile(Stm.While stm) {
+        Node.Exec body = new Node.UninitializedExec(stm.body);
+        Range range = range(stm.condition);
+        if (range != null) {
+            return new Node.WhileInRange(stm.closed, range, body);
+        }
+        return new Node.While(stm.closed, new Node.UninitializedBool(stm.condition), body);
+    }
+
+    public Node.Exec visitFor(Stm.For stm) {
+        return new Node.For(stm.slot, stm.closed, new Node.UninitializedInt(stm.start),
+            new Node.UninitializedInt(stm.end), new Node.UninitializedExec(stm.body));
+    }
+
+    public Node.Exec visitVar(Stm.Var stm) {
+        return new Node.Var(stm.slot, new Node.UninitializedInt(stm.decl), new Node.UninitializedExec(stm.body));
+    }
+
+    public Node.Exec visitSeq(Stm.Seq stm) {
+        if (stm.stms.size() == 1) {
+            return stm.stms.get(0).accept(this);
+        } else if (stm.stms.size() == 2) {
+            return new Node.Pair(new Node.UninitializedExec(stm.stms.get(0)), new Node.UninitializedExec(stm.stms.get(1)));
+        }
+        return new Node.Seq(uninitialized(stm.stms));
+    }
+
+    public Node.Exec visitNd(Stm.Nd stm) {
+        return new Node.Nd(uninitialized(stm.stms));
+    }
+
+    public Node.Exec visitProcDef(Stm.ProcDef stm) {
+        return new Node.Define(stm);
+    }
+
+    public Node.Exec visitProcCall(Stm.ProcCall stm) {
+        Node.Exec inlined = stm.target != null && stm.inlined != null ? new Node.UninitializedExec(stm.inlined) : null;
+        return call(stm, arguments(stm), inlined, 0);
+    }
+
+    // the node for a call that has been specialized the given number of
+    // times before
+    Node.Call call(Stm.ProcCall stm, Node.Int[] in, Node.Exec inlined, int misses) {
+        if (misses > MISSES) {
+            return new Node.GenericCall(stm, in, inlined);
+        }
+        Stm.ProcDef proc = target(stm);
+        return new Node.CachedCall(stm, in, inlined, this, proc, proc == null ? null : slots(proc), misses);
+    }
+
+    // the procedure the call runs, with its body turned into nodes, or null
+    // if it runs the inlined body
+    Stm.ProcDef target(Stm.ProcCall stm) {
+        Stm.ProcDef proc = procedure(stm);
+        if (proc != null && proc.node == null) {
+            proc.node = new Node.Root(new Node.UninitializedExec(proc.body));
+        }
+        return proc;
+    }
+
+    SlotInterpreter.Completion invoke(Stm.ProcCall stm, Stm.ProcDef proc, int[] slots, Node.Int[] in) {
+        int base = save(slots, proc.out.size());
+        try {
+            for (int i = 0; i < in.length; i++) {
+                assign(proc.inSlots[i], in[i].execute(this));
+            }
+            SlotInterpreter.Completion res = proc.node.execute(this);
+            if (res == NORMAL) {
+                restore(base, slots, proc, stm);
+            }
+            return res;
+        } finally {
+            top = base;
+        }
+    }
+
+    public Node.Exec visitBExp(Stm.SB stm) {
+        return new Node.ShowBool(new Node.UninitializedBool(stm.exp));
+    }
+
+    public Node.Exec visitAExp(Stm.SA stm) {
+        return new Node.ShowInt(new Node.UninitializedInt(stm.exp));
+    }
+
+    public Node.Bool visitBinary(BExp.Binary bexp) {
+        Node.Bool left = new Node.UninitializedBool(bexp.left), right = new Node.UninitializedBool(bexp.right);
+        if (bexp.operator == BExp.Binary.OpType.AND) {
+            return new Node.And(left, right);
+        }
+        return new Node.Or(left, right);
+    }
+
+    public Node.Bool visitNot(BExp.Not bexp) {
+        return new Node.Not(new Node.UninitializedBool(bexp.exp));
+    }
+
+    public Node.Bool visitComparison(BExp.Comparison bexp) {
+        Range range = range(bexp);
+        if (range != null) {
+            return new Node.InRange(range);
+        }
+        int a = variable(bexp.left), b = variable(bexp.right);
+        if (a >= 0 && b >= 0) {
+            switch (bexp.operator) {
+                case EQ:  return new Node.VariablesEqual(a, b, false);
+                case NEQ: return new Node.VariablesEqual(a, b, true);
+                case L:   return new Node.VariablesLess(a, b, false);
+                case LEQ: return new Node.VariablesLess(b, a, true);
+                case G:   return new Node.VariablesLess(b, a, false);
+                default:  return new Node.VariablesLess(a, b, true);
+            }
+        }
+        return new Node.Comparison(new Node.UninitializedInt(bexp.left), new Node.UninitializedInt(bexp.right),
+            bexp.operator);
+    }
+
+    public Node.Bool visitAtomic(BExp.Atomic bexp) {
+        return new Node.Truth(bexp.type == BExp.Atomic.Type.TRUE);
+    }
+
+    public Node.Int visitBinary(AExp.Binary aexp) {
+        Integer number = number(aexp.right);
+        if (number != null) {
+            int slot = variable(aexp.left);
+            if (slot >= 0) {
+                switch (aexp.operator) {
+                    case PLUS:  return new Node.VariablePlusConstant(slot, number);
+                    case MINUS: return new Node.VariablePlusConstant(slot, -number);
+                    default:    return new Node.VariableTimesConstant(slot, number);
+                }
+            }
+            Node.Int left = new Node.UninitializedInt(aexp.left);
+            switch (aexp.operator) {
+                case PLUS:  return new Node.PlusConstant(left, number);
+                case MINUS: return new Node.PlusConstant(left, -number);
+                default:    return new Node.TimesConstant(left, number);
+            }
+        }
+
+        Node.Int left = new Node.UninitializedInt(aexp.left), right = new Node.UninitializedInt(aexp.right);
+        switch (aexp.operator) {
+            case PLUS:  return new Node.Plus(left, right);
+            case MINUS: return new Node.Minus(left, right);
+            default:    return new Node.Times(left, right);
+        }
+    }
+
+    public Node.Int visitAtomic(AExp.Atomic aexp) {
+        if (aexp.atom.type == IDENTIFIER) {
+            return new Node.Variable(aexp.slot);
+        } else if (aexp.value != null) {
+            return new Node.Constant(aexp.value);
+        }
+        return new Node.Malformed(aexp.atom);
+    }
+}
@@ -0,0 +1,662 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static imp2.TokenType.*;
+
+/**
+ * Simplifies syntax trees before they are executed. Constant expressions are
+ * folded, branches and loops that can never run are dropped, nested
+ * sequences are flattened and arithmetic identities like (x + 0) are applied.
+ *
+ * The simplified tree behaves exactly like the original one, including the
+ * wrap-around of 32 bit arithmetic. Numbers that don't fit into an int fail
+ * at runtime, so an expression is only dropped if it contains none of them.
+ * Nodes are never changed: whatever stays the same is shared with the
+ * original tree.
+ *
+ * The simplified program, and each procedure body on its own, then go
+ * through value numbering, dead store elimination, loop-invariant code
+ * motion and inlining, in that order.
+ */
+class Optimizer implements Stm.Visitor<Stm>, BExp.Visitor<BExp>, AExp.Visitor<AExp> {
+
+    enum Rule {
+        CONSTANT_FOLDING("constant folding"),
+        IDENTITIES("arithmetic identities"),
+        DEAD_BRANCHES("dead branches"),
+        DEAD_LOOPS("dead loops"),
+        SEQUENCES("sequence flattening"),
+        UNREACHABLE("unreachable code"),
+        VALUE_NUMBERING("redundant expressions"),
+        DEAD_STORES("dead stores"),
+        LOOP_INVARIANTS("loop-invariant code motion"),
+        INLINING("inlined procedure calls", "call"),
+        SPECIALIZATION("specialized procedure calls", "call"),
+        CLOSED_FORMS("loops in closed form");
+
+        final String description;
+
+        // what the rule counts, nodes of the tree unless it counts calls
+        final String unit;
+
+        Rule(String description) {
+            this(description, "node");
+        }
+
+        Rule(String description, String unit) {
+            this.description = description;
+            this.unit = unit;
+        }
+    }
+
+    // nodes removed, or moved out of loops, or calls replaced, by every rule
+    // over all trees optimized so far
+    private final long[] removed = new long[Rule.values().length];
+
+    // whether the intermediate representation is printed
+    private final boolean dump;
+
+    // the procedures defined before the trees optimized, calls to which may be inlined
+    private final Map<String, Stm.ProcDef> procedures;
+
+    // the versions of procedures specialized for the numbers passed to them
+    final PartialEvaluator partialEvaluator = new PartialEvaluator(this);
+
+    // the procedures defined in the tree being optimized, in the order they are met
+    private final Map<String, Stm.ProcDef> defined = new HashMap<>();
+
+    // shared expressions are simplified once per tree, and stay shared
+    private Map<Object, Object> simplified = new IdentityHashMap<>();
+
+    Optimizer() {
+        this(false, new HashMap<>());
+    }
+
+    Optimizer(boolean dump, Map<String, Stm.ProcDef> procedures) {
+        this.dump = dump;
+        this.procedures = procedures;
+    }
+
+    Stm optimize(Stm tree) {
+        try {
+            return optimize(tree, "program", null);
+        } finally {
+            defined.clear();
+        }
+    }
+
+    // a program, whose variables all stay visible, or a procedure body, of
+    // which only the outputs do
+    Stm optimize(Stm tree, String name, List<String> outputs) {
+        // the parser only allows procedures to be defined at the top level of
+        // a program, not in bodies, blocks, loops or branches, so a definition
+        // met so far has run before the part of the program being walked. A
+        // tree optimized while none are met yet, like the program itself or a
+        // body parsed once it's called, sees only the procedures defined
+        // before it, since those the program defines further down aren't
+        // defined at its start
+        Function<String, Stm.ProcDef> known = defined.isEmpty() ? procedures::get : this::known;
+        // specializing a procedure optimizes its body while the tree calling
+        // it is still being walked, which keeps its own shared expressions
+        Map<Object, Object> outer = simplified;
+        simplified = new IdentityHashMap<>();
+        try {
+            return passes(tree.accept(this), name, outputs, known);
+        } finally {
+            simplified = outer;
+        }
+    }
+
+    // the procedure defined under the name before the current point of the
+    // tree, looked up without copying the procedures defined so far
+    private Stm.ProcDef known(String name) {
+        Stm.ProcDef res = defined.get(name);
+        return res != null ? res : procedures.get(name);
+    }
+
+    private Stm passes(Stm tree, String name, List<String> outputs, Function<String, Stm.ProcDef> known) {
+        StringBuilder listing = dump ? new StringBuilder() : null;
+        Stm res = new ValueNumbering(this, listing).run(tree, name);
+        res = new DeadStores(this).run(res, outputs);
+        res = new LoopInvariants(this).run(res);
+        res = new Inliner(this, known).run(res);
+        res = new ClosedForms(this).run(res);
+        if (dump) {
+            System.out.print(listing.append("  => ").append(new Printer().print(res)).append('\n'));
+        }
+        return res;
+    }
+
+    String report() {
+        StringBuilder stringBuilder = new StringBuilder("Optimizations");
+        for (Rule r : Rule.values()) {
+            stringBuilder.append("\n  ").append(r.description).append(" -> ")
+                .append(removed[r.ordinal()]).append(' ').append(r.unit).append(removed[r.ordinal()] == 1 ? "" : "s");
+        }
+        return stringBuilder.toString();
+    }
+
+    void count(Rule rule, int nodes) {
+        removed[rule.ordinal()] += nodes;
+    }
+
+    public Stm visitSingle(Stm.Single stm) {
+        return stm;
+    }
+
+    public Stm visitAssign(Stm.Assign stm) {
+        AExp exp = stm.exp.accept(this);
+        return exp == stm.exp ? stm : new Stm.Assign(stm.name, exp);
+    }
+
+    public Stm visitIf(Stm.If stm) {
+        BExp condition = stm.condition.accept(this);
+        if (isTrue(condition)) {
+            count(Rule.DEAD_BRANCHES, 2 + size(stm.notTaken));
+            return stm.taken.accept(this);
+        } else if (isFalse(condition)) {
+            count(Rule.DEAD_BRANCHES, 2 + size(stm.taken));
+            return stm.notTaken.accept(this);
+        }
+
+        Stm taken = stm.taken.accept(this), notTaken = stm.notTaken.accept(this);
+        if (condition == stm.condition && taken == stm.taken && notTaken == stm.notTaken) {
+            return stm;
+        }
+        return new Stm.If(condition, taken, notTaken);
+    }
+
+    public Stm visitWhile(Stm.While stm) {
+        BExp condition = stm.condition.accept(this);
+        if (isFalse(condition)) {
+            count(Rule.DEAD_LOOPS, 1 + size(stm.body));
+            return new Stm.Single(Stm.Single.Type.SKIP);
+        }
+
+        Stm body = stm.body.accept(this);
+        return condition == stm.condition && body == stm.body ? stm : new Stm.While(condition, body);
+    }
+
+    public Stm visitFor(Stm.For stm) {
+        AExp start = stm.start.accept(this), end = stm.end.accept(this);
+
+        // a loop from a number to itself only sets the loop variable
+        Integer from = value(start), to = value(end);
+        if (from != null && from.equals(to)) {
+            count(Rule.DEAD_LOOPS, 1 + size(stm.body));
+            return new Stm.Assign(stm.loopvar, start);
+        }
+
+        Stm body = stm.body.accept(this);
+        if (start == stm.start && end == stm.end && body == stm.body) {
+            return stm;
+        }
+        return new Stm.For(stm.loopvar, start, end, body);
+    }
+
+    public Stm visitVar(Stm.Var stm) {
+        AExp decl = stm.decl.accept(this);
+        Stm body = stm.body.accept(this);
+        return decl == stm.decl && body == stm.body ? stm : new Stm.Var(stm.name, decl, body);
+    }
+
+    public Stm visitSeq(Stm.Seq stm) {
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+
+        for (int i = 0; i < stm.stms.size(); i++) {
+            Stm s = stm.stms.get(i).accept(this);
+            changed |= s != stm.stms.get(i);
+
+            if (s instanceof Stm.Seq) {
+                count(Rule.SEQUENCES, 1);
+                stms.addAll(((Stm.Seq) s).stms);
+                changed = true;
+            } else if (isSingle(s, Stm.Single.Type.SKIP)) {
+                count(Rule.SEQUENCES, 1);
+                changed = true;
+            } else {
+                stms.add(s);
+            }
+
+            // nothing after an abort or a break is ever executed
+            Stm last = stms.isEmpty() ? null : stms.get(stms.size() - 1);
+            if (isSingle(last, Stm.Single.Type.ABORT) || isSingle(last, Stm.Single.Type.BREAK)) {
+                for (Stm dead : stm.stms.subList(i + 1, stm.stms.size())) {
+                    count(Rule.UNREACHABLE, size(dead));
+                    changed = true;
+                }
+                break;
+            }
+        }
+
+        if (stms.isEmpty()) {
+            return new Stm.Single(Stm.Single.Type.SKIP);
+        } else if (stms.size() == 1) {
+            count(Rule.SEQUENCES, 1);
+            return stms.get(0);
+        }
+        return changed ? new Stm.Seq(stms) : stm;
+    }
+
+    public Stm visitNd(Stm.Nd stm) {
+        // every alternative is kept, since their number decides how likely each one is
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (Stm s : stm.stms) {
+            Stm res = s.accept(this);
+            changed |= res != s;
+            stms.add(res);
+        }
+        return changed ? new Stm.Nd(stms) : stm;
+    }
+
+    public Stm visitProcDef(Stm.ProcDef stm) {
+        if (stm.body == null) {
+            // bodies that haven't been parsed yet are optimized once they are
+            return define(new Stm.ProcDef(stm.name, stm.in, stm.out, () -> {
+                Stm body = stm.body();
+                return body != null ? optimize(body, header(stm), stm.out) : null;
+            }));
+        }
+
+        Stm body = passes(stm.body.accept(this), header(stm), stm.out, this::known);
+        return define(body == stm.body ? stm : new Stm.ProcDef(stm.name, stm.in, stm.out, body));
+    }
+
+    private Stm define(Stm.ProcDef stm) {
+        defined.put(stm.name.lexeme, stm);
+        return stm;
+    }
+
+    private static String header(Stm.ProcDef stm) {
+        return "procedure " + stm.name.lexeme + "(" + String.join(", ", stm.in) + "; " + String.join(", ", stm.out) + ")";
+    }
+
+    public Stm visitProcCall(Stm.ProcCall stm) {
+        List<AExp> in = new ArrayList<>();
+        boolean changed = false;
+        for (AExp a : stm.in) {
+            AExp res = a.accept(this);
+            changed |= res != a;
+            in.add(res);
+        }
+        return changed ? new Stm.ProcCall(stm.name, in, stm.out) : stm;
+    }
+
+    public Stm visitBExp(Stm.SB stm) {
+        BExp exp = stm.exp.accept(this);
+        return exp == stm.exp ? stm : new Stm.SB(exp);
+    }
+
+    public Stm visitAExp(Stm.SA stm) {
+        AExp exp = stm.exp.accept(this);
+        return exp == stm.exp ? stm : new Stm.SA(exp);
+    }
+
+    public BExp visitBinary(BExp.Binary bexp) {
+        BExp res = (BExp) simplified.get(bexp);
+        if (res == null) {
+            res = simplify(bexp);
+            remember(bexp, res);
+        }
+        return res;
+    }
+
+    public BExp visitNot(BExp.Not bexp) {
+        BExp res = (BExp) simplified.get(bexp);
+        if (res == null) {
+            res = simplify(bexp);
+            remember(bexp, res);
+        }
+        return res;
+    }
+
+    public BExp visitComparison(BExp.Comparison bexp) {
+        BExp res = (BExp) simplified.get(bexp);
+        if (res == null) {
+            res = simplify(bexp);
+            remember(bexp, res);
+        }
+        return res;
+    }
+
+    public BExp visitAtomic(BExp.Atomic bexp) {
+        return bexp;
+    }
+
+    public AExp visitBinary(AExp.Binary aexp) {
+        AExp res = (AExp) simplified.get(aexp);
+        if (res == null) {
+            res = simplify(aexp);
+            remember(aexp, res);
+        }
+        return res;
+    }
+
+    public AExp visitAtomic(AExp.Atomic aexp) {
+        return aexp;
+    }
+
+    private void remember(AExp aexp, AExp res) {
+        if (aexp.shared) {
+            simplified.put(aexp, res);
+        }
+    }
+
+    private void remember(BExp bexp, BExp res) {
+        if (bexp.shared) {
+            simplified.put(bexp, res);
+        }
+    }
+
+    // a rebuilt expression stands for all places the original one was shared between
+    private static AExp rebuilt(AExp original, AExp res) {
+        res.shared = original.shared;
+        return res;
+    }
+
+    private static BExp rebuilt(BExp original, BExp res) {
+        res.shared = original.shared;
+        return res;
+    }
+
+    private BExp simplify(BExp.Binary bexp) {
+        BExp left = bexp.left.accept(this), right = bexp.right.accept(this);
+        boolean and = bexp.operator == BExp.Binary.OpType.AND;
+
+        // both sides are always evaluated, so a side is only dropped if it can't fail
+        if (isTrue(left) || isFalse(left)) {
+            if (isTrue(left) == and) {
+                count(Rule.CONSTANT_FOLDING, 2);
+                return right;
+            } else if (safe(right)) {
+                count(Rule.CONSTANT_FOLDING, 1 + size(right));
+                return left;
+            }
+        }
+        if (isTrue(right) || isFalse(right)) {
+            if (isTrue(right) == and) {
+                count(Rule.CONSTANT_FOLDING, 2);
+                return left;
+            } else if (safe(left)) {
+                count(Rule.CONSTANT_FOLDING, 1 + size(left));
+                return right;
+            }
+        }
+
+        return left == bexp.left && right == bexp.right ? bexp : rebuilt(bexp, new BExp.Binary(left, right, bexp.operator));
+    }
+
+    private BExp simplify(BExp.Not bexp) {
+        BExp exp = bexp.exp.accept(this);
+        if (isTrue(exp) || isFalse(exp)) {
+            count(Rule.CONSTANT_FOLDING, 1);
+            return bool(isFalse(exp));
+        } else if (exp instanceof BExp.Not) {
+            count(Rule.IDENTITIES, 2);
+            return ((BExp.Not) exp).exp;
+        }
+        return exp == bexp.exp ? bexp : rebuilt(bexp, new BExp.Not(exp));
+    }
+
+    private BExp simplify(BExp.Comparison bexp) {
+        AExp left = bexp.left.accept(this), right = bexp.right.accept(this);
+
+        Integer l = value(left), r = value(right);
+        if (l != null && r != null) {
+            count(Rule.CONSTANT_FOLDING, 2);
+            return bool(compare(bexp.operator, l, r));
+        } else if (safe(left) && equal(left, right)) {
+            // x = x, x <= x and x >= x always hold, the others never do
+            count(Rule.IDENTITIES, size(left) + size(right));
+            return bool(compare(bexp.operator, 0, 0));
+        }
+
+        return left == bexp.left && right == bexp.right ? bexp : rebuilt(bexp, new BExp.Comparison(left, right, bexp.operator));
+    }
+
+    private AExp simplify(AExp.Binary aexp) {
+        AExp left = aexp.left.accept(this), right = aexp.right.accept(this);
+
+        Integer l = value(left), r = value(right);
+        if (l != null && r != null) {
+            count(Rule.CONSTANT_FOLDING, 2);
+            switch (aexp.operator) {
+                case PLUS:  return number(left, l + r);
+                case MINUS: return number(left, l - r);
+                default:    return number(left, l * r);
+            }
+        }
+
+        switch (aexp.operator) {
+            case PLUS:
+                if (isNumber(left, 0)) {
+                    count(Rule.IDENTITIES, 2);
+                    return right;
+                } else if (isNumber(right, 0)) {
+                    count(Rule.IDENTITIES, 2);
+                    return left;
+                }
+                break;
+            case MINUS:
+                if (isNumber(right, 0)) {
+                    count(Rule.IDENTITIES, 2);
+                    return left;
+                } else if (safe(left) && equal(left, right)) {
+                    count(Rule.IDENTITIES, size(left) + size(right));
+                    return number(firstAtom(left), 0);
+                }
+                break;
+            default:
+                if (isNumber(left, 1)) {
+                    count(Rule.IDENTITIES, 2);
+                    return right;
+                } else if (isNumber(right, 1)) {
+                    count(Rule.IDENTITIES, 2);
+                    return left;
+                } else if (isNumber(left, 0) && safe(right)) {
+                    count(Rule.IDENTITIES, 1 + size(right));
+                    return left;
+                } else if (isNumber(right, 0) && safe(left)) {
+                    count(Rule.IDENTITIES, 1 + size(left));
+                    return right;
+                }
+                break;
+        }
+
+        return left == aexp.left && right == aexp.right ? aexp : rebuilt(aexp, new AExp.Binary(left, right, aexp.operator));
+    }
+
+    private static boolean compare(BExp.Comparison.OpType operator, int left, int right) {
+        switch (operator) {
+            case EQ:  return left == right;
+            case NEQ: return left != right;
+            case G:   return left >  right;
+            case GEQ: return left >= right;
+            case L:   return left <  right;
+            default:  return left <= right; // '<='
+        }
+    }
+
+    // a number in the place of the expression at, so errors still point there
+    private static AExp number(AExp at, int value) {
+        Token token = ((AExp.Atomic) at).atom;
+        return new AExp.Atomic(new Token(NUMBER, token.line, token.index, Integer.toString(value)));
+    }
+
+    private static BExp bool(boolean value) {
+        return new BExp.Atomic(value ? BExp.Atomic.Type.TRUE : BExp.Atomic.Type.FALSE);
+    }
+
+    // the value of a number that fits into an int, null for everything else
+    static Integer value(AExp aexp) {
+        return aexp instanceof AExp.Atomic ? ((AExp.Atomic) aexp).value : null;
+    }
+
+    private static boolean isNumber(AExp aexp, int value) {
+        Integer v = value(aexp);
+        return v != null && v == value;
+    }
+
+    static boolean isTrue(BExp bexp) {
+        return bexp instanceof BExp.Atomic && ((BExp.Atomic) bexp).type == BExp.Atomic.Type.TRUE;
+    }
+
+    static boolean isFalse(BExp bexp) {
+        return bexp instanceof BExp.Atomic && ((BExp.Atomic) bexp).type == BExp.Atomic.Type.FALSE;
+    }
+
+    private static boolean isSingle(Stm stm, Stm.Single.Type type) {
+        return stm instanceof Stm.Single && ((Stm.Single) stm).type == type;
+    }
+
+    static AExp firstAtom(AExp aexp) {
+        while (aexp instanceof AExp.Binary) {
+            aexp = ((AExp.Binary) aexp).left;
+        }
+        return aexp;
+    }
+
+    // whether two expressions always have the same value
+    static boolean equal(AExp a, AExp b) {
+        if (a == b) {
+            return true;
+        } else if (a instanceof AExp.Atomic && b instanceof AExp.Atomic) {
+            Token x = ((AExp.Atomic) a).atom, y = ((AExp.Atomic) b).atom;
+            return x.type == y.type && x.lexeme.equals(y.lexeme);
+        } else if (a instanceof AExp.Binary && b instanceof AExp.Binary) {
+            AExp.Binary x = (AExp.Binary) a, y = (AExp.Binary) b;
+            return x.operator == y.operator && equal(x.left, y.left) && equal(x.right, y.right);
+        }
+        return false;
+    }
+
+    // whether evaluating an expression can't fail
+    static boolean safe(AExp aexp) {
+        if (aexp instanceof AExp.Binary) {
+            return safe(((AExp.Binary) aexp).left) && safe(((AExp.Binary) aexp).right);
+        }
+        AExp.Atomic atomic = (AExp.Atomic) aexp;
+        return atomic.atom.type == IDENTIFIER || atomic.value != null;
+    }
+
+    static boolean safe(BExp bexp) {
+        if (bexp instanceof BExp.Binary) {
+            return safe(((BExp.Binary) bexp).left) && safe(((BExp.Binary) bexp).right);
+        } else if (bexp instanceof BExp.Not) {
+            return safe(((BExp.Not) bexp).exp);
+        } else if (bexp instanceof BExp.Comparison) {
+            return safe(((BExp.Comparison) bexp).left) && safe(((BExp.Comparison) bexp).right);
+        }
+        return true;
+    }
+
+    static int size(Stm stm) {
+        return stm.accept(Size.instance);
+    }
+
+    static int size(BExp bexp) {
+        return bexp.accept(Size.instance);
+    }
+
+    static int size(AExp aexp) {
+        return aexp.accept(Size.instance);
+    }
+
+    // the number of nodes in a tree, without procedure bodies that haven't been parsed
+    private static class Size implements Stm.Visitor<Integer>, BExp.Visitor<Integer>, AExp.Visitor<Integer> {
+
+        static final Size instance = new Size();
+
+        public Integer visitSingle(Stm.Single stm) {
+            return 1;
+        }
+
+        public Integer visitAssign(Stm.Assign stm) {
+            return 1 + stm.exp.accept(this);
+        }
+
+        public Integer visitIf(Stm.If stm) {
+            return 1 + stm.condition.accept(this) + stm.taken.accept(this) + stm.notTaken.accept(this);
+        }
+
+        public Integer visitWhile(Stm.While stm) {
+            return 1 + stm.condition.accept(this) + stm.body.accept(this);
+        }
+
+        public Integer visitFor(Stm.For stm) {
+            return 1 + stm.start.accept(this) + stm.end.accept(this) + stm.body.accept(this);
+        }
+
+        public Integer visitVar(Stm.Var stm) {
+            return 1 + stm.decl.accept(this) + stm.body.accept(this);
+        }
+
+        public Integer visitSeq(Stm.Seq stm) {
+            int res = 1;
+            for (Stm s : stm.stms) {
+                res += s.accept(this);
+            }
+            return res;
+        }
+
+        public Integer visitNd(Stm.Nd stm) {
+            int res = 1;
+            for (Stm s : stm.stms) {
+                res += s.accept(this);
+            }
+            return res;
+        }
+
+        public Integer visitProcDef(Stm.ProcDef stm) {
+            return 1 + (stm.body != null ? stm.body.accept(this) : 0);
+        }
+
+        public Integer visitProcCall(Stm.ProcCall stm) {
+            int res = 1;
+            for (AExp a : stm.in) {
+                res += a.accept(this);
+            }
+            return res;
+        }
+
+        public Integer visitBExp(Stm.SB stm) {
+            return 1 + stm.exp.accept(this);
+        }
+
+        public Integer visitAExp(Stm.SA stm) {
+            return 1 + stm.exp.accept(this);
+        }
+
+        public Integer visitBinary(BExp.Binary bexp) {
+            return 1 + bexp.left.accept(this) + bexp.right.accept(this);
+        }
+
+        public Integer visitNot(BExp.Not bexp) {
+            return 1 + bexp.exp.accept(this);
+        }
+
+        public Integer visitComparison(BExp.Comparison bexp) {
+            return 1 + bexp.left.accept(this) + bexp.right.accept(this);
+        }
+
+        public Integer visitAtomic(BExp.Atomic bexp) {
+            return 1;
+        }
+
+        public Integer visitBinary(AExp.Binary aexp) {
+            return 1 + aexp.left.accept(this) + aexp.right.accept(this);
+        }
+
+        public Integer visitAtomic(AExp.Atomic aexp) {
+            return 1;
+        }
+    }
+}
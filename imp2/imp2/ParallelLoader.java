@@ -0,0 +1,153 @@
+package imp2;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Reads, lexes and parses several files at once. Every file is a task of
+ * its own, and within a file the top-level instructions are parsed in
+ * parallel once the semicolons between them are known. Nothing is reported
+ * or executed here: the results are taken in order, so errors and output
+ * appear the same way as if the files were loaded one after the other.
+ */
+class ParallelLoader {
+
+    // top-level instructions are parsed in batches of at least this many tokens
+    private static final int BATCH = 1 << 14;
+
+    private final ForkJoinPool pool;
+    private final boolean lazyBodies;
+    private final AstCache cache;
+
+    ParallelLoader(boolean lazyBodies, AstCache cache) {
+        this(ForkJoinPool.commonPool(), lazyBodies, cache);
+    }
+
+    // without a cache, no trees are loaded or stored
+    ParallelLoader(ForkJoinPool pool, boolean lazyBodies, AstCache cache) {
+        this.pool = pool;
+        this.lazyBodies = lazyBodies && cache == null;
+        this.cache = cache;
+    }
+
+    // starts loading all files, the results are in the same order
+    List<ForkJoinTask<Loaded>> load(List<String> files) {
+        List<ForkJoinTask<Loaded>> res = new ArrayList<>();
+        for (String s : files) {
+            res.add(pool.submit(() -> load(s)));
+        }
+        return res;
+    }
+
+    private Loaded load(String s) {
+        Loaded res = new Loaded();
+        try (SourceFile file = new SourceFile(Paths.get(s))) {
+            if (file.size() == 0) {
+                res.empty = true;
+                return res;
+            }
+
+            // every file gets its own symbol table, so no two tasks intern at the same time
+            Symbols symbols = new Symbols();
+
+            byte[] key = null;
+            if (cache != null) {
+                key = file.digest();
+                res.tree = cache.load(key, symbols);
+                if (res.tree != null) {
+                    return res;
+                }
+            }
+
+            TokenBuffer tokens;
+            if (file.size() >= ChunkedLexer.THRESHOLD && pool.getParallelism() > 1) {
+                tokens = new ChunkedLexer(pool, symbols, res.diagnostics).lex(file);
+            } else {
+                tokens = new Lexer(symbols, res.diagnostics).lex(file.reader());
+            }
+            if (!res.diagnostics.isEmpty()) {
+                res.lexerError = true;
+                return res;
+            }
+
+            res.tree = parse(tokens, res.diagnostics);
+            if (res.tree != null && cache != null) {
+                cache.store(key, res.tree);
+            }
+        } catch (IOException e) {
+            res.failure = e;
+        }
+        return res;
+    }
+
+    private Stm parse(TokenBuffer tokens, Diagnostics diagnostics) {
+        List<Integer> semicolons = Parser.topLevelSemicolons(tokens);
+        int eof = tokens.size() - 1;
+
+        List<int[]> units = new ArrayList<>();
+        if (semicolons != null) {
+            int start = 0;
+            for (int i : semicolons) {
+                units.add(new int[] { start, i });
+                start = i + 1;
+            }
+            // the file may end with a semicolon
+            if (start < eof) {
+                units.add(new int[] { start, eof });
+            }
+        }
+
+        List<ForkJoinTask<List<Stm>>> batches = new ArrayList<>();
+        int from = 0;
+        for (int i = 0; i < units.size(); i++) {
+            int[] last = units.get(i);
+            if (i == units.size() - 1 || last[1] - units.get(from)[0] >= BATCH) {
+                List<int[]> batch = units.subList(from, i + 1);
+                batches.add(ForkJoinTask.adapt(() -> parseUnits(tokens, batch)));
+                from = i + 1;
+            }
+        }
+        ForkJoinTask.invokeAll(batches);
+
+        List<Stm> stms = new ArrayList<>();
+        for (ForkJoinTask<List<Stm>> batch : batches) {
+            List<Stm> res = batch.join();
+            if (res == null) {
+                stms = null;
+                break;
+            }
+            stms.addAll(res);
+        }
+
+        if (stms == null || stms.isEmpty()) {
+            // the file isn't a list of top-level instructions, its errors
+            // come from parsing it as a whole
+            return new Parser(true, lazyBodies, diagnostics).parse(tokens);
+        }
+        return stms.size() > 1 ? new Stm.Seq(stms) : stms.get(0);
+    }
+
+    private List<Stm> parseUnits(TokenBuffer tokens, List<int[]> units) {
+        Parser parser = new Parser(true, lazyBodies);
+        List<Stm> res = new ArrayList<>();
+        for (int[] unit : units) {
+            Stm tree = unit[0] < unit[1] ? parser.parseUnit(tokens.slice(unit[0], unit[1])) : null;
+            if (tree == null) {
+                return null;
+            }
+            res.add(tree);
+        }
+        return res;
+    }
+
+    static class Loaded {
+        Stm tree;
+        final Diagnostics diagnostics = new Diagnostics();
+        boolean empty, lexerError;
+        IOException failure;
+    }
+}
@@ -2,7 +2,10 @@ package imp2;
 
 import java.lang.RuntimeException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 import imp2.Stm.ProcDef;
 
@@ -10,21 +13,58 @@ import static imp2.TokenType.*;
 
 class Parser {
 
-    private List<Token> tokens;
+    // placeholder for 'no failure yet', never reported
+    private static final ParseFail noFail = new ParseFail(null, null, -1);
+
+    private TokenBuffer tokens;
     private int index;
+    private final Map<Long, Memo> memos = new HashMap<>();
+
+    // equal expressions within one parse share a node
+    private final ExpressionTable expressions = new ExpressionTable();
+
+    // tried first, the backtracking rules below only run if it gives up
+    private final PredictiveParser predictive;
+
+    // collects errors instead of logging them directly, if set
+    private final Diagnostics diagnostics;
+
+    public Parser() {
+        this(true);
+    }
+
+    Parser(boolean predictive) {
+        this(predictive, false);
+    }
+
+    // with lazyBodies, the bodies of procedures that are parsed predictively
+    // are only parsed when the procedure is first called
+    Parser(boolean predictive, boolean lazyBodies) {
+        this(predictive, lazyBodies, null);
+    }
+
+    Parser(boolean predictive, boolean lazyBodies, Diagnostics diagnostics) {
+        this.predictive = predictive ? new PredictiveParser(lazyBodies) : null;
+        this.diagnostics = diagnostics;
+    }
 
-    public Parser() {}
+    Stm parse(TokenBuffer tokens) {
+        if (predictive != null) {
+            Stm result = predictive.parse(tokens);
+            if (result != null) {
+                return result;
+            }
+        }
 
-    Stm parse(List<Token> tokens) {
         this.tokens = tokens;
         reset();
 
-        ParseFail fail = new ParseFail(null, null, -1);
+        ParseFail fail = noFail;
 
         try {
             Stm result = parseStm(true, false);
             if (index < tokens.size() - 1) {
-                throw new ParseFail(peek(), "Unexpected Token.", 1);
+                throw new ParseFail(current(), "Unexpected Token.", 1);
             }
             return result;
         } catch (ParseFail f) {
@@ -34,7 +74,7 @@ class Parser {
         try {
             Stm result = new Stm.SB(parseBooleanWithErrorProductions());
             if (index < tokens.size() - 1) {
-                throw new ParseFail(peek(), "Unexpected Token.", 1);
+                throw new ParseFail(current(), "Unexpected Token.", 1);
             }
             return result;
         } catch (ParseFail f) {
@@ -44,7 +84,7 @@ class Parser {
         try {
             Stm result = new Stm.SA(parseArithmeticWithErrorProductions());
             if (index < tokens.size() - 1) {
-                throw new ParseFail(peek(), "Unexpected Token.", 1);
+                throw new ParseFail(current(), "Unexpected Token.", 1);
             }
             return result;
         } catch (ParseFail f) {
@@ -55,114 +95,193 @@ class Parser {
         return null;
     }
 
-    private Stm parseStm(boolean allowProcDefs, boolean allowBreak) {
-        int prev_index = index;
+    // parses the statement of a procedure body that was skipped before,
+    // errors are reported right away
+    Stm parseBody(TokenBuffer tokens) {
+        if (predictive != null) {
+            Stm result = predictive.parseBody(tokens);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        this.tokens = tokens;
+        reset();
 
         try {
-            List<Stm> stms = new ArrayList<>();
-            stms.add(parseSingleInstruction(allowProcDefs, allowBreak));
+            Stm result = parseStm(false, false);
+            if (index < tokens.size() - 1) {
+                throw new ParseFail(current(), "Unexpected Token.", 1);
+            }
+            return result;
+        } catch (ParseFail f) {
+            logError(f.where, f.message);
+            return null;
+        }
+    }
 
-            while (peek().type == SEMICOLON) {
-                advance(); // ';' token
-                try {
-                    Stm next = parseSingleInstruction(true, false);
-                    stms.add(next);
-                } catch (ParseFail fail) {
-                    break;
-                }
+    // parses a single top-level instruction that takes up all of tokens,
+    // returns null without reporting errors if there is none
+    Stm parseUnit(TokenBuffer tokens) {
+        if (predictive != null) {
+            Stm result = predictive.parseUnit(tokens);
+            if (result != null) {
+                return result;
             }
+        }
 
-            if (stms.size() > 1) {
-                return new Stm.Seq(stms);
-            } else if (stms.size() == 1) {
-                return stms.get(0);
-            } else {
-                throw new ParseFail(peek(), "Expected Instruction.", 1.0);
+        this.tokens = tokens;
+        reset();
+
+        try {
+            Stm result = parseSingleInstruction(true, true, false);
+            return index < tokens.size() - 1 ? null : result;
+        } catch (ParseFail f) {
+            return null;
+        }
+    }
+
+    // indices of the semicolons that separate top-level instructions, that
+    // is the ones outside of any block or parentheses, or null if a block
+    // or parenthesis is closed that was never opened
+    static List<Integer> topLevelSemicolons(TokenBuffer tokens) {
+        List<Integer> res = new ArrayList<>();
+        int depth = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            depth += nesting(tokens.type(i));
+            if (depth < 0) {
+                return null;
+            } else if (depth == 0 && tokens.type(i) == SEMICOLON) {
+                res.add(i);
             }
-        } catch (ParseFail fail) {
-            index = prev_index;
-            throw fail;
+        }
+        return res;
+    }
+
+    // how much a token changes the depth of blocks and parentheses
+    static int nesting(TokenType type) {
+        switch (type) {
+            case LPAREN: case IF: case WHILE: case FOR: case VAR: case BEGIN:
+                return 1;
+            case RPAREN: case END:
+                return -1;
+            default:
+                return 0;
         }
     }
 
+    private Stm parseStm(boolean allowProcDefs, boolean allowBreak) {
+        return memoized(Rule.STM, flags(allowProcDefs, allowBreak), () -> {
+            int prev_index = index;
+
+            try {
+                List<Stm> stms = new ArrayList<>();
+                stms.add(parseSingleInstruction(allowProcDefs, allowBreak));
+
+                while (peek() == SEMICOLON) {
+                    advance(); // ';' token
+                    try {
+                        Stm next = parseSingleInstruction(true, false);
+                        stms.add(next);
+                    } catch (ParseFail fail) {
+                        break;
+                    }
+                }
+
+                if (stms.size() > 1) {
+                    return new Stm.Seq(stms);
+                } else if (stms.size() == 1) {
+                    return stms.get(0);
+                } else {
+                    throw new ParseFail(current(), "Expected Instruction.", 1.0);
+                }
+            } catch (ParseFail fail) {
+                index = prev_index;
+                throw fail;
+            }
+        });
+    }
+
     private Stm parseSingleInstruction(boolean allowProcDefs, boolean allowBreak) {
         return parseSingleInstruction(true, allowProcDefs, allowBreak);
     }
 
     private Stm parseSingleInstruction(boolean allowNd, boolean allowProcDefs, boolean allowBreak) {
-        ParseFail fail = new ParseFail(null, null, -1);
+        return memoized(Rule.INSTRUCTION, flags(allowNd, allowProcDefs, allowBreak), () -> {
+            ParseFail fail = noFail;
+
+            if (allowNd) {
+                try {
+                    return parseStmNd(allowBreak);
+                } catch (ParseFail f) {
+                    fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                }
+            }
 
-        if (allowNd) {
             try {
-                return parseStmNd(allowBreak);
+                Stm procdef = parseStmProcDef();
+                if (!allowProcDefs) {
+                    throw new ParseFail(((Stm.ProcDef)procdef).name, "Procedure Definitions not allowed within blocks.", 1);
+                } else {
+                    return procdef;
+                }
             } catch (ParseFail f) {
                 fail = (fail.likelihood >= f.likelihood) ? fail : f;
             }
-        }
 
-        try {
-            Stm procdef = parseStmProcDef();
-            if (!allowProcDefs) {
-                throw new ParseFail(((Stm.ProcDef)procdef).name, "Procedure Definitions not allowed within blocks.", 1);
-            } else {
-                return procdef;
+            try {
+                return parseStmSeq(allowBreak);
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
             }
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
-
-        try {
-            return parseStmSeq(allowBreak);
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
 
-        try {
-            Stm res = parseStmSingle(allowBreak);
-            if (((Stm.Single) res).type == Stm.Single.Type.BREAK && !allowBreak) {
-                throw new ParseFail(tokens.get(index - 1), "'break' only allowed inside loop.", 1.0);
+            try {
+                Stm res = parseStmSingle(allowBreak);
+                if (((Stm.Single) res).type == Stm.Single.Type.BREAK && !allowBreak) {
+                    throw new ParseFail(token(index - 1), "'break' only allowed inside loop.", 1.0);
+                }
+                return res;
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
             }
-            return res;
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
 
-        try {
-            return parseStmIf(allowBreak);
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
+            try {
+                return parseStmIf(allowBreak);
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+            }
 
-        try {
-            return parseStmWhile();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
+            try {
+                return parseStmWhile();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+            }
 
-        try {
-            return parseStmFor();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
+            try {
+                return parseStmFor();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+            }
         
-        try {
-            return parseStmProcCall();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
+            try {
+                return parseStmProcCall();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+            }
 
-        try {
-            return parseStmVar(allowBreak);
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
+            try {
+                return parseStmVar(allowBreak);
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+            }
 
-        try {
-            return parseStmAssign();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-            throw fail;
-        }
+            try {
+                return parseStmAssign();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                throw fail;
+            }
+        });
     }
 
     private Stm parseStmNd(boolean allowBreak) {
@@ -175,7 +294,7 @@ class Parser {
             List<Stm> stms = new ArrayList<>();
             stms.add(first);
             stms.add(second);
-            while (peek().type == PIPE) {
+            while (peek() == PIPE) {
                 advance(); // '|' token
                 stms.add(parseSingleInstruction(false, false, allowBreak));
             }
@@ -187,289 +306,309 @@ class Parser {
     }
 
     private Stm parseStmSeq(boolean allowBreak) {
-        int prev_index = index;
+        return memoized(Rule.SEQ, flags(allowBreak), () -> {
+            int prev_index = index;
 
-        try {
-            expect("Statement Sequences can be surrounded by parentheses.", -0.01, LPAREN);
-            Stm first = parseSingleInstruction(true, false, allowBreak);
-            expect("Statement Sequences must separate statements by semicola.", 0.95, SEMICOLON);
-            Stm second = parseSingleInstruction(true, false, allowBreak);
-            List<Stm> stms = new ArrayList<>();
-            stms.add(first);
-            stms.add(second);
-            while (peek().type == SEMICOLON) {
-                advance(); // ';' token
-                if (peek().type == RPAREN) {
-                    throw new ParseFail(peek(), "Expected Statement in Statement Sequence.", 0.95);
+            try {
+                expect("Statement Sequences can be surrounded by parentheses.", -0.01, LPAREN);
+                Stm first = parseSingleInstruction(true, false, allowBreak);
+                expect("Statement Sequences must separate statements by semicola.", 0.95, SEMICOLON);
+                Stm second = parseSingleInstruction(true, false, allowBreak);
+                List<Stm> stms = new ArrayList<>();
+                stms.add(first);
+                stms.add(second);
+                while (peek() == SEMICOLON) {
+                    advance(); // ';' token
+                    if (peek() == RPAREN) {
+                        throw new ParseFail(current(), "Expected Statement in Statement Sequence.", 0.95);
+                    }
+                    stms.add(parseSingleInstruction(true, false, allowBreak));
                 }
-                stms.add(parseSingleInstruction(true, false, allowBreak));
+                expect("Statement Sequences that open with a parenthesis must be closed by one.", 0.95, RPAREN);
+                return new Stm.Seq(stms);
+            } catch (ParseFail fail) {
+                index = prev_index;
+                throw fail;
             }
-            expect("Statement Sequences that open with a parenthesis must be closed by one.", 0.95, RPAREN);
-            return new Stm.Seq(stms);
-        } catch (ParseFail fail) {
-            index = prev_index;
-            throw fail;
-        }
+        });
     }
 
     private Stm parseStmSingle(boolean allowBreak) {
-        Token t = expect("Expect 'print', 'skip', 'break' or 'abort' for single statement.", 0.1, PRINT, SKIP, BREAK, ABORT);
-        switch (t.type) {
+        int t = expect("Expect 'print', 'skip', 'break' or 'abort' for single statement.", 0.1, PRINT, SKIP, BREAK, ABORT);
+        switch (type(t)) {
             case PRINT: return new Stm.Single(Stm.Single.Type.PRINT);
             case SKIP:  return new Stm.Single(Stm.Single.Type.SKIP);
             case BREAK:
                 if (allowBreak) {
                     return new Stm.Single(Stm.Single.Type.BREAK);
                 } else {
-                    throw new ParseFail(t, "'break' not allowed outside of 'for' or 'while' loop.", 1.0);
+                    throw new ParseFail(token(t), "'break' not allowed outside of 'for' or 'while' loop.", 1.0);
                 }
             default:    return new Stm.Single(Stm.Single.Type.ABORT);
         }
     }
 
     private Stm parseStmAssign() {
-        int prev_index = index;
+        return memoized(Rule.ASSIGN, 0, () -> {
+            int prev_index = index;
 
-        try {
-            String name = expect("Expect Identifier for Assignment Statement", 0.1, IDENTIFIER).lexeme;
-            expect("Expect ':=' as an assignment operator.", 0.1, ASSIGN);
-            AExp exp = parseArithmeticWithErrorProductions();
-            return new Stm.Assign(name, exp);
-        } catch (ParseFail fail) {
-            index = prev_index;
-            throw fail;
-        }
+            try {
+                String name = lexeme(expect("Expect Identifier for Assignment Statement", 0.1, IDENTIFIER));
+                expect("Expect ':=' as an assignment operator.", 0.1, ASSIGN);
+                AExp exp = parseArithmeticWithErrorProductions();
+                return new Stm.Assign(name, exp);
+            } catch (ParseFail fail) {
+                index = prev_index;
+                throw fail;
+            }
+        });
     }
 
     private Stm parseStmIf(boolean allowBreak) {
-        int prev_index = index;
+        return memoized(Rule.IF, flags(allowBreak), () -> {
+            int prev_index = index;
 
-        try {
-            expect("Expect 'if' Token in Conditional Statement.", 0, IF);
-            BExp condition = parseBooleanWithErrorProductions();
-            expect("Expect 'then' Token in 'if' Statement.", 0.95, THEN);
-            Stm taken = parseStm(false, allowBreak);
-            Stm notTaken = new Stm.Single(Stm.Single.Type.SKIP);
-            if (peek().type == ELSE) {
-                advance(); // 'else' token
-                notTaken = parseStm(false, allowBreak);
-            }
-            expect("Expect 'end' Token in 'if' Statement.", 0.95, END);
-            return new Stm.If(condition, taken, notTaken);
-        } catch (ParseFail fail) {
-            index = prev_index;
-            throw fail;
-        }
+            try {
+                expect("Expect 'if' Token in Conditional Statement.", 0, IF);
+                BExp condition = parseBooleanWithErrorProductions();
+                expect("Expect 'then' Token in 'if' Statement.", 0.95, THEN);
+                Stm taken = parseStm(false, allowBreak);
+                Stm notTaken = new Stm.Single(Stm.Single.Type.SKIP);
+                if (peek() == ELSE) {
+                    advance(); // 'else' token
+                    notTaken = parseStm(false, allowBreak);
+                }
+                expect("Expect 'end' Token in 'if' Statement.", 0.95, END);
+                return new Stm.If(condition, taken, notTaken);
+            } catch (ParseFail fail) {
+                index = prev_index;
+                throw fail;
+            }
+        });
     }
 
     private Stm parseStmWhile() {
-        int prev_index = index;
+        return memoized(Rule.WHILE, 0, () -> {
+            int prev_index = index;
 
-        try {
-            expect("Expect 'while' Token in Loop Statement.", 0, WHILE);
-            BExp condition = parseBooleanWithErrorProductions();
-            expect("Expect 'do' Token in 'while' Statement.", 0.95, DO);
-            Stm body = parseStm(false, true);
-            expect("Expect 'end' Token in 'while' Statement.", 0.95, END);
-            return new Stm.While(condition, body);
-        } catch (ParseFail fail) {
-            index = prev_index;
-            throw fail;
-        }
+            try {
+                expect("Expect 'while' Token in Loop Statement.", 0, WHILE);
+                BExp condition = parseBooleanWithErrorProductions();
+                expect("Expect 'do' Token in 'while' Statement.", 0.95, DO);
+                Stm body = parseStm(false, true);
+                expect("Expect 'end' Token in 'while' Statement.", 0.95, END);
+                return new Stm.While(condition, body);
+            } catch (ParseFail fail) {
+                index = prev_index;
+                throw fail;
+            }
+        });
     }
 
     private Stm parseStmFor() {
-        int prev_index = index;
+        return memoized(Rule.FOR, 0, () -> {
+            int prev_index = index;
 
-        try {
-            expect("Expect 'for' Token in Loop Statement.", 0, FOR);
-            Token name = expect("'for' loops must start with a loop variable name.", 0.9, IDENTIFIER);
-            expect("Variable assignment in 'for' loop must be preceded by the assignment operator ':='.", 0.95, ASSIGN);
-            AExp start = parseArithmeticWithErrorProductions();
-            expect("'for' loop bounds must be separated by 'to'.", 0.95, TO);
-            AExp end = parseArithmeticWithErrorProductions();
-            expect("'for' loops must use 'do' to start the loop body.", 0.95, DO);
-            Stm body = parseStm(false, true);
-            expect("Expect 'end' Token in 'for' statement.", 0.95, END);
-            return new Stm.For(name.lexeme, start, end, body);
-        } catch (ParseFail fail) {
-            index = prev_index;
-            throw fail;
-        }
+            try {
+                expect("Expect 'for' Token in Loop Statement.", 0, FOR);
+                String name = lexeme(expect("'for' loops must start with a loop variable name.", 0.9, IDENTIFIER));
+                expect("Variable assignment in 'for' loop must be preceded by the assignment operator ':='.", 0.95, ASSIGN);
+                AExp start = parseArithmeticWithErrorProductions();
+                expect("'for' loop bounds must be separated by 'to'.", 0.95, TO);
+                AExp end = parseArithmeticWithErrorProductions();
+                expect("'for' loops must use 'do' to start the loop body.", 0.95, DO);
+                Stm body = parseStm(false, true);
+                expect("Expect 'end' Token in 'for' statement.", 0.95, END);
+                return new Stm.For(name, start, end, body);
+            } catch (ParseFail fail) {
+                index = prev_index;
+                throw fail;
+            }
+        });
     }
 
     private Stm parseStmProcDef() {
-        int prev_index = index;
+        return memoized(Rule.PROC_DEF, 0, () -> {
+            int prev_index = index;
 
-        try {
-            expect("Expect 'procedure' Token in Procedure Definition.", 0, PROCEDURE);
-            Token name = expect("Procedure Definitions require a name.", 0.95, IDENTIFIER);
-            expect("Procedure Definitions require an argument list that opens with a parenthesis.", 0.95, LPAREN);
-            List<String> in = new ArrayList<>(), out = new ArrayList<>();
-            while (peek().type != SEMICOLON) {
-                in.add(expect("Procedure Definitions require identifiers as input arguments.", 0.95, IDENTIFIER).lexeme);
-                if (expect("Procedure Arguments must be separated by a comma.", 0.95, COMMA, SEMICOLON).type == SEMICOLON) {
-                    index--;
+            try {
+                expect("Expect 'procedure' Token in Procedure Definition.", 0, PROCEDURE);
+                Token name = token(expect("Procedure Definitions require a name.", 0.95, IDENTIFIER));
+                expect("Procedure Definitions require an argument list that opens with a parenthesis.", 0.95, LPAREN);
+                List<String> in = new ArrayList<>(), out = new ArrayList<>();
+                while (peek() != SEMICOLON) {
+                    in.add(lexeme(expect("Procedure Definitions require identifiers as input arguments.", 0.95, IDENTIFIER)));
+                    if (type(expect("Procedure Arguments must be separated by a comma.", 0.95, COMMA, SEMICOLON)) == SEMICOLON) {
+                        index--;
+                    }
                 }
-            }
-            advance(); // ';' token
-            while (peek().type != RPAREN) {
-                out.add(expect("Procedure Definitions must be closed with a parenthesis ')'.", 0.95, IDENTIFIER).lexeme);
-                if (expect("Procedure Return Values must be separated by a comma.", 0.95, COMMA, RPAREN).type == RPAREN) {
-                    index--;
+                advance(); // ';' token
+                while (peek() != RPAREN) {
+                    out.add(lexeme(expect("Procedure Definitions must be closed with a parenthesis ')'.", 0.95, IDENTIFIER)));
+                    if (type(expect("Procedure Return Values must be separated by a comma.", 0.95, COMMA, RPAREN)) == RPAREN) {
+                        index--;
+                    }
                 }
-            }
-            advance(); // ')' token
-            expect("Procedure Definitions must begin with a 'begin' keyword.", 0.95, BEGIN);
-            Stm body = parseStm(false, false);
-            expect("Procedure Definitions must be closed with an 'end' token.", 0.95, END);
+                advance(); // ')' token
+                expect("Procedure Definitions must begin with a 'begin' keyword.", 0.95, BEGIN);
+                Stm body = parseStm(false, false);
+                expect("Procedure Definitions must be closed with an 'end' token.", 0.95, END);
             
-            if (containsDuplicates(in) || containsDuplicates(out)) {
-                throw new ParseFail(name, "Procedure Arguments must be pairwise distinct (input and ouput).", 0.95);
-            }
+                if (containsDuplicates(in) || containsDuplicates(out)) {
+                    throw new ParseFail(name, "Procedure Arguments must be pairwise distinct (input and ouput).", 0.95);
+                }
 
-            return new Stm.ProcDef(name, in, out, body);
-        } catch (ParseFail fail) {
-            index = prev_index;
-            throw fail;
-        }
+                return new Stm.ProcDef(name, in, out, body);
+            } catch (ParseFail fail) {
+                index = prev_index;
+                throw fail;
+            }
+        });
     }
 
     private Stm parseStmProcCall() {
-        int prev_index = index;
+        return memoized(Rule.PROC_CALL, 0, () -> {
+            int prev_index = index;
 
-        try {
-            Token name = expect("Procedure Calls must begin with the procedure's name.", 0, IDENTIFIER);
-            expect("Procedure Calls must contain an argument list.", 0.2, LPAREN);
-            List<AExp> in = new ArrayList<>();
-            if (peek().type != SEMICOLON) {
-                in.add(parseArithmeticWithErrorProductions());
-            }
-            while (peek().type != SEMICOLON) {
-                if (expect("Procedure Arguments must be separated by a comma.", 0.95, COMMA, SEMICOLON).type == SEMICOLON) {
-                    index--;
+            try {
+                Token name = token(expect("Procedure Calls must begin with the procedure's name.", 0, IDENTIFIER));
+                expect("Procedure Calls must contain an argument list.", 0.2, LPAREN);
+                List<AExp> in = new ArrayList<>();
+                if (peek() != SEMICOLON) {
+                    in.add(parseArithmeticWithErrorProductions());
                 }
-                in.add(parseArithmeticWithErrorProductions());
-            }
-            advance(); // ';' token
-            List<String> out = new ArrayList<>();
-            if (peek().type != RPAREN) {
-                out.add(expect("Procedure Call return value list must be terminated by a closing parenthesis.", 0.95, IDENTIFIER).lexeme);
-            }
-            while (peek().type != RPAREN) {
-                if (expect("Procedure Call return value list must be terminated by a closing parenthesis.", 0.95, COMMA, RPAREN).type == RPAREN) {
-                    index--;
+                while (peek() != SEMICOLON) {
+                    if (type(expect("Procedure Arguments must be separated by a comma.", 0.95, COMMA, SEMICOLON)) == SEMICOLON) {
+                        index--;
+                    }
+                    in.add(parseArithmeticWithErrorProductions());
                 }
-                out.add(expect("Procedure Call return value list must be terminated by a closing parenthesis.", 0.95, IDENTIFIER).lexeme);
-            }
-            advance(); // ')' token
-            if (containsDuplicates(out)) {
-                throw new ParseFail(name, "Procedure Arguments must be pairwise distinct.", 0.95);
+                advance(); // ';' token
+                List<String> out = new ArrayList<>();
+                if (peek() != RPAREN) {
+                    out.add(lexeme(expect("Procedure Call return value list must be terminated by a closing parenthesis.", 0.95, IDENTIFIER)));
+                }
+                while (peek() != RPAREN) {
+                    if (type(expect("Procedure Call return value list must be terminated by a closing parenthesis.", 0.95, COMMA, RPAREN)) == RPAREN) {
+                        index--;
+                    }
+                    out.add(lexeme(expect("Procedure Call return value list must be terminated by a closing parenthesis.", 0.95, IDENTIFIER)));
+                }
+                advance(); // ')' token
+                if (containsDuplicates(out)) {
+                    throw new ParseFail(name, "Procedure Arguments must be pairwise distinct.", 0.95);
+                }
+                return new Stm.ProcCall(name, in, out);
+            } catch (ParseFail fail) {
+                index = prev_index;
+                throw fail;
             }
-            return new Stm.ProcCall(name, in, out);
-        } catch (ParseFail fail) {
-            index = prev_index;
-            throw fail;
-        }
+        });
     }
 
     private Stm parseStmVar(boolean allowBreak) {
-        int prev_index = index;
+        return memoized(Rule.VAR, flags(allowBreak), () -> {
+            int prev_index = index;
 
-        try {
-            expect("Scope block must start with 'var'.", 0, VAR);
-            String name = expect("Scope block must denote a variable name.", 0.95, IDENTIFIER).lexeme;
-            expect("Expect ':=' in scope block variable definition.", 0.95, ASSIGN);
-            AExp decl = parseArithmeticWithErrorProductions();
-            expect("Expect 'in' in scope block definition.", 0.95, IN);
-            Stm body = parseStm(false, allowBreak);
-            expect("Expect 'end' at the end of a scope block.", 0.95, END);
-            return new Stm.Var(name, decl, body);
-        } catch (ParseFail fail) {
-            index = prev_index;
-            throw fail;
-        }
+            try {
+                expect("Scope block must start with 'var'.", 0, VAR);
+                String name = lexeme(expect("Scope block must denote a variable name.", 0.95, IDENTIFIER));
+                expect("Expect ':=' in scope block variable definition.", 0.95, ASSIGN);
+                AExp decl = parseArithmeticWithErrorProductions();
+                expect("Expect 'in' in scope block definition.", 0.95, IN);
+                Stm body = parseStm(false, allowBreak);
+                expect("Expect 'end' at the end of a scope block.", 0.95, END);
+                return new Stm.Var(name, decl, body);
+            } catch (ParseFail fail) {
+                index = prev_index;
+                throw fail;
+            }
+        });
     }
 
     private BExp parseBooleanWithErrorProductions() {
-        ParseFail fail = new ParseFail(null, null, -1);
+        return memoized(Rule.BOOLEAN_WEP, 0, () -> {
+            ParseFail fail = noFail;
 
-        boolean forcethrow = false;
-        int prev_index = index;
+            boolean forcethrow = false;
+            int prev_index = index;
 
-        try {
-            parseBoolean(); // left
-            Token operator = advance();
-            parseBoolean(); // right
+            try {
+                parseBoolean(); // left
+                int operator = advance();
+                parseBoolean(); // right
 
-            if (operator.type == AND || operator.type == OR) {
-                forcethrow = true;
-                throw new ParseFail(operator, "Binary Boolean Expression must be enclosed by Braces.", 2);
-            } else {
-                throw fail;
-            }
-        } catch (ParseFail f) {
-            index = prev_index;
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                if (type(operator) == AND || type(operator) == OR) {
+                    forcethrow = true;
+                    throw new ParseFail(token(operator), "Binary Boolean Expression must be enclosed by Braces.", 2);
+                } else {
+                    throw fail;
+                }
+            } catch (ParseFail f) {
+                index = prev_index;
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
 
-            if (forcethrow) {
-                throw fail;
+                if (forcethrow) {
+                    throw fail;
+                }
             }
-        }
 
-        try {
-            expect("", 0, LPAREN);
-            parseBooleanWithErrorProductions();
-            expect("", 0, RPAREN);
+            try {
+                expect("", 0, LPAREN);
+                parseBooleanWithErrorProductions();
+                expect("", 0, RPAREN);
 
-            forcethrow = true;
-            throw new ParseFail(tokens.get(prev_index), "Boolean Expressions cannot be surrounded by additional Parentheses.", 2);
-        } catch (ParseFail f) {
-            index = prev_index;
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                forcethrow = true;
+                throw new ParseFail(token(prev_index), "Boolean Expressions cannot be surrounded by additional Parentheses.", 2);
+            } catch (ParseFail f) {
+                index = prev_index;
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
 
-            if (forcethrow) {
-                throw fail;
+                if (forcethrow) {
+                    throw fail;
+                }
             }
-        }
 
-        try {
-            return parseBoolean();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-            throw fail;
-        }
+            try {
+                return parseBoolean();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                throw fail;
+            }
+        });
     }
 
     private BExp parseBoolean() {
-        ParseFail fail = new ParseFail(null, null, -1);
-
-        if (peek().type == TRUE) {
-            advance();
-            return new BExp.Atomic(BExp.Atomic.Type.TRUE);
-        } else if (peek().type == FALSE) {
-            advance();
-            return new BExp.Atomic(BExp.Atomic.Type.FALSE);
-        }
+        return memoized(Rule.BOOLEAN, 0, () -> {
+            ParseFail fail = noFail;
+
+            if (peek() == TRUE) {
+                advance();
+                return expressions.atomic(BExp.Atomic.Type.TRUE);
+            } else if (peek() == FALSE) {
+                advance();
+                return expressions.atomic(BExp.Atomic.Type.FALSE);
+            }
 
-        try {
-            return parseBooleanBinary();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
+            try {
+                return parseBooleanBinary();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+            }
 
-        try {
-            return parseBooleanNot();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
+            try {
+                return parseBooleanNot();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+            }
 
-        try {
-            return parseBooleanComparison();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-            throw fail;
-        }
+            try {
+                return parseBooleanComparison();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                throw fail;
+            }
+        });
     }
 
     private BExp parseBooleanComparison() {
@@ -477,23 +616,23 @@ class Parser {
 
         try {
             AExp left = parseArithmeticWithErrorProductions();
-            Token operator = advance();
+            int operator = advance();
             AExp right = parseArithmeticWithErrorProductions();
-            switch (operator.type) {
+            switch (type(operator)) {
                 case EQUAL:
-                    return new BExp.Comparison(left, right, BExp.Comparison.OpType.EQ);
+                    return expressions.comparison(left, right, BExp.Comparison.OpType.EQ);
                 case NOT_EQUAL:
-                    return new BExp.Comparison(left, right, BExp.Comparison.OpType.NEQ);
+                    return expressions.comparison(left, right, BExp.Comparison.OpType.NEQ);
                 case GREATER:
-                    return new BExp.Comparison(left, right, BExp.Comparison.OpType.G);
+                    return expressions.comparison(left, right, BExp.Comparison.OpType.G);
                 case GREATER_EQUAL:
-                    return new BExp.Comparison(left, right, BExp.Comparison.OpType.GEQ);
+                    return expressions.comparison(left, right, BExp.Comparison.OpType.GEQ);
                 case LESS:
-                    return new BExp.Comparison(left, right, BExp.Comparison.OpType.L);
+                    return expressions.comparison(left, right, BExp.Comparison.OpType.L);
                 case LESS_EQUAL:
-                    return new BExp.Comparison(left, right, BExp.Comparison.OpType.LEQ);
+                    return expressions.comparison(left, right, BExp.Comparison.OpType.LEQ);
                 default:
-                    throw new ParseFail(operator, "Illegal Operator for Comparison Operator.", 0.75);
+                    throw new ParseFail(token(operator), "Illegal Operator for Comparison Operator.", 0.75);
             }
         } catch (ParseFail fail) {
             index = prev_index;
@@ -506,7 +645,7 @@ class Parser {
 
         try {
             expect("Expect 'not' token for boolean negation operation.", 0, NOT);
-            return new BExp.Not(parseBooleanWithErrorProductions());
+            return expressions.not(parseBooleanWithErrorProductions());
         } catch (ParseFail fail) {
             index = prev_index;
             throw fail;
@@ -519,16 +658,16 @@ class Parser {
         try {
             expect("Binary Boolean Expressions must open with a '('.", 0.05, LPAREN);
             BExp left = parseBoolean();
-            Token operator = advance();
+            int operator = advance();
             BExp right = parseBoolean();
             expect("Expect ')' after Binary Boolean Expression.", 0.9, RPAREN);
-            switch (operator.type) {
+            switch (type(operator)) {
                 case AND:
-                    return new BExp.Binary(left, right, BExp.Binary.OpType.AND);
+                    return expressions.binary(left, right, BExp.Binary.OpType.AND);
                 case OR:
-                    return new BExp.Binary(left, right, BExp.Binary.OpType.OR);
+                    return expressions.binary(left, right, BExp.Binary.OpType.OR);
                 default:
-                    throw new ParseFail(operator, "Illegal Operator for Binary Boolean Operation.", 0.7);
+                    throw new ParseFail(token(operator), "Illegal Operator for Binary Boolean Operation.", 0.7);
             }
         } catch (ParseFail fail) {
             index = prev_index;
@@ -537,71 +676,75 @@ class Parser {
     }
 
     private AExp parseArithmeticWithErrorProductions() {
-        ParseFail fail = new ParseFail(null, null, -1);
+        return memoized(Rule.ARITHMETIC_WEP, 0, () -> {
+            ParseFail fail = noFail;
 
-        boolean forcethrow = false;
-        int prev_index = index;
+            boolean forcethrow = false;
+            int prev_index = index;
 
-        // No Parentheses
-        try {
-            parseArithmetic(); // left
-            Token operator = advance();
-            parseArithmetic(); // right
+            // No Parentheses
+            try {
+                parseArithmetic(); // left
+                int operator = advance();
+                parseArithmetic(); // right
 
-            if (operator.type == PLUS || operator.type == MINUS || operator.type == TIMES) {
-                forcethrow = true;
-                throw new ParseFail(operator, "Binary Arithmetic Expression must be enclosed by Braces.", 2);
-            } else {
-                throw fail;
-            }
-        } catch (ParseFail f) {
-            index = prev_index;
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                if (type(operator) == PLUS || type(operator) == MINUS || type(operator) == TIMES) {
+                    forcethrow = true;
+                    throw new ParseFail(token(operator), "Binary Arithmetic Expression must be enclosed by Braces.", 2);
+                } else {
+                    throw fail;
+                }
+            } catch (ParseFail f) {
+                index = prev_index;
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
 
-            if (forcethrow) {
-                throw fail;
+                if (forcethrow) {
+                    throw fail;
+                }
             }
-        }
 
-        try {
-            expect("", 0, LPAREN);
-            parseArithmeticWithErrorProductions();
-            expect("", 0, RPAREN);
+            try {
+                expect("", 0, LPAREN);
+                parseArithmeticWithErrorProductions();
+                expect("", 0, RPAREN);
 
-            forcethrow = true;
-            throw new ParseFail(tokens.get(prev_index), "Arithmetic Expressions cannot be surrounded by additional Parentheses.", 2);
-        } catch (ParseFail f) {
-            index = prev_index;
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                forcethrow = true;
+                throw new ParseFail(token(prev_index), "Arithmetic Expressions cannot be surrounded by additional Parentheses.", 2);
+            } catch (ParseFail f) {
+                index = prev_index;
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
 
-            if (forcethrow) {
-                throw fail;
+                if (forcethrow) {
+                    throw fail;
+                }
             }
-        }
 
-        try {
-            return parseArithmetic();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-            throw fail;
-        }
+            try {
+                return parseArithmetic();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                throw fail;
+            }
+        });
     }
 
     private AExp parseArithmetic() {
-        ParseFail fail = new ParseFail(null, null, -1);
+        return memoized(Rule.ARITHMETIC, 0, () -> {
+            ParseFail fail = noFail;
 
-        try {
-            return parseArithmeticBinary();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-        }
+            try {
+                return parseArithmeticBinary();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+            }
 
-        try {
-            return parseArithmeticAtomic();
-        } catch (ParseFail f) {
-            fail = (fail.likelihood >= f.likelihood) ? fail : f;
-            throw fail;
-        }
+            try {
+                return parseArithmeticAtomic();
+            } catch (ParseFail f) {
+                fail = (fail.likelihood >= f.likelihood) ? fail : f;
+                throw fail;
+            }
+        });
     }
 
     private AExp parseArithmeticBinary() {
@@ -610,18 +753,18 @@ class Parser {
         try {
             expect("Binary Arithmetic Expressions must open with a '('.", 0.1, LPAREN);
             AExp left = parseArithmetic();
-            Token operator = advance();
+            int operator = advance();
             AExp right = parseArithmetic();
             expect("Expect ')' after Binary Arithmetic Expression.", 0.9, RPAREN);
-            switch (operator.type) {
+            switch (type(operator)) {
                 case PLUS:
-                    return new AExp.Binary(left, right, AExp.Binary.OpType.PLUS);
+                    return expressions.binary(left, right, AExp.Binary.OpType.PLUS);
                 case MINUS:
-                    return new AExp.Binary(left, right, AExp.Binary.OpType.MINUS);
+                    return expressions.binary(left, right, AExp.Binary.OpType.MINUS);
                 case TIMES:
-                    return new AExp.Binary(left, right, AExp.Binary.OpType.TIMES);
+                    return expressions.binary(left, right, AExp.Binary.OpType.TIMES);
                 default:
-                    throw new ParseFail(operator, "Illegal Operator for Binary Arithmetic Operation.", 0.8);
+                    throw new ParseFail(token(operator), "Illegal Operator for Binary Arithmetic Operation.", 0.8);
             }
         } catch (ParseFail fail) {
             index = prev_index;
@@ -630,25 +773,47 @@ class Parser {
     }
 
     private AExp parseArithmeticAtomic() {
-        return new AExp.Atomic(expect("Unexpected Atomic Token.", 0, IDENTIFIER, NUMBER));
+        return expressions.atomic(token(expect("Unexpected Atomic Token.", 0, IDENTIFIER, NUMBER)));
     }
 
-    private Token expect(String errorMessage, double likelihood, TokenType... types) {
+    private int expect(String errorMessage, double likelihood, TokenType... types) {
         for (TokenType t : types) {
-            if (peek().type == t) { return advance(); }
+            if (peek() == t) { return advance(); }
         }
-        throw new ParseFail(peek(), errorMessage, likelihood);
+        throw new ParseFail(current(), errorMessage, likelihood);
+    }
+
+    private int advance() {
+        return index++;
+    }
+
+    private TokenType peek() {
+        return type(index);
     }
 
-    private Token advance() {
-        Token t = peek();
-        index++;
-        return t;
+    private Token current() {
+        return token(index);
     }
 
-    private Token peek() {
-        if (index < tokens.size()) {
-            return tokens.get(index);
+    private TokenType type(int i) {
+        if (i < tokens.size()) {
+            return tokens.type(i);
+        } else {
+            return ERROR;
+        }
+    }
+
+    private String lexeme(int i) {
+        if (i < tokens.size()) {
+            return tokens.lexeme(i);
+        } else {
+            return "";
+        }
+    }
+
+    private Token token(int i) {
+        if (i < tokens.size()) {
+            return tokens.token(i);
         } else {
             return new Token(ERROR, 0, 0, "");
         }
@@ -656,15 +821,73 @@ class Parser {
 
     private void reset() {
         index = 0;
+        memos.clear();
+        expressions.clear();
+    }
+
+    // Every rule is tried at most once per token index and combination of
+    // flags: the resulting tree or failure is remembered together with the
+    // index it left the parser at, and replayed when the rule is tried again.
+    private <T> T memoized(Rule rule, int flags, Supplier<T> parse) {
+        long key = ((long) index << 8) | (rule.ordinal() << 3) | flags;
+        Memo memo = memos.get(key);
+        if (memo == null) {
+            try {
+                T result = parse.get();
+                memo = new Memo(result, null, index);
+            } catch (ParseFail fail) {
+                memo = new Memo(null, fail, index);
+            }
+            memos.put(key, memo);
+        }
+
+        index = memo.end;
+        if (memo.fail != null) {
+            throw memo.fail;
+        }
+        @SuppressWarnings("unchecked")
+        T result = (T) memo.result;
+        return result;
     }
 
+    private static int flags(boolean a) {
+        return a ? 1 : 0;
+    }
+
+    private static int flags(boolean a, boolean b) {
+        return (flags(a) << 1) | flags(b);
+    }
+
+    private static int flags(boolean a, boolean b, boolean c) {
+        return (flags(a, b) << 1) | flags(c);
+    }
+
+    private enum Rule {
+        STM, INSTRUCTION, SEQ, ASSIGN, IF, WHILE, FOR, PROC_DEF, PROC_CALL, VAR,
+        BOOLEAN_WEP, BOOLEAN, ARITHMETIC_WEP, ARITHMETIC
+    }
+
+    private static class Memo {
+        final Object result;
+        final ParseFail fail;
+        final int end;
+
+        Memo(Object result, ParseFail fail, int end) {
+            this.result = result;
+            this.fail = fail;
+            this.end = end;
+        }
+    }
+
+    // failures are thrown for every alternative that doesn't match, so they
+    // don't record a stack trace
     private static class ParseFail extends RuntimeException {
         Token where;
         String message;
         double likelihood;
 
         public ParseFail(Token where, String message, double likelihood) {
-            super();
+            super(null, null, false, false);
             this.where = where;
             this.message = message;
             this.likelihood = likelihood;
@@ -672,7 +895,11 @@ class Parser {
     }
 
     private void logError(Token token, String message) {
-        Imp.logDirectError(token, message);
+        if (diagnostics != null) {
+            diagnostics.report(token, message);
+        } else {
+            Imp.logDirectError(token, message);
+        }
     }
 
     private static <T> boolean containsDuplicates(List<T> l) {
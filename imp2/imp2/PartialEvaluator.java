@@ -0,0 +1,328 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static imp2.TokenType.*;
+
+/**
+ * Specializes procedures for the numbers passed to them. The body is run
+ * ahead with the values of those parameters known: what only depends on
+ * known values is computed, branches on them are resolved and loops whose
+ * condition stays known are unrolled. Everything else stays in the body as
+ * it is, like the alternatives of a nondeterministic choice, which all stay.
+ *
+ * A loop is unrolled while its condition stays known, and what remains of it
+ * is kept as a loop once it isn't. Loops with a break or a procedure call,
+ * which may break out of it as well, are never unrolled. There is a limit to
+ * how many nodes each specialization may produce, after which all loops
+ * remain as they are.
+ *
+ * Specializations are kept per procedure definition and numbers passed.
+ * Bodies that call procedures are only specialized once they are first run,
+ * so recursive procedures aren't unfolded any deeper than they are called.
+ */
+class PartialEvaluator {
+
+    // the number of nodes unrolling may produce for one specialization
+    static final int MAX_SIZE = 4096;
+
+    // the number of different argument lists a procedure is specialized for
+    static final int MAX_VERSIONS = 64;
+
+    private final Optimizer optimizer;
+    private final Map<Stm.ProcDef, Map<List<Integer>, Stm.ProcDef>> versions = new WeakHashMap<>();
+
+    PartialEvaluator(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    // the procedure specialized for the numbers among the arguments, null if there are none
+    Stm.ProcDef specialize(Stm.ProcDef proc, List<AExp> in) {
+        Integer[] known = new Integer[in.size()];
+        boolean any = false;
+        for (int i = 0; i < in.size(); i++) {
+            known[i] = Optimizer.value(in.get(i));
+            any |= known[i] != null;
+        }
+        if (!any || proc.body == null || in.size() != proc.in.size()) {
+            return null;
+        }
+
+        Map<List<Integer>, Stm.ProcDef> specialized = versions.computeIfAbsent(proc, p -> new HashMap<>());
+        List<Integer> key = Arrays.asList(known);
+        Stm.ProcDef res = specialized.get(key);
+        if (res == null && specialized.size() < MAX_VERSIONS) {
+            if (Uses.of(proc.body).calls) {
+                res = new Stm.ProcDef(proc.name, proc.in, proc.out, () -> residual(proc, known));
+            } else {
+                res = new Stm.ProcDef(proc.name, proc.in, proc.out, residual(proc, known));
+            }
+            specialized.put(key, res);
+        }
+        return res;
+    }
+
+    private Stm residual(Stm.ProcDef proc, Integer[] known) {
+        Residual residual = new Residual();
+        for (int i = 0; i < known.length; i++) {
+            residual.bind(proc.in.get(i), known[i]);
+        }
+        List<String> in = new ArrayList<>();
+        for (int i = 0; i < known.length; i++) {
+            in.add(known[i] != null ? known[i].toString() : proc.in.get(i));
+        }
+        String name = "procedure " + proc.name.lexeme + "(" + String.join(", ", in) + "; " + String.join(", ", proc.out) + ")";
+        return optimizer.optimize(proc.body.accept(residual), name, proc.out);
+    }
+
+    // the body as it remains with some variables known
+    private class Residual implements Stm.Visitor<Stm> {
+
+        private Map<String, Integer> known = new HashMap<>();
+        private int size = 0;
+
+        void bind(String name, Integer value) {
+            if (value != null) {
+                known.put(name, value);
+            } else {
+                known.remove(name);
+            }
+        }
+
+        private AExp evaluate(AExp aexp) {
+            return substitute(aexp).accept(optimizer);
+        }
+
+        private BExp evaluate(BExp bexp) {
+            return substitute(bexp).accept(optimizer);
+        }
+
+        private AExp substitute(AExp aexp) {
+            if (aexp instanceof AExp.Atomic) {
+                Token atom = ((AExp.Atomic) aexp).atom;
+                Integer value = atom.type == IDENTIFIER ? known.get(atom.lexeme) : null;
+                return value == null ? aexp : new AExp.Atomic(new Token(NUMBER, atom.line, atom.index, value.toString()));
+            }
+            AExp.Binary binary = (AExp.Binary) aexp;
+            AExp left = substitute(binary.left), right = substitute(binary.right);
+            return left == binary.left && right == binary.right ? aexp : new AExp.Binary(left, right, binary.operator);
+        }
+
+        private BExp substitute(BExp bexp) {
+            if (bexp instanceof BExp.Binary) {
+                BExp.Binary binary = (BExp.Binary) bexp;
+                BExp left = substitute(binary.left), right = substitute(binary.right);
+                return left == binary.left && right == binary.right ? bexp : new BExp.Binary(left, right, binary.operator);
+            } else if (bexp instanceof BExp.Not) {
+                BExp exp = substitute(((BExp.Not) bexp).exp);
+                return exp == ((BExp.Not) bexp).exp ? bexp : new BExp.Not(exp);
+            } else if (bexp instanceof BExp.Comparison) {
+                BExp.Comparison comparison = (BExp.Comparison) bexp;
+                AExp left = substitute(comparison.left), right = substitute(comparison.right);
+                if (left == comparison.left && right == comparison.right) {
+                    return bexp;
+                }
+                return new BExp.Comparison(left, right, comparison.operator);
+            }
+            return bexp;
+        }
+
+        // only what all paths agree on stays known after they join
+        private void join(List<Map<String, Integer>> paths) {
+            known = paths.get(0);
+            for (Map<String, Integer> path : paths.subList(1, paths.size())) {
+                known.entrySet().removeIf(e -> !e.getValue().equals(path.get(e.getKey())));
+            }
+        }
+
+        // the variables a loop assigns aren't known in it, nor after it
+        private void forget(Stm loop) {
+            known.keySet().removeAll(Uses.of(loop).assigned);
+        }
+
+        private boolean unrollable(Stm loop, Stm body) {
+            return size < MAX_SIZE && !Uses.of(body).breaks && !Uses.of(loop).calls;
+        }
+
+        public Stm visitSingle(Stm.Single stm) {
+            return stm;
+        }
+
+        public Stm visitAssign(Stm.Assign stm) {
+            AExp exp = evaluate(stm.exp);
+            bind(stm.name, Optimizer.value(exp));
+            return exp == stm.exp ? stm : new Stm.Assign(stm.name, exp);
+        }
+
+        public Stm visitIf(Stm.If stm) {
+            BExp condition = evaluate(stm.condition);
+            if (Optimizer.isTrue(condition)) {
+                return stm.taken.accept(this);
+            } else if (Optimizer.isFalse(condition)) {
+                return stm.notTaken.accept(this);
+            }
+
+            Map<String, Integer> before = known;
+            known = new HashMap<>(before);
+            Stm taken = stm.taken.accept(this);
+            Map<String, Integer> afterTaken = known;
+            known = new HashMap<>(before);
+            Stm notTaken = stm.notTaken.accept(this);
+            join(List.of(afterTaken, known));
+            return new Stm.If(condition, taken, notTaken);
+        }
+
+        public Stm visitWhile(Stm.While stm) {
+            List<Stm> unrolled = new ArrayList<>();
+            if (unrollable(stm, stm.body)) {
+                Map<String, Integer> before = new HashMap<>(known);
+                int sizeBefore = size;
+                while (size < MAX_SIZE) {
+                    BExp condition = evaluate(stm.condition);
+                    if (Optimizer.isFalse(condition)) {
+                        return sequence(unrolled);
+                    } else if (!Optimizer.isTrue(condition)) {
+                        break;
+                    }
+                    Stm body = stm.body.accept(this);
+                    size += Optimizer.size(body);
+                    unrolled.add(body);
+                }
+                if (size >= MAX_SIZE) {
+                    // the loop runs too long to be unrolled
+                    unrolled.clear();
+                    known = before;
+                    size = sizeBefore;
+                }
+            }
+
+            forget(stm);
+            BExp condition = evaluate(stm.condition);
+            Map<String, Integer> head = new HashMap<>(known);
+            Stm body = stm.body.accept(this);
+            known = head;
+            unrolled.add(new Stm.While(condition, body));
+            return sequence(unrolled);
+        }
+
+        public Stm visitFor(Stm.For stm) {
+            AExp start = evaluate(stm.start);
+            if (!unrollable(stm, stm.body)) {
+                forget(stm);
+                AExp end = evaluate(stm.end);
+                Map<String, Integer> head = new HashMap<>(known);
+                Stm body = stm.body.accept(this);
+                known = head;
+                return new Stm.For(stm.loopvar, start, end, body);
+            }
+
+            Map<String, Integer> before = new HashMap<>(known);
+            int sizeBefore = size;
+            List<Stm> unrolled = new ArrayList<>();
+            unrolled.add(new Stm.Assign(stm.loopvar, start));
+            bind(stm.loopvar, Optimizer.value(start));
+            Token at = ((AExp.Atomic) Optimizer.firstAtom(stm.start)).atom;
+            AExp loopvar = new AExp.Atomic(new Token(IDENTIFIER, at.line, at.index, stm.loopvar));
+            AExp increment = new AExp.Binary(loopvar, new AExp.Atomic(new Token(NUMBER, at.line, at.index, "1")),
+                AExp.Binary.OpType.PLUS);
+
+            while (size < MAX_SIZE) {
+                Integer value = known.get(stm.loopvar), end = Optimizer.value(evaluate(stm.end));
+                if (value == null || end == null) {
+                    break;
+                } else if (value.equals(end)) {
+                    return sequence(unrolled);
+                }
+                Stm body = stm.body.accept(this);
+                Stm next = visitAssign(new Stm.Assign(stm.loopvar, increment));
+                size += Optimizer.size(body) + 1;
+                unrolled.add(body);
+                unrolled.add(next);
+            }
+
+            if (size >= MAX_SIZE) {
+                // the loop runs too long to be unrolled
+                known = before;
+                size = sizeBefore;
+                forget(stm);
+                AExp end = evaluate(stm.end);
+                Map<String, Integer> head = new HashMap<>(known);
+                Stm body = stm.body.accept(this);
+                known = head;
+                return new Stm.For(stm.loopvar, start, end, body);
+            }
+
+            // the rest of the loop, which goes on from where unrolling stopped
+            forget(stm);
+            BExp condition = new BExp.Comparison(loopvar, evaluate(stm.end), BExp.Comparison.OpType.NEQ);
+            Map<String, Integer> head = new HashMap<>(known);
+            Stm body = stm.body.accept(this);
+            known = head;
+            unrolled.add(new Stm.While(condition, new Stm.Seq(List.of(body, new Stm.Assign(stm.loopvar, increment)))));
+            return sequence(unrolled);
+        }
+
+        public Stm visitVar(Stm.Var stm) {
+            AExp decl = evaluate(stm.decl);
+            Integer previous = known.get(stm.name);
+            bind(stm.name, Optimizer.value(decl));
+            Stm body = stm.body.accept(this);
+            bind(stm.name, previous);
+            return decl == stm.decl && body == stm.body ? stm : new Stm.Var(stm.name, decl, body);
+        }
+
+        public Stm visitSeq(Stm.Seq stm) {
+            List<Stm> stms = new ArrayList<>();
+            for (Stm s : stm.stms) {
+                stms.add(s.accept(this));
+            }
+            return new Stm.Seq(stms);
+        }
+
+        public Stm visitNd(Stm.Nd stm) {
+            Map<String, Integer> before = known;
+            List<Map<String, Integer>> paths = new ArrayList<>();
+            List<Stm> stms = new ArrayList<>();
+            for (Stm s : stm.stms) {
+                known = new HashMap<>(before);
+                stms.add(s.accept(this));
+                paths.add(known);
+            }
+            join(paths);
+            return new Stm.Nd(stms);
+        }
+
+        public Stm visitProcDef(Stm.ProcDef stm) {
+            return stm;
+        }
+
+        public Stm visitProcCall(Stm.ProcCall stm) {
+            // later arguments may read the parameters bound before them
+            List<AExp> in = new ArrayList<>();
+            for (int i = 0; i < stm.in.size(); i++) {
+                in.add(i == 0 ? evaluate(stm.in.get(i)) : stm.in.get(i).accept(optimizer));
+            }
+            for (String name : stm.out) {
+                known.remove(name);
+            }
+            return new Stm.ProcCall(stm.name, in, stm.out);
+        }
+
+        public Stm visitBExp(Stm.SB stm) {
+            return new Stm.SB(evaluate(stm.exp));
+        }
+
+        public Stm visitAExp(Stm.SA stm) {
+            return new Stm.SA(evaluate(stm.exp));
+        }
+
+        private Stm sequence(List<Stm> stms) {
+            return stms.isEmpty() ? new Stm.Single(Stm.Single.Type.SKIP) : new Stm.Seq(stms);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static imp2.TokenType.*;
+
+/**
+ * Single pass parser that picks every production by looking at the next
+ * token(s) instead of trying the alternatives one after the other.
+ *
+ * It accepts a subset of what Parser accepts and builds the same trees for
+ * it: whenever the input isn't clearly a statement, or an error production
+ * of Parser could apply, it gives up and parse returns null. Parser then
+ * parses the input again to find the tree or the most likely error.
+ */
+class PredictiveParser {
+
+    private static final Mismatch mismatch = new Mismatch();
+
+    private final boolean lazyBodies;
+
+    // equal expressions within one parse share a node
+    private final ExpressionTable expressions = new ExpressionTable();
+
+    private TokenBuffer tokens;
+    private int index;
+
+    PredictiveParser() {
+        this(false);
+    }
+
+    // with lazyBodies, procedure bodies are skipped and only parsed when
+    // they are first asked for
+    PredictiveParser(boolean lazyBodies) {
+        this.lazyBodies = lazyBodies;
+    }
+
+    Stm parse(TokenBuffer tokens) {
+        return parse(tokens, () -> parseStm(true, false));
+    }
+
+    Stm parseBody(TokenBuffer tokens) {
+        return parse(tokens, () -> parseStm(false, false));
+    }
+
+    Stm parseUnit(TokenBuffer tokens) {
+        return parse(tokens, () -> parseSingleInstruction(true, true, false));
+    }
+
+    // the tree if rule takes up all of tokens, null otherwise
+    private Stm parse(TokenBuffer tokens, Supplier<Stm> rule) {
+        this.tokens = tokens;
+        index = 0;
+        expressions.clear();
+
+        try {
+            Stm result = rule.get();
+            if (index < tokens.size() - 1) {
+                return null;
+            }
+            return result;
+        } catch (Mismatch m) {
+            return null;
+        }
+    }
+
+    private Stm parseStm(boolean allowProcDefs, boolean allowBreak) {
+        List<Stm> stms = new ArrayList<>();
+        stms.add(parseSingleInstruction(true, allowProcDefs, allowBreak));
+
+        while (peek() == SEMICOLON) {
+            advance(); // ';' token
+            // instructions after a semicolon don't allow 'break', and
+            // Parser stops the sequence at anything that can't start one
+            if (!startsInstruction(peek()) || peek() == BREAK) {
+                break;
+            }
+            stms.add(parseSingleInstruction(true, true, false));
+        }
+
+        return stms.size() > 1 ? new Stm.Seq(stms) : stms.get(0);
+    }
+
+    private static boolean startsInstruction(TokenType type) {
+        switch (type) {
+            case PROCEDURE: case LPAREN: case PRINT: case SKIP: case BREAK: case ABORT:
+            case IF: case WHILE: case FOR: case IDENTIFIER: case VAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Stm parseSingleInstruction(boolean allowNd, boolean allowProcDefs, boolean allowBreak) {
+        if (peek() == PROCEDURE) {
+            // procedure definitions can't be part of a nondeterministic choice
+            if (!allowProcDefs) {
+                throw mismatch;
+            }
+            return parseStmProcDef();
+        }
+
+        Stm first = parseInstruction(allowBreak);
+        if (!allowNd || peek() != PIPE) {
+            return first;
+        }
+
+        List<Stm> stms = new ArrayList<>();
+        stms.add(first);
+        while (peek() == PIPE) {
+            advance(); // '|' token
+            stms.add(parseInstruction(allowBreak));
+        }
+        return new Stm.Nd(stms);
+    }
+
+    private Stm parseInstruction(boolean allowBreak) {
+        switch (peek()) {
+            case LPAREN:
+                return parseStmSeq(allowBreak);
+            case PRINT:
+                advance();
+                return new Stm.Single(Stm.Single.Type.PRINT);
+            case SKIP:
+                advance();
+                return new Stm.Single(Stm.Single.Type.SKIP);
+            case ABORT:
+                advance();
+                return new Stm.Single(Stm.Single.Type.ABORT);
+            case BREAK:
+                if (!allowBreak) {
+                    throw mismatch;
+                }
+                advance();
+                return new Stm.Single(Stm.Single.Type.BREAK);
+            case IF:
+                return parseStmIf(allowBreak);
+            case WHILE:
+                return parseStmWhile();
+            case FOR:
+                return parseStmFor();
+            case VAR:
+                return parseStmVar(allowBreak);
+            case IDENTIFIER:
+                if (peekNext() == LPAREN) {
+                    return parseStmProcCall();
+                } else {
+                    return parseStmAssign();
+                }
+            default:
+                throw mismatch;
+        }
+    }
+
+    private Stm parseStmSeq(boolean allowBreak) {
+        expect(LPAREN);
+        List<Stm> stms = new ArrayList<>();
+        stms.add(parseSingleInstruction(true, false, allowBreak));
+        expect(SEMICOLON);
+        stms.add(parseSingleInstruction(true, false, allowBreak));
+        while (peek() == SEMICOLON) {
+            advance(); // ';' token
+            stms.add(parseSingleInstruction(true, false, allowBreak));
+        }
+        expect(RPAREN);
+        return new Stm.Seq(stms);
+    }
+
+    private Stm parseStmAssign() {
+        String name = lexeme(expect(IDENTIFIER));
+        expect(ASSIGN);
+        return new Stm.Assign(name, parseArithmeticWithErrorProductions());
+    }
+
+    private Stm parseStmIf(boolean allowBreak) {
+        expect(IF);
+        BExp condition = parseBooleanWithErrorProductions();
+        expect(THEN);
+        Stm taken = parseStm(false, allowBreak);
+        Stm notTaken = new Stm.Single(Stm.Single.Type.SKIP);
+        if (peek() == ELSE) {
+            advance(); // 'else' token
+            notTaken = parseStm(false, allowBreak);
+        }
+        expect(END);
+        return new Stm.If(condition, taken, notTaken);
+    }
+
+    private Stm parseStmWhile() {
+        expect(WHILE);
+        BExp condition = parseBooleanWithErrorProductions();
+        expect(DO);
+        Stm body = parseStm(false, true);
+        expect(END);
+        return new Stm.While(condition, body);
+    }
+
+    private Stm parseStmFor() {
+        expect(FOR);
+        String name = lexeme(expect(IDENTIFIER));
+        expect(ASSIGN);
+        AExp start = parseArithmeticWithErrorProductions();
+        expect(TO);
+        AExp end = parseArithmeticWithErrorProductions();
+        expect(DO);
+        Stm body = parseStm(false, true);
+        expect(END);
+        return new Stm.For(name, start, end, body);
+    }
+
+    private Stm parseStmProcDef() {
+        expect(PROCEDURE);
+        Token name = tokens.token(expect(IDENTIFIER));
+        expect(LPAREN);
+        // the argument lists are read the same lenient way Parser reads them
+        List<String> in = new ArrayList<>(), out = new ArrayList<>();
+        while (peek() != SEMICOLON) {
+            in.add(lexeme(expect(IDENTIFIER)));
+            if (peek() != SEMICOLON) {
+                expect(COMMA);
+            }
+        }
+        advance(); // ';' token
+        while (peek() != RPAREN) {
+            out.add(lexeme(expect(IDENTIFIER)));
+            if (peek() != RPAREN) {
+                expect(COMMA);
+            }
+        }
+        advance(); // ')' token
+        expect(BEGIN);
+        Stm body = null;
+        Supplier<Stm> deferred = null;
+        if (lazyBodies) {
+            int from = index, to = skipBlock();
+            TokenBuffer source = tokens;
+            deferred = () -> new Parser().parseBody(source.slice(from, to));
+        } else {
+            body = parseStm(false, false);
+        }
+        expect(END);
+
+        if (containsDuplicates(in) || containsDuplicates(out)) {
+            throw mismatch;
+        }
+        return deferred != null ? new Stm.ProcDef(name, in, out, deferred) : new Stm.ProcDef(name, in, out, body);
+    }
+
+    // moves to the 'end' that closes the current block without parsing the
+    // tokens in between, and returns its index
+    private int skipBlock() {
+        int depth = 0;
+        while (true) {
+            switch (peek()) {
+                case IF: case WHILE: case FOR: case VAR: case BEGIN:
+                    depth++;
+                    break;
+                case END:
+                    if (depth == 0) {
+                        return index;
+                    }
+                    depth--;
+                    break;
+                case EOF: case ERROR:
+                    throw mismatch;
+                default:
+                    break;
+            }
+            advance();
+        }
+    }
+
+    private Stm parseStmProcCall() {
+        Token name = tokens.token(expect(IDENTIFIER));
+        expect(LPAREN);
+        List<AExp> in = new ArrayList<>();
+        if (peek() != SEMICOLON) {
+            in.add(parseArithmeticWithErrorProductions());
+        }
+        while (peek() != SEMICOLON) {
+            expect(COMMA);
+            in.add(parseArithmeticWithErrorProductions());
+        }
+        advance(); // ';' token
+        List<String> out = new ArrayList<>();
+        if (peek() != RPAREN) {
+            out.add(lexeme(expect(IDENTIFIER)));
+        }
+        while (peek() != RPAREN) {
+            expect(COMMA);
+            out.add(lexeme(expect(IDENTIFIER)));
+        }
+        advance(); // ')' token
+
+        if (containsDuplicates(out)) {
+            throw mismatch;
+        }
+        return new Stm.ProcCall(name, in, out);
+    }
+
+    private Stm parseStmVar(boolean allowBreak) {
+        expect(VAR);
+        String name = lexeme(expect(IDENTIFIER));
+        expect(ASSIGN);
+        AExp decl = parseArithmeticWithErrorProductions();
+        expect(IN);
+        Stm body = parseStm(false, allowBreak);
+        expect(END);
+        return new Stm.Var(name, decl, body);
+    }
+
+    // A binary operator after a complete expression is where Parser's error
+    // productions apply, so that is left to Parser.
+    private BExp parseBooleanWithErrorProductions() {
+        BExp res = parseBoolean();
+        if (peek() == AND || peek() == OR) {
+            throw mismatch;
+        }
+        return res;
+    }
+
+    private BExp parseBoolean() {
+        switch (peek()) {
+            case TRUE:
+                advance();
+                return expressions.atomic(BExp.Atomic.Type.TRUE);
+            case FALSE:
+                advance();
+                return expressions.atomic(BExp.Atomic.Type.FALSE);
+            case NOT:
+                advance();
+                return expressions.not(parseBooleanWithErrorProductions());
+            case LPAREN:
+                if (parenthesizesBoolean()) {
+                    return parseBooleanBinary();
+                } else {
+                    return parseBooleanComparison();
+                }
+            default:
+                return parseBooleanComparison();
+        }
+    }
+
+    // Decides whether the parenthesis at the current token opens a binary
+    // boolean expression or the arithmetic expression on the left of a
+    // comparison, by the first operator or boolean token directly inside it.
+    private boolean parenthesizesBoolean() {
+        int depth = 0;
+        for (int i = index; i < tokens.size(); i++) {
+            TokenType type = tokens.type(i);
+            if (type == LPAREN) {
+                depth++;
+            } else if (type == RPAREN) {
+                depth--;
+                if (depth == 0) {
+                    break;
+                }
+            } else if (depth == 1) {
+                switch (type) {
+                    case AND: case OR: case NOT: case TRUE: case FALSE:
+                    case EQUAL: case NOT_EQUAL: case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL:
+                        return true;
+                    case PLUS: case MINUS: case TIMES:
+                        return false;
+                    default:
+                        break;
+                }
+            }
+        }
+        throw mismatch;
+    }
+
+    private BExp parseBooleanBinary() {
+        expect(LPAREN);
+        BExp left = parseBoolean();
+        TokenType operator = tokens.type(expect(AND, OR));
+        BExp right = parseBoolean();
+        expect(RPAREN);
+        return expressions.binary(left, right, operator == AND ? BExp.Binary.OpType.AND : BExp.Binary.OpType.OR);
+    }
+
+    private BExp parseBooleanComparison() {
+        AExp left = parseArithmeticWithErrorProductions();
+        TokenType operator = tokens.type(expect(EQUAL, NOT_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL));
+        AExp right = parseArithmeticWithErrorProductions();
+        switch (operator) {
+            case EQUAL:         return expressions.comparison(left, right, BExp.Comparison.OpType.EQ);
+            case NOT_EQUAL:     return expressions.comparison(left, right, BExp.Comparison.OpType.NEQ);
+            case GREATER:       return expressions.comparison(left, right, BExp.Comparison.OpType.G);
+            case GREATER_EQUAL: return expressions.comparison(left, right, BExp.Comparison.OpType.GEQ);
+            case LESS:          return expressions.comparison(left, right, BExp.Comparison.OpType.L);
+            default:            return expressions.comparison(left, right, BExp.Comparison.OpType.LEQ);
+        }
+    }
+
+    private AExp parseArithmeticWithErrorProductions() {
+        AExp res = parseArithmetic();
+        if (peek() == PLUS || peek() == MINUS || peek() == TIMES) {
+            throw mismatch;
+        }
+        return res;
+    }
+
+    private AExp parseArithmetic() {
+        switch (peek()) {
+            case LPAREN:
+                advance(); // '(' token
+                AExp left = parseArithmetic();
+                TokenType operator = tokens.type(expect(PLUS, MINUS, TIMES));
+                AExp right = parseArithmetic();
+                expect(RPAREN);
+                switch (operator) {
+                    case PLUS:  return expressions.binary(left, right, AExp.Binary.OpType.PLUS);
+                    case MINUS: return expressions.binary(left, right, AExp.Binary.OpType.MINUS);
+                    default:    return expressions.binary(left, right, AExp.Binary.OpType.TIMES);
+                }
+            case IDENTIFIER: case NUMBER:
+                return expressions.atomic(tokens.token(advance()));
+            default:
+                throw mismatch;
+        }
+    }
+
+    private int expect(TokenType type) {
+        if (peek() != type) {
+            throw mismatch;
+        }
+        return advance();
+    }
+
+    private int expect(TokenType... types) {
+        for (TokenType t : types) {
+            if (peek() == t) { return advance(); }
+        }
+        throw mismatch;
+    }
+
+    private int advance() {
+        return index++;
+    }
+
+    private TokenType peek() {
+        return index < tokens.size() ? tokens.type(index) : ERROR;
+    }
+
+    private TokenType peekNext() {
+        return index + 1 < tokens.size() ? tokens.type(index + 1) : ERROR;
+    }
+
+    private String lexeme(int i) {
+        return tokens.lexeme(i);
+    }
+
+    private static <T> boolean containsDuplicates(List<T> l) {
+        for (int i = 0; i < l.size() - 1; i++) {
+            for (int j = i + 1; j < l.size(); j++) {
+                if (l.get(i).equals(l.get(j))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // signals that the input can't be parsed predictively, it is only
+    // ever thrown as one preallocated instance without a stack trace
+    private static class Mismatch extends RuntimeException {
+        Mismatch() {
+            super(null, null, false, false);
+        }
+    }
+}
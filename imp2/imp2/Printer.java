@@ -77,7 +77,8 @@ class Printer implements Stm.Visitor<String>, BExp.Visitor<String>, AExp.Visitor
         if (stm.out.size() > 0) {
             stringBuilder.append(stm.out.get(stm.out.size() - 1));
         }
-        stringBuilder.append(") begin ").append(stm.body.accept(this)).append(" end");
+        // a body that hasn't been parsed yet is only parsed once it's called
+        stringBuilder.append(") begin ").append(stm.body == null ? "..." : stm.body.accept(this)).append(" end");
         return stringBuilder.toString();
     }
 
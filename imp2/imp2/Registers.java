@@ -0,0 +1,184 @@
+package imp2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static imp2.TokenType.*;
+
+/**
+ * The variables of the interpreters that keep them in the slots the
+ * resolver gives them, and the procedure calls these interpreters share.
+ * Each register is a long that holds the value in its lower half and whether
+ * the variable is defined in the bit above it, so both are set with one
+ * write. The lower half of a sum, difference or product only depends on the
+ * lower halves, so arithmetic works on the registers as they are, and a
+ * variable that isn't defined always holds 0.
+ *
+ * A call pushes the registers the procedure may change onto a stack of
+ * saved values, all of them if it may change any, and pops them back once
+ * it returns. A break or abort leaves the procedure without restoring them,
+ * just as the interpreter doesn't restore its variables either.
+ */
+abstract class Registers implements AExp.Environment {
+
+    static final long VALUE = 0xFFFFFFFFL, DEFINED = 1L << 32;
+
+    Map<String, Stm.ProcDef> procedures;
+
+    final Effects effects;
+
+    // the slots of the variables of everything this interpreter runs
+    final Resolver resolver = new Resolver();
+
+    long[] registers = new long[64];
+
+    // the registers saved by the procedure calls being run, and by the
+    // scopes of the virtual machine
+    long[] saved = new long[256];
+    int top = 0;
+
+    Registers() {
+        procedures = new HashMap<>();
+        effects = new Effects(procedures);
+    }
+
+    // false if the program was aborted or ran into an error
+    boolean interpret(Stm tree) {
+        resolver.resolve(tree);
+        try {
+            return run(tree) != SlotInterpreter.Completion.ABORT;
+        } catch (InterpreterException e) {
+            Imp.logDirectError(e.token, e.message);
+            return false;
+        } finally {
+            top = 0;
+        }
+    }
+
+    // runs the resolved tree, once there's a register for every slot given
+    // out while preparing it
+    abstract SlotInterpreter.Completion run(Stm tree);
+
+    // makes room for all slots given out so far
+    void grow() {
+        if (registers.length < resolver.size()) {
+            registers = Arrays.copyOf(registers, Math.max(resolver.size(), 2 * registers.length));
+        }
+    }
+
+    void push(int n) {
+        if (top + n > saved.length) {
+            saved = Arrays.copyOf(saved, Math.max(top + n, 2 * saved.length));
+        }
+    }
+
+    void assign(int slot, int value) {
+        registers[slot] = value & VALUE | DEFINED;
+    }
+
+    public int read(AExp.Atomic aexp) {
+        if (aexp.atom.type == IDENTIFIER) {
+            return (int) registers[aexp.slot];
+        }
+        throw new InterpreterException(aexp.atom, "Number Format Error.");
+    }
+
+    // lists the variables that are defined in the same order as the interpreter
+    void print() {
+        Map<String, Integer> variables = new HashMap<>();
+        for (int i = 0; i < resolver.size() && i < registers.length; i++) {
+            if ((registers[i] & DEFINED) != 0 && !Resolver.temporary(resolver.name(i))) {
+                variables.put(resolver.name(i), (int) registers[i]);
+            }
+        }
+        Interpreter.print(variables);
+    }
+
+    void define(Stm.ProcDef proc) {
+        procedures.put(proc.name.lexeme, proc);
+        effects.clear();
+    }
+
+    // the procedure a call runs, with its body parsed and resolved, or null
+    // if it runs the body inlined into it
+    Stm.ProcDef procedure(Stm.ProcCall stm) {
+        Stm.ProcDef proc = procedures.get(stm.name.lexeme);
+        if (stm.target != null && proc == stm.target) {
+            if (stm.inlined != null) {
+                return null;
+            }
+            proc = stm.specialized;
+        } else if (proc == null) {
+            throw new InterpreterException(stm.name, "Procedure undefined.");
+        }
+
+        if (stm.in.size() != proc.in.size() || stm.out.size() != proc.out.size()) {
+            throw new InterpreterException(stm.name, "Argument Lists must match in length.");
+        }
+        if (proc.body() == null) {
+            throw new InterpreterException(stm.name, "Procedure body could not be parsed.");
+        }
+        if (proc.resolver != resolver) {
+            resolver.resolve(proc);
+        }
+        return proc;
+    }
+
+    // the slots of the variables the procedure may change, null if it may
+    // change any
+    int[] slots(Stm.ProcDef proc) {
+        Effects.Summary summary = effects.of(proc);
+        if (!summary.writesAll && summary.slots == null) {
+            summary.slots = resolver.slots(summary.writes);
+        }
+        return summary.writesAll ? null : summary.slots;
+    }
+
+    // saves the registers in slots, all of them if it's null, with room for
+    // the outputs of the procedure above them, and returns where they start
+    int save(int[] slots, int outputs) {
+        grow();
+        int n = slots == null ? registers.length : slots.length, base = top;
+        push(n + outputs);
+        for (int i = 0; i < n; i++) {
+            saved[base + i] = registers[slots == null ? i : slots[i]];
+        }
+        top = base + n;
+        return base;
+    }
+
+    // puts back the registers saved from base once the procedure returned
+    // normally, and assigns its outputs to the variables of the call
+    void restore(int base, int[] slots, Stm.ProcDef proc, Stm.ProcCall stm) {
+        int n = top - base;
+
+        // the outputs are kept above the saved values until those are back
+        int[] outSlots = proc.outSlots;
+        for (int i = 0; i < outSlots.length; i++) {
+            saved[top + i] = registers[outSlots[i]] | DEFINED;
+        }
+        for (int i = 0; i < n; i++) {
+            registers[slots == null ? i : slots[i]] = saved[base + i];
+        }
+        if (slots == null) {
+            // variables first assigned in the call don't outlive it
+            Arrays.fill(registers, n, registers.length, 0);
+        }
+        for (int i = 0; i < outSlots.length; i++) {
+            registers[stm.outSlots[i]] = saved[top + i];
+        }
+        top = base;
+    }
+
+    static class InterpreterException extends RuntimeException {
+        Token token;
+        String message;
+
+        public InterpreterException(Token token, String message) {
+            super();
+            this.token = token;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package imp2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Regression tests. Every program in the test directory is loaded into a new
+ * shell, once for each of the ways programs can be run, and what the shell
+ * prints has to match the file of the same name ending in .out.
+ *
+ * Run with `java imp2.Regression [directory]` from the directory that holds
+ * example.imp, whose tests directory is used by default. `--update` writes
+ * what the shell printed without the first flags to the .out files instead.
+ */
+public class Regression {
+
+    // the flags of each way the programs are run
+    private static final String[][] MODES = {
+        {}, {"-n"}, {"-e"}, {"-f"}, {"-v"}, {"-j"}, {"-t"}, {"-q"}
+    };
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> input = new ArrayList<>(Arrays.asList(args));
+        boolean update = input.remove("--update");
+        Path directory = Paths.get(input.isEmpty() ? "tests" : input.get(0));
+
+        List<Path> programs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.imp")) {
+            for (Path p : stream) {
+                programs.add(p);
+            }
+        }
+        Collections.sort(programs);
+
+        int failed = 0, passed = 0;
+        for (Path program : programs) {
+            String name = program.getFileName().toString();
+            Path expected = program.resolveSibling(name.substring(0, name.length() - 4) + ".out");
+
+            if (update) {
+                Files.write(expected, run(program, MODES[0]).getBytes(Charset.defaultCharset()));
+                System.out.println("updated " + expected);
+                continue;
+            }
+
+            String expect = new String(Files.readAllBytes(expected), Charset.defaultCharset());
+            for (String[] flags : MODES) {
+                String output = run(program, flags);
+                if (output.equals(expect)) {
+                    passed++;
+                } else {
+                    failed++;
+                    System.out.println("FAILED " + name + " " + String.join(" ", flags));
+                    System.out.println("expected:\n" + expect + "printed:\n" + output);
+                }
+            }
+        }
+
+        if (!update) {
+            System.out.println(passed + " passed, " + failed + " failed");
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    // what a new shell prints, errors included, when it loads the program,
+    // without the prompts
+    private static String run(Path program, String[] flags) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+            Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+            "-cp", System.getProperty("java.class.path"), "imp2.Imp"));
+        command.addAll(Arrays.asList(flags));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (OutputStream in = process.getOutputStream()) {
+            in.write((":l " + program.toAbsolutePath() + "\n:q\n").getBytes(Charset.defaultCharset()));
+        }
+        String output = new String(process.getInputStream().readAllBytes(), Charset.defaultCharset());
+        process.waitFor();
+
+        StringBuilder res = new StringBuilder();
+        for (String line : output.split("\n")) {
+            while (line.startsWith(">> ")) {
+                line = line.substring(3);
+            }
+            if (!line.isEmpty() && !line.equals("Exit Shell.")) {
+                res.append(line).append('\n');
+            }
+        }
+        return res.toString();
+    }
+}
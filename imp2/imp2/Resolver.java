@@ -0,0 +1,192 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static imp2.TokenType.*;
+
+/**
+ * Gives every variable a slot, the index at which the slot interpreter
+ * keeps its value, and stores the slot in the nodes that read or assign it.
+ *
+ * Variables are scoped dynamically, so a procedure reads and assigns the
+ * variables of whoever called it, and the slots are the same everywhere: a
+ * name always has the same slot, in all programs, procedures and inputs run
+ * by the interpreter the resolver belongs to. Each interpreter has its own,
+ * so the names of one session are dropped along with it. Procedure bodies
+ * are resolved along with the tree they're defined in if they were parsed
+ * already, and otherwise when they are first called.
+ */
+class Resolver implements Stm.Visitor<Void>, BExp.Visitor<Void>, AExp.Visitor<Void> {
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    int slot(String name) {
+        Integer res = slots.get(name);
+        if (res == null) {
+            res = names.size();
+            slots.put(name, res);
+            names.add(name);
+        }
+        return res;
+    }
+
+    int[] slots(Collection<String> names) {
+        int[] res = new int[names.size()];
+        int i = 0;
+        for (String name : names) {
+            res[i++] = slot(name);
+        }
+        return res;
+    }
+
+    String name(int slot) {
+        return names.get(slot);
+    }
+
+    // the slot of the k-th register the virtual machine keeps intermediate
+    // values in, named so that no variable can have the same name
+    int temporary(int k) {
+        return slot("#" + k);
+    }
+
+    static boolean temporary(String name) {
+        return name.startsWith("#");
+    }
+
+    // the number of slots given out so far
+    int size() {
+        return names.size();
+    }
+
+    void resolve(Stm tree) {
+        tree.accept(this);
+    }
+
+    void resolve(Stm.ProcDef proc) {
+        proc.accept(this);
+    }
+
+    public Void visitSingle(Stm.Single stm) {
+        return null;
+    }
+
+    public Void visitAssign(Stm.Assign stm) {
+        stm.slot = slot(stm.name);
+        return stm.exp.accept(this);
+    }
+
+    public Void visitIf(Stm.If stm) {
+        stm.condition.accept(this);
+        stm.taken.accept(this);
+        return stm.notTaken.accept(this);
+    }
+
+    public Void visitWhile(Stm.While stm) {
+        if (stm.closed != null) {
+            stm.closed.slots = slots(stm.closed.variables);
+        }
+        stm.condition.accept(this);
+        return stm.body.accept(this);
+    }
+
+    public Void visitFor(Stm.For stm) {
+        stm.slot = slot(stm.loopvar);
+        if (stm.closed != null) {
+            stm.closed.slots = slots(stm.closed.variables);
+        }
+        stm.start.accept(this);
+        stm.end.accept(this);
+        return stm.body.accept(this);
+    }
+
+    public Void visitVar(Stm.Var stm) {
+        stm.slot = slot(stm.name);
+        stm.decl.accept(this);
+        return stm.body.accept(this);
+    }
+
+    public Void visitSeq(Stm.Seq stm) {
+        for (Stm s : stm.stms) {
+            s.accept(this);
+        }
+        return null;
+    }
+
+    public Void visitNd(Stm.Nd stm) {
+        for (Stm s : stm.stms) {
+            s.accept(this);
+        }
+        return null;
+    }
+
+    public Void visitProcDef(Stm.ProcDef stm) {
+        stm.inSlots = slots(stm.in);
+        stm.outSlots = slots(stm.out);
+        if (stm.body != null && stm.resolver != this) {
+            // what was made of the body holds the slots of another resolver
+            stm.resolver = this;
+            stm.code = null;
+            stm.closure = null;
+            stm.node = null;
+            stm.body.accept(this);
+        }
+        return null;
+    }
+
+    public Void visitProcCall(Stm.ProcCall stm) {
+        stm.outSlots = slots(stm.out);
+        for (AExp a : stm.in) {
+            a.accept(this);
+        }
+        if (stm.inlined != null) {
+            stm.inlined.accept(this);
+        }
+        if (stm.specialized != null) {
+            stm.specialized.accept(this);
+        }
+        return null;
+    }
+
+    public Void visitBExp(Stm.SB stm) {
+        return stm.exp.accept(this);
+    }
+
+    public Void visitAExp(Stm.SA stm) {
+        return stm.exp.accept(this);
+    }
+
+    public Void visitBinary(BExp.Binary bexp) {
+        bexp.left.accept(this);
+        return bexp.right.accept(this);
+    }
+
+    public Void visitNot(BExp.Not bexp) {
+        return bexp.exp.accept(this);
+    }
+
+    public Void visitComparison(BExp.Comparison bexp) {
+        bexp.left.accept(this);
+        return bexp.right.accept(this);
+    }
+
+    public Void visitAtomic(BExp.Atomic bexp) {
+        return null;
+    }
+
+    public Void visitBinary(AExp.Binary aexp) {
+        aexp.left.accept(this);
+        return aexp.right.accept(this);
+    }
+
+    public Void visitAtomic(AExp.Atomic aexp) {
+        if (aexp.atom.type == IDENTIFIER) {
+            aexp.slot = slot(aexp.atom.lexeme);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,153 @@
+package imp2;
+
+import java.util.Random;
+
+/**
+ * Runs programs like the interpreter, but keeps the variables in registers
+ * indexed by the slots the resolver gives them, instead of a map from their
+ * names. Whether a variable is defined is kept in its register next to its
+ * value, so print still only shows the variables that were assigned.
+ *
+ * Calls save and restore the variables the procedure may change as described
+ * in Registers. Expressions are evaluated with evalInt and evalBool, so no
+ * value is ever boxed, and statements return how they ended, so break and
+ * abort don't throw exceptions.
+ */
+class SlotInterpreter extends Registers implements Stm.Visitor<SlotInterpreter.Completion> {
+
+    // how a statement ended, so break and abort are passed up to the loop or
+    // command list they end instead of being thrown
+    enum Completion { NORMAL, BREAK, ABORT }
+
+    Completion run(Stm tree) {
+        grow();
+        return tree.accept(this);
+    }
+
+    public Completion visitNd(Stm.Nd stm) {
+        Random r = new Random();
+        int selected = (int)(r.nextDouble() * stm.stms.size());
+        return stm.stms.get(selected).accept(this);
+    }
+
+    public Completion visitSingle(Stm.Single stm) {
+        if (stm.type == Stm.Single.Type.PRINT) {
+            print();
+        } else if (stm.type == Stm.Single.Type.ABORT) {
+            return Completion.ABORT;
+        } else if (stm.type == Stm.Single.Type.BREAK) {
+            return Completion.BREAK;
+        }
+        return Completion.NORMAL;
+    }
+
+    public Completion visitAssign(Stm.Assign stm) {
+        assign(stm.slot, stm.exp.evalInt(this));
+        return Completion.NORMAL;
+    }
+
+    public Completion visitIf(Stm.If stm) {
+        if (stm.condition.evalBool(this)) {
+            return stm.taken.accept(this);
+        } else {
+            return stm.notTaken.accept(this);
+        }
+    }
+
+    public Completion visitWhile(Stm.While stm) {
+        if (stm.closed != null && closed(stm.closed)) {
+            return Completion.NORMAL;
+        }
+        while (stm.condition.evalBool(this)) {
+            Completion res = stm.body.accept(this);
+            if (res == Completion.BREAK) {
+                break;
+            } else if (res == Completion.ABORT) {
+                return res;
+            }
+        }
+        return Completion.NORMAL;
+    }
+
+    public Completion visitFor(Stm.For stm) {
+        int slot = stm.slot;
+        assign(slot, stm.start.evalInt(this));
+        if (stm.closed != null && closed(stm.closed)) {
+            return Completion.NORMAL;
+        }
+        for (; (int) registers[slot] != stm.end.evalInt(this); assign(slot, (int) registers[slot] + 1)) {
+            Completion res = stm.body.accept(this);
+            if (res == Completion.BREAK) {
+                break;
+            } else if (res == Completion.ABORT) {
+                return res;
+            }
+        }
+        return Completion.NORMAL;
+    }
+
+    // sets the variables of a loop to their values after it, false if it has
+    // to run as usual since it wouldn't end or a variable would overflow
+    private boolean closed(ClosedForms.Form form) {
+        return ClosedForms.apply(form, registers, this);
+    }
+
+    public Completion visitVar(Stm.Var stm) {
+        int slot = stm.slot;
+        long prev = registers[slot];
+        assign(slot, stm.decl.evalInt(this));
+        Completion res = stm.body.accept(this);
+        // like the interpreter, a break or abort leaves the variable as it is
+        if (res == Completion.NORMAL) {
+            registers[slot] = prev;
+        }
+        return res;
+    }
+
+    public Completion visitSeq(Stm.Seq stm) {
+        for (Stm s : stm.stms) {
+            Completion res = s.accept(this);
+            if (res != Completion.NORMAL) {
+                return res;
+            }
+        }
+        return Completion.NORMAL;
+    }
+
+    public Completion visitProcDef(Stm.ProcDef stm) {
+        define(stm);
+        return Completion.NORMAL;
+    }
+
+    public Completion visitProcCall(Stm.ProcCall stm) {
+        Stm.ProcDef proc = procedure(stm);
+        if (proc == null) {
+            return stm.inlined.accept(this);
+        }
+
+        int[] slots = slots(proc);
+        int base = save(slots, proc.out.size());
+        try {
+            for (int i = 0; i < proc.in.size(); i++) {
+                assign(proc.inSlots[i], stm.in.get(i).evalInt(this));
+            }
+            Completion res = proc.body.accept(this);
+            if (res == Completion.NORMAL) {
+                restore(base, slots, proc, stm);
+            }
+            return res;
+        } finally {
+            top = base;
+        }
+    }
+
+    public Completion visitBExp(Stm.SB stm) {
+        System.out.println("==> \033[3m" + (stm.exp.evalBool(this) ? "tt" : "ff") + "\033[0m");
+        return Completion.NORMAL;
+    }
+
+    public Completion visitAExp(Stm.SA stm) {
+        System.out.println("==> \033[3m" + stm.exp.evalInt(this) + "\033[0m");
+        return Completion.NORMAL;
+    }
+}
@@ -0,0 +1,175 @@
+package imp2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A program file that is memory-mapped instead of read into the heap.
+ * Its contents are decoded incrementally by the Reader returned from
+ * reader(), so only the caller's character window is ever in memory.
+ */
+class SourceFile implements Closeable {
+
+    // files larger than this are mapped one segment after the other
+    private static final long SEGMENT = 1 << 28;
+
+    private final FileChannel channel;
+    private final long size;
+    private final Charset charset;
+
+    SourceFile(Path path) throws IOException {
+        this(path, Charset.defaultCharset());
+    }
+
+    SourceFile(Path path, Charset charset) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.charset = charset;
+    }
+
+    long size() {
+        return size;
+    }
+
+    // whether the file can be cut into chunks at newline bytes: every byte
+    // that looks like a '\n' has to be one, which holds for UTF-8 and
+    // ASCII-compatible single byte charsets
+    boolean splittable() {
+        boolean asciiNewline = Arrays.equals("\n:".getBytes(charset), new byte[] { '\n', ':' });
+        return asciiNewline && (charset.equals(StandardCharsets.UTF_8) || charset.newEncoder().maxBytesPerChar() == 1);
+    }
+
+    // the position after the next '\n' at or after position that can't be
+    // part of a token, or the size of the file if there is none
+    long nextLineStart(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 13);
+        long offset = Math.max(position - 1, 0);
+        byte previous = 0;
+
+        while (offset < size) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                // ':' followed by a newline is reported as one erroneous token
+                if (b == '\n' && previous != ':' && offset + i >= position) {
+                    return offset + i + 1;
+                }
+                previous = b;
+            }
+            offset += read;
+        }
+        return size;
+    }
+
+    // SHA-256 of the charset name and the contents of the file, which
+    // together determine the characters it is decoded to
+    byte[] digest() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(charset.name().getBytes(StandardCharsets.UTF_8));
+        for (long start = 0; start < size; start += SEGMENT) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, size - start)));
+        }
+        return digest.digest();
+    }
+
+    Reader reader() {
+        return reader(0, size);
+    }
+
+    Reader reader(long from, long to) {
+        return new MappedReader(from, to);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private class MappedReader extends Reader {
+
+        private final CharsetDecoder decoder;
+        private final long end;
+
+        private ByteBuffer segment;
+        private long segmentStart;
+        private boolean flushed;
+
+        MappedReader(long from, long to) {
+            // replace malformed input the same way new String(bytes, charset) does
+            decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            end = to;
+            segmentStart = from;
+            segment = null;
+            flushed = false;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            while (out.position() == off && !flushed) {
+                if (segment == null) {
+                    map(segmentStart);
+                }
+
+                CoderResult result = decoder.decode(segment, out, lastSegment());
+                if (result.isOverflow()) {
+                    break;
+                } else if (result.isUnderflow() && lastSegment()) {
+                    decoder.flush(out);
+                    flushed = true;
+                } else if (result.isUnderflow()) {
+                    // a character may be split between two segments, so the
+                    // next segment starts at the first byte not yet decoded
+                    map(segmentStart + segment.position());
+                } else {
+                    result.throwException();
+                }
+            }
+
+            int read = out.position() - off;
+            return read == 0 && flushed ? -1 : read;
+        }
+
+        private boolean lastSegment() {
+            return segmentStart + segment.limit() >= end;
+        }
+
+        private void map(long start) throws IOException {
+            segmentStart = start;
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, end - start));
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,61 @@
+package imp2;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import static imp2.TokenType.*;
+
+/**
+ * The tokens of a file, one top-level instruction at a time. Every
+ * instruction ends at a semicolon outside of any block or parentheses, and
+ * the input is only read as far as the instruction asked for, so a file of
+ * any length can be run with only one of its instructions in memory.
+ */
+class StatementStream {
+
+    private final Lexer lexer;
+    private final Symbols symbols;
+    private boolean done;
+
+    StatementStream(Reader input) {
+        this(input, new Symbols());
+    }
+
+    StatementStream(Reader input, Symbols symbols) {
+        this.symbols = symbols;
+        lexer = new Lexer(symbols);
+        lexer.open(input);
+    }
+
+    // the tokens of the next instruction ended by an end of file token in the
+    // place of its semicolon, or null if the input has ended. An instruction
+    // without any tokens is only skipped at the end of the input.
+    TokenBuffer next() throws IOException {
+        if (done) {
+            return null;
+        }
+
+        TokenBuffer res = new TokenBuffer(null, symbols);
+        int depth = 0;
+        while (lexer.next(res)) {
+            int last = res.size() - 1;
+            depth += Parser.nesting(res.type(last));
+            if (depth == 0 && res.type(last) == SEMICOLON) {
+                res.endAt(last);
+                return res;
+            } else if (depth < 0) {
+                // a block closed that was never opened, which can't parse anyway
+                res.add(EOF, lexer.index(), 0, lexer.line(), lexer.index());
+                return res;
+            }
+        }
+
+        done = true;
+        if (res.size() == 0) {
+            return null;
+        }
+        // the end of file token reports the overall character index as its column
+        res.add(EOF, lexer.index(), 0, lexer.line(), lexer.index());
+        return res;
+    }
+}
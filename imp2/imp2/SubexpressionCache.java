@@ -0,0 +1,113 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Values of shared expressions, kept until one of the variables they read
+ * is assigned. Expressions are shared when the parser hash-conses them, so
+ * an expression that occurs several times in a loop is only computed again
+ * once something it depends on has changed.
+ *
+ * Booleans are stored as 0 and 1.
+ */
+class SubexpressionCache {
+
+    private final Map<Object, Entry> entries = new IdentityHashMap<>();
+    private final Map<String, List<Entry>> readers = new HashMap<>();
+
+    // entries stored before the current epoch are all stale
+    private int epoch = 1;
+
+    Entry entry(AExp aexp) {
+        Entry res = entries.get(aexp);
+        if (res == null) {
+            res = register(aexp, aexp.accept(new Reads()));
+        }
+        return res;
+    }
+
+    Entry entry(BExp bexp) {
+        Entry res = entries.get(bexp);
+        if (res == null) {
+            res = register(bexp, bexp.accept(new Reads()));
+        }
+        return res;
+    }
+
+    void assigned(String name) {
+        List<Entry> l = readers.get(name);
+        if (l != null) {
+            for (Entry e : l) {
+                e.epoch = 0;
+            }
+        }
+    }
+
+    // for when the variables are replaced all at once
+    void invalidateAll() {
+        epoch++;
+    }
+
+    private Entry register(Object node, Reads reads) {
+        Entry res = new Entry();
+        entries.put(node, res);
+        for (String name : reads.names) {
+            readers.computeIfAbsent(name, n -> new ArrayList<>()).add(res);
+        }
+        return res;
+    }
+
+    class Entry {
+        int value;
+        private int epoch;
+
+        boolean valid() {
+            return epoch == SubexpressionCache.this.epoch;
+        }
+
+        void store(int value) {
+            this.value = value;
+            epoch = SubexpressionCache.this.epoch;
+        }
+    }
+
+    // collects the distinct variables an expression reads
+    private static class Reads implements BExp.Visitor<Reads>, AExp.Visitor<Reads> {
+
+        final List<String> names = new ArrayList<>();
+
+        public Reads visitBinary(BExp.Binary bexp) {
+            bexp.left.accept(this);
+            return bexp.right.accept(this);
+        }
+
+        public Reads visitNot(BExp.Not bexp) {
+            return bexp.exp.accept(this);
+        }
+
+        public Reads visitComparison(BExp.Comparison bexp) {
+            bexp.left.accept(this);
+            return bexp.right.accept(this);
+        }
+
+        public Reads visitAtomic(BExp.Atomic bexp) {
+            return this;
+        }
+
+        public Reads visitBinary(AExp.Binary aexp) {
+            aexp.left.accept(this);
+            return aexp.right.accept(this);
+        }
+
+        public Reads visitAtomic(AExp.Atomic aexp) {
+            if (aexp.atom.type == TokenType.IDENTIFIER && !names.contains(aexp.atom.lexeme)) {
+                names.add(aexp.atom.lexeme);
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package imp2;
+
+/**
+ * Symbol table for identifier names. Looking up a name by a range of
+ * characters doesn't create a new String unless the name hasn't been seen
+ * before, so equal identifiers all share one instance. A table belongs to
+ * the lexer, file or tree it's made for and is dropped along with it.
+ */
+class Symbols {
+
+    private String[] table;
+    private int[] hashes;
+    private int size;
+
+    Symbols() {
+        table = new String[256];
+        hashes = new int[256];
+        size = 0;
+    }
+
+    String intern(CharSequence source, int start, int end) {
+        int hash = hash(source, start, end);
+        int mask = table.length - 1;
+
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            String s = table[i];
+            if (s == null) {
+                s = source.subSequence(start, end).toString();
+                insert(i, s, hash);
+                return s;
+            } else if (hashes[i] == hash && matches(s, source, start, end)) {
+                return s;
+            }
+        }
+    }
+
+    String intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void insert(int slot, String s, int hash) {
+        table[slot] = s;
+        hashes[slot] = hash;
+        size++;
+        if (2 * size > table.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        String[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new String[oldTable.length * 2];
+        hashes = new int[oldTable.length * 2];
+        int mask = table.length - 1;
+
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] == null) { continue; }
+            int j = oldHashes[i] & mask;
+            while (table[j] != null) {
+                j = (j + 1) & mask;
+            }
+            table[j] = oldTable[i];
+            hashes[j] = oldHashes[i];
+        }
+    }
+
+    // same function as String.hashCode(), spread a little for the open addressing
+    private static int hash(CharSequence source, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + source.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String s, CharSequence source, int start, int end) {
+        if (s.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -2,66 +2,73 @@ package imp2;
 
 enum TokenType
 {
-    IDENTIFIER,
-    NUMBER,
+    IDENTIFIER(null),
+    NUMBER(null),
 
-    LPAREN,             // (
-    RPAREN,             // )
+    LPAREN("("),
+    RPAREN(")"),
 
-    PLUS,               // +
-    MINUS,              // -
-    TIMES,              // *
+    PLUS("+"),
+    MINUS("-"),
+    TIMES("*"),
 
-    EQUAL,              // =
-    NOT_EQUAL,          // #
-    LESS,               // <
-    GREATER,            // >
-    LESS_EQUAL,         // <=
-    GREATER_EQUAL,      // >=
+    EQUAL("="),
+    NOT_EQUAL("#"),
+    LESS("<"),
+    GREATER(">"),
+    LESS_EQUAL("<="),
+    GREATER_EQUAL(">="),
 
-    ASSIGN,             // :=
-    SEMICOLON,          // ;
+    ASSIGN(":="),
+    SEMICOLON(";"),
 
-    PIPE,               // |
+    PIPE("|"),
 
-    COMMA,              // ,
+    COMMA(","),
 
-    AND,                // and
-    OR,                 // or
-    NOT,                // not
+    AND("and"),
+    OR("or"),
+    NOT("not"),
 
-    IF,                 // if
-    THEN,               // then
-    ELSE,               // else
+    IF("if"),
+    THEN("then"),
+    ELSE("else"),
 
-    VAR,                // var
-    IN,                 // in
+    VAR("var"),
+    IN("in"),
 
-    ABORT,              // abort
+    ABORT("abort"),
 
-    TRUE,               // true
-    FALSE,              // false
+    TRUE("true"),
+    FALSE("false"),
 
-    BREAK,              // break
+    BREAK("break"),
 
-    DO,                 // do
-    WHILE,              // while
+    DO("do"),
+    WHILE("while"),
 
-    FOR,                // for
-    TO,                 // to
+    FOR("for"),
+    TO("to"),
 
-    SKIP,               // skip
-    PRINT,              // print
+    SKIP("skip"),
+    PRINT("print"),
 
-    PROCEDURE,          // procedure
-    BEGIN,              // begin
+    PROCEDURE("procedure"),
+    BEGIN("begin"),
 
-    PAR,                // par
+    PAR("par"),
 
-    END,                // end
+    END("end"),
 
-    ERROR,              // any error
-    EOF
+    ERROR(null),         // any error
+    EOF("<eof>");
+
+    // the fixed lexeme of a token type, null if it depends on the source
+    final String text;
+
+    TokenType(String text) {
+        this.text = text;
+    }
 }
 
 class Token {
@@ -0,0 +1,172 @@
+package imp2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static imp2.TokenType.*;
+
+/**
+ * Token stream stored as parallel int arrays instead of one Token object per
+ * token. Lexemes are sliced out of the source only when they are asked for,
+ * and Token objects are only built for error messages and AST leaves.
+ */
+class TokenBuffer {
+
+    private static final TokenType[] types = TokenType.values();
+
+    private final CharSequence source;
+    private final Symbols symbols;
+
+    private int[] type, start, length, line, column;
+    private int size;
+
+    // lexemes copied out of the input when there is no source to slice them from
+    private String[] text;
+
+    TokenBuffer(CharSequence source, Symbols symbols) {
+        this(source, symbols, 256);
+    }
+
+    private TokenBuffer(CharSequence source, Symbols symbols, int capacity) {
+        this.source = source;
+        this.symbols = symbols;
+
+        type = new int[capacity];
+        start = new int[capacity];
+        length = new int[capacity];
+        line = new int[capacity];
+        column = new int[capacity];
+        text = source == null ? new String[capacity] : null;
+        size = 0;
+    }
+
+    void add(TokenType t, int tokenStart, int tokenLength, int tokenLine, int tokenColumn) {
+        if (size == type.length) {
+            grow();
+        }
+        type[size] = t.ordinal();
+        start[size] = tokenStart;
+        length[size] = tokenLength;
+        line[size] = tokenLine;
+        column[size] = tokenColumn;
+        size++;
+    }
+
+    void add(TokenType t, int tokenStart, int tokenLength, int tokenLine, int tokenColumn, String lexeme) {
+        if (size == type.length) {
+            grow();
+        }
+        text[size] = lexeme;
+        add(t, tokenStart, tokenLength, tokenLine, tokenColumn);
+    }
+
+    // appends all tokens of another buffer except for its end of file token,
+    // moving them down by the given number of lines and characters
+    void append(TokenBuffer other, int lineOffset, int startOffset) {
+        int count = other.size - 1;
+        while (type.length < size + count) {
+            grow();
+        }
+
+        System.arraycopy(other.type, 0, type, size, count);
+        System.arraycopy(other.length, 0, length, size, count);
+        System.arraycopy(other.column, 0, column, size, count);
+        for (int i = 0; i < count; i++) {
+            start[size + i] = other.start[i] + startOffset;
+            line[size + i] = other.line[i] + lineOffset;
+        }
+        if (text != null) {
+            // the other buffer's lexemes were interned into its own symbol table
+            for (int i = 0; i < count; i++) {
+                String lexeme = other.text[i];
+                text[size + i] = lexeme == null ? null : symbols.intern(lexeme);
+            }
+        }
+        size += count;
+    }
+
+    // the tokens from index from up to to as a buffer of their own, ended by
+    // an end of file token in the place of the token at to
+    TokenBuffer slice(int from, int to) {
+        int count = to - from;
+        TokenBuffer res = new TokenBuffer(source, symbols, count + 1);
+
+        System.arraycopy(type, from, res.type, 0, count);
+        System.arraycopy(start, from, res.start, 0, count);
+        System.arraycopy(length, from, res.length, 0, count);
+        System.arraycopy(line, from, res.line, 0, count);
+        System.arraycopy(column, from, res.column, 0, count);
+        if (text != null) {
+            System.arraycopy(text, from, res.text, 0, count);
+        }
+        res.size = count;
+
+        res.add(EOF, start[to], 0, line[to], column[to]);
+        return res;
+    }
+
+    // drops the token at i and all tokens after it, ending the buffer with
+    // an end of file token in its place
+    void endAt(int i) {
+        size = i;
+        add(EOF, start[i], 0, line[i], column[i]);
+    }
+
+    int size() {
+        return size;
+    }
+
+    TokenType type(int i) {
+        return types[type[i]];
+    }
+
+    int start(int i) {
+        return start[i];
+    }
+
+    int line(int i) {
+        return line[i];
+    }
+
+    int column(int i) {
+        return column[i];
+    }
+
+    String lexeme(int i) {
+        TokenType t = types[type[i]];
+        if (t.text != null) {
+            return t.text;
+        } else if (text != null) {
+            return text[i];
+        } else if (t == IDENTIFIER) {
+            return symbols.intern(source, start[i], start[i] + length[i]);
+        } else {
+            return source.subSequence(start[i], start[i] + length[i]).toString();
+        }
+    }
+
+    Token token(int i) {
+        return new Token(type(i), line[i], column[i], lexeme(i));
+    }
+
+    List<Token> toList() {
+        List<Token> res = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            res.add(token(i));
+        }
+        return res;
+    }
+
+    private void grow() {
+        int capacity = type.length + (type.length >> 1);
+        type = Arrays.copyOf(type, capacity);
+        start = Arrays.copyOf(start, capacity);
+        length = Arrays.copyOf(length, capacity);
+        line = Arrays.copyOf(line, capacity);
+        column = Arrays.copyOf(column, capacity);
+        if (text != null) {
+            text = Arrays.copyOf(text, capacity);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package imp2;
 
 import java.util.List;
+import java.util.function.Supplier;
 
 abstract class Stm {
 
@@ -40,6 +41,9 @@ abstract class Stm {
         String name;
         imp2.AExp exp;
 
+        // the slot of the variable, once resolved
+        int slot = -1;
+
         Assign(String name, imp2.AExp exp) {
             this.name = name;
             this.exp = exp;
@@ -71,6 +75,9 @@ abstract class Stm {
         BExp condition;
         Stm body;
 
+        // how the loop changes its variables, if its outcome can be computed without running it
+        ClosedForms.Form closed;
+
         While(BExp condition, Stm body) {
             this.condition = condition;
             this.body = body;
@@ -87,6 +94,12 @@ abstract class Stm {
         AExp start, end;
         Stm body;
 
+        // the slot of the loop variable, once resolved
+        int slot = -1;
+
+        // how the loop changes its variables, if its outcome can be computed without running it
+        ClosedForms.Form closed;
+
         For(String loopvar, AExp start, AExp end, Stm body) {
             this.loopvar = loopvar;
             this.start = start;
@@ -105,6 +118,9 @@ abstract class Stm {
         AExp decl;
         Stm body;
 
+        // the slot of the variable, once resolved
+        int slot = -1;
+
         Var(String name, AExp decl, Stm body) {
             this.name = name;
             this.decl = decl;
@@ -148,6 +164,20 @@ abstract class Stm {
         List<String> in, out;
         Stm body;
 
+        // parses the body on first use when it was skipped while loading
+        Supplier<Stm> deferred;
+
+        // the slots of the parameters and outputs, and the resolver that has
+        // resolved the body's variables to slots as well
+        int[] inSlots, outSlots;
+        Resolver resolver;
+
+        // the body compiled for the virtual machine, or turned into a closure
+        // or a tree of nodes, once it's first called
+        Code code;
+        ClosureInterpreter.Exec closure;
+        Node.Root node;
+
         ProcDef(Token name, List<String> in, List<String> out, Stm body) {
             this.name = name;
             this.in = in;
@@ -155,6 +185,22 @@ abstract class Stm {
             this.body = body;
         }
 
+        ProcDef(Token name, List<String> in, List<String> out, Supplier<Stm> deferred) {
+            this(name, in, out, (Stm) null);
+            this.deferred = deferred;
+        }
+
+        // null if the body was deferred and doesn't parse
+        Stm body() {
+            if (body == null && deferred != null) {
+                body = deferred.get();
+                if (body != null) {
+                    deferred = null;
+                }
+            }
+            return body;
+        }
+
         @Override
         <T> T accept(Visitor<T> visitor) {
             return visitor.visitProcDef(this);            
@@ -165,7 +211,18 @@ abstract class Stm {
         Token name;
         List<AExp> in;
         List<String> out;
-        
+
+        // the definition of the procedure the call was optimized for, and
+        // either its body with the parameters bound, which runs instead of
+        // the call, or a version of it specialized for the numbers passed.
+        // Neither is used once the procedure has been defined again.
+        ProcDef target;
+        Stm inlined;
+        ProcDef specialized;
+
+        // the slots of the variables the outputs are assigned to, once resolved
+        int[] outSlots;
+
         ProcCall(Token name, List<AExp> in, List<String> out) {
             this.name = name;
             this.in = in;
@@ -207,8 +264,14 @@ abstract class Stm {
 
 abstract class BExp {
 
+    // set on nodes that occur more than once in the tree they were built for
+    boolean shared;
+
     abstract <T> T accept(Visitor<T> visitor);
 
+    // the value of the expression, without boxing it or any of its parts
+    abstract boolean evalBool(AExp.Environment env);
+
     interface Visitor<T> {
         T visitBinary(Binary bexp);
         T visitNot(Not bexp);
@@ -231,6 +294,13 @@ abstract class BExp {
         <T> T accept(Visitor<T> visitor) {
             return visitor.visitBinary(this);
         }
+
+        @Override
+        boolean evalBool(AExp.Environment env) {
+            // both sides are evaluated, as in the interpreter
+            boolean left = this.left.evalBool(env), right = this.right.evalBool(env);
+            return operator == OpType.AND ? left && right : left || right;
+        }
     }
 
     static class Not extends BExp {
@@ -244,6 +314,11 @@ abstract class BExp {
         <T> T accept(Visitor<T> visitor) {
             return visitor.visitNot(this);
         }
+
+        @Override
+        boolean evalBool(AExp.Environment env) {
+            return !exp.evalBool(env);
+        }
     }
 
     static class Comparison extends BExp {
@@ -261,6 +336,20 @@ abstract class BExp {
         <T> T accept(Visitor<T> visitor) {
             return visitor.visitComparison(this);
         }
+
+        @Override
+        boolean evalBool(AExp.Environment env) {
+            int left = this.left.evalInt(env), right = this.right.evalInt(env);
+
+            switch (operator) {
+                case EQ:  return left == right;
+                case NEQ: return left != right;
+                case G:   return left >  right;
+                case GEQ: return left >= right;
+                case L:   return left <  right;
+                default:  return left <= right; // '<='
+            }
+        }
     }
 
     static class Atomic extends BExp {
@@ -275,18 +364,35 @@ abstract class BExp {
         <T> T accept(Visitor<T> visitor) {
             return visitor.visitAtomic(this);
         }
+
+        @Override
+        boolean evalBool(AExp.Environment env) {
+            return type == Type.TRUE;
+        }
     }
 }
 
 abstract class AExp {
 
+    // set on nodes that occur more than once in the tree they were built for
+    boolean shared;
+
     abstract <T> T accept(Visitor<T> visitor);
 
+    // the value of the expression, without boxing it or any of its parts
+    abstract int evalInt(Environment env);
+
     interface Visitor<T> {
         T visitBinary(Binary aexp);
         T visitAtomic(Atomic aexp);
     }
 
+    // where evalInt and evalBool take the values of variables from
+    interface Environment {
+        // the value of an identifier, or an error for a number that doesn't fit into an int
+        int read(Atomic aexp);
+    }
+
     static class Binary extends AExp {
         AExp left, right;
         enum OpType { PLUS, MINUS, TIMES }
@@ -302,18 +408,51 @@ abstract class AExp {
         <T> T accept(Visitor<T> visitor) {
             return visitor.visitBinary(this);
         }
+
+        @Override
+        int evalInt(Environment env) {
+            int left = this.left.evalInt(env), right = this.right.evalInt(env);
+
+            switch (operator) {
+                case PLUS:  return left + right;
+                case MINUS: return left - right;
+                default:    return left * right;
+            }
+        }
     }
 
     static class Atomic extends AExp {
         Token atom;
 
+        // the value of a number, null for identifiers and numbers that don't fit into an int
+        Integer value;
+
+        // the same value, unboxed, if there is one
+        private int number;
+
+        // the slot of an identifier, once resolved
+        int slot = -1;
+
         Atomic(Token atom) {
             this.atom = atom;
+            if (atom.type == TokenType.NUMBER) {
+                try {
+                    value = Integer.parseInt(atom.lexeme);
+                    number = value;
+                } catch (NumberFormatException e) {
+                    value = null;
+                }
+            }
         }
 
         @Override
         <T> T accept(Visitor<T> visitor) {
             return visitor.visitAtomic(this);
         }
+
+        @Override
+        int evalInt(Environment env) {
+            return value != null ? number : env.read(this);
+        }
     }
 }
\ No newline at end of file
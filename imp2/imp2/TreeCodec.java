@@ -0,0 +1,406 @@
+package imp2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of syntax trees. Every node is written as a one byte
+ * tag followed by its fields, numbers as variable length integers and
+ * strings as an index into a table that is built up while writing, so every
+ * distinct name is stored only once.
+ */
+class TreeCodec {
+
+    // bumped whenever the format changes, old entries are then never read
+    private static final int FORMAT = 1;
+
+    // also changes with the token and operator types, so trees written by
+    // another version of the interpreter aren't read back
+    static final int VERSION = 31 * FORMAT + Arrays.hashCode(names());
+
+    private static final byte SINGLE = 0, ASSIGN = 1, IF = 2, WHILE = 3, FOR = 4, VAR = 5, SEQ = 6, ND = 7,
+        PROC_DEF = 8, PROC_CALL = 9, SB = 10, SA = 11,
+        B_BINARY = 12, B_NOT = 13, B_COMPARISON = 14, B_ATOMIC = 15,
+        A_BINARY = 16, A_ATOMIC = 17;
+
+    private static final TokenType[] tokenTypes = TokenType.values();
+
+    private TreeCodec() {}
+
+    private static Object[] names() {
+        List<String> res = new ArrayList<>();
+        for (Enum<?>[] values : Arrays.<Enum<?>[]>asList(TokenType.values(), Stm.Single.Type.values(),
+                BExp.Binary.OpType.values(), BExp.Comparison.OpType.values(), BExp.Atomic.Type.values(),
+                AExp.Binary.OpType.values())) {
+            for (Enum<?> value : values) {
+                res.add(value.name());
+            }
+            res.add("|");
+        }
+        return res.toArray();
+    }
+
+    static byte[] write(Stm tree) {
+        Writer writer = new Writer();
+        tree.accept(writer);
+        return writer.out.toByteArray();
+    }
+
+    // throws IllegalArgumentException or BufferUnderflowException if the
+    // input isn't a tree written by write
+    static Stm read(ByteBuffer in) {
+        return read(in, new Symbols());
+    }
+
+    // names are interned into symbols
+    static Stm read(ByteBuffer in, Symbols symbols) {
+        return new Reader(in, symbols).readStm();
+    }
+
+    // thrown while writing a tree that isn't complete, like one with a
+    // procedure body that doesn't parse
+    static class Incomplete extends RuntimeException {
+        Incomplete() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static class Writer implements Stm.Visitor<Void>, BExp.Visitor<Void>, AExp.Visitor<Void> {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Map<String, Integer> strings = new HashMap<>();
+
+        public Void visitSingle(Stm.Single stm) {
+            out.write(SINGLE);
+            writeInt(stm.type.ordinal());
+            return null;
+        }
+
+        public Void visitAssign(Stm.Assign stm) {
+            out.write(ASSIGN);
+            writeString(stm.name);
+            stm.exp.accept(this);
+            return null;
+        }
+
+        public Void visitIf(Stm.If stm) {
+            out.write(IF);
+            stm.condition.accept(this);
+            stm.taken.accept(this);
+            stm.notTaken.accept(this);
+            return null;
+        }
+
+        public Void visitWhile(Stm.While stm) {
+            out.write(WHILE);
+            stm.condition.accept(this);
+            stm.body.accept(this);
+            return null;
+        }
+
+        public Void visitFor(Stm.For stm) {
+            out.write(FOR);
+            writeString(stm.loopvar);
+            stm.start.accept(this);
+            stm.end.accept(this);
+            stm.body.accept(this);
+            return null;
+        }
+
+        public Void visitVar(Stm.Var stm) {
+            out.write(VAR);
+            writeString(stm.name);
+            stm.decl.accept(this);
+            stm.body.accept(this);
+            return null;
+        }
+
+        public Void visitSeq(Stm.Seq stm) {
+            out.write(SEQ);
+            writeStms(stm.stms);
+            return null;
+        }
+
+        public Void visitNd(Stm.Nd stm) {
+            out.write(ND);
+            writeStms(stm.stms);
+            return null;
+        }
+
+        public Void visitProcDef(Stm.ProcDef stm) {
+            Stm body = stm.body();
+            if (body == null) {
+                throw new Incomplete();
+            }
+            out.write(PROC_DEF);
+            writeToken(stm.name);
+            writeStrings(stm.in);
+            writeStrings(stm.out);
+            body.accept(this);
+            return null;
+        }
+
+        public Void visitProcCall(Stm.ProcCall stm) {
+            out.write(PROC_CALL);
+            writeToken(stm.name);
+            writeInt(stm.in.size());
+            for (AExp a : stm.in) {
+                a.accept(this);
+            }
+            writeStrings(stm.out);
+            return null;
+        }
+
+        public Void visitBExp(Stm.SB stm) {
+            out.write(SB);
+            stm.exp.accept(this);
+            return null;
+        }
+
+        public Void visitAExp(Stm.SA stm) {
+            out.write(SA);
+            stm.exp.accept(this);
+            return null;
+        }
+
+        public Void visitBinary(BExp.Binary bexp) {
+            out.write(B_BINARY);
+            writeInt(bexp.operator.ordinal());
+            bexp.left.accept(this);
+            bexp.right.accept(this);
+            return null;
+        }
+
+        public Void visitNot(BExp.Not bexp) {
+            out.write(B_NOT);
+            bexp.exp.accept(this);
+            return null;
+        }
+
+        public Void visitComparison(BExp.Comparison bexp) {
+            out.write(B_COMPARISON);
+            writeInt(bexp.operator.ordinal());
+            bexp.left.accept(this);
+            bexp.right.accept(this);
+            return null;
+        }
+
+        public Void visitAtomic(BExp.Atomic bexp) {
+            out.write(B_ATOMIC);
+            writeInt(bexp.type.ordinal());
+            return null;
+        }
+
+        public Void visitBinary(AExp.Binary aexp) {
+            out.write(A_BINARY);
+            writeInt(aexp.operator.ordinal());
+            aexp.left.accept(this);
+            aexp.right.accept(this);
+            return null;
+        }
+
+        public Void visitAtomic(AExp.Atomic aexp) {
+            out.write(A_ATOMIC);
+            writeToken(aexp.atom);
+            return null;
+        }
+
+        void writeStms(List<Stm> stms) {
+            writeInt(stms.size());
+            for (Stm s : stms) {
+                s.accept(this);
+            }
+        }
+
+        void writeToken(Token token) {
+            writeInt(token.type.ordinal());
+            writeInt(token.line);
+            writeInt(token.index);
+            writeString(token.lexeme);
+        }
+
+        void writeStrings(List<String> l) {
+            writeInt(l.size());
+            for (String s : l) {
+                writeString(s);
+            }
+        }
+
+        // a string is written as its index in the table, followed by its
+        // characters if this is its first occurrence
+        void writeString(String s) {
+            Integer index = strings.get(s);
+            if (index != null) {
+                writeInt(index);
+            } else {
+                writeInt(strings.size());
+                strings.put(s, strings.size());
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeInt(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+
+        // seven bits at a time, lowest first, with the high bit set on all
+        // but the last byte
+        void writeInt(int value) {
+            while ((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    private static class Reader {
+
+        final ByteBuffer in;
+        final List<String> strings = new ArrayList<>();
+        final Symbols symbols;
+
+        // equal expressions in the tree share a node, as they did when it was parsed
+        final ExpressionTable expressions = new ExpressionTable();
+
+        Reader(ByteBuffer in, Symbols symbols) {
+            this.in = in;
+            this.symbols = symbols;
+        }
+
+        Stm readStm() {
+            byte tag = in.get();
+            switch (tag) {
+                case SINGLE:
+                    return new Stm.Single(readEnum(Stm.Single.Type.values()));
+                case ASSIGN:
+                    return new Stm.Assign(readString(), readAExp());
+                case IF:
+                    return new Stm.If(readBExp(), readStm(), readStm());
+                case WHILE:
+                    return new Stm.While(readBExp(), readStm());
+                case FOR:
+                    return new Stm.For(readString(), readAExp(), readAExp(), readStm());
+                case VAR:
+                    return new Stm.Var(readString(), readAExp(), readStm());
+                case SEQ:
+                    return new Stm.Seq(readStms());
+                case ND:
+                    return new Stm.Nd(readStms());
+                case PROC_DEF:
+                    return new Stm.ProcDef(readToken(), readStrings(), readStrings(), readStm());
+                case PROC_CALL: {
+                    Token name = readToken();
+                    int count = readInt();
+                    List<AExp> in = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        in.add(readAExp());
+                    }
+                    return new Stm.ProcCall(name, in, readStrings());
+                }
+                case SB:
+                    return new Stm.SB(readBExp());
+                case SA:
+                    return new Stm.SA(readAExp());
+                default:
+                    throw new IllegalArgumentException("Unknown statement tag " + tag + ".");
+            }
+        }
+
+        BExp readBExp() {
+            byte tag = in.get();
+            switch (tag) {
+                case B_BINARY: {
+                    BExp.Binary.OpType operator = readEnum(BExp.Binary.OpType.values());
+                    return expressions.binary(readBExp(), readBExp(), operator);
+                }
+                case B_NOT:
+                    return expressions.not(readBExp());
+                case B_COMPARISON: {
+                    BExp.Comparison.OpType operator = readEnum(BExp.Comparison.OpType.values());
+                    return expressions.comparison(readAExp(), readAExp(), operator);
+                }
+                case B_ATOMIC:
+                    return expressions.atomic(readEnum(BExp.Atomic.Type.values()));
+                default:
+                    throw new IllegalArgumentException("Unknown boolean expression tag " + tag + ".");
+            }
+        }
+
+        AExp readAExp() {
+            byte tag = in.get();
+            switch (tag) {
+                case A_BINARY: {
+                    AExp.Binary.OpType operator = readEnum(AExp.Binary.OpType.values());
+                    return expressions.binary(readAExp(), readAExp(), operator);
+                }
+                case A_ATOMIC:
+                    return expressions.atomic(readToken());
+                default:
+                    throw new IllegalArgumentException("Unknown arithmetic expression tag " + tag + ".");
+            }
+        }
+
+        List<Stm> readStms() {
+            int count = readInt();
+            List<Stm> res = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                res.add(readStm());
+            }
+            return res;
+        }
+
+        Token readToken() {
+            TokenType type = readEnum(tokenTypes);
+            int line = readInt(), index = readInt();
+            return new Token(type, line, index, readString());
+        }
+
+        List<String> readStrings() {
+            int count = readInt();
+            List<String> res = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                res.add(readString());
+            }
+            return res;
+        }
+
+        String readString() {
+            int index = readInt();
+            if (index < strings.size()) {
+                return strings.get(index);
+            } else if (index > strings.size()) {
+                throw new IllegalArgumentException("Illegal string index " + index + ".");
+            }
+            byte[] bytes = new byte[readInt()];
+            in.get(bytes);
+            String s = symbols.intern(new String(bytes, StandardCharsets.UTF_8));
+            strings.add(s);
+            return s;
+        }
+
+        <E> E readEnum(E[] values) {
+            int ordinal = readInt();
+            if (ordinal < 0 || ordinal >= values.length) {
+                throw new IllegalArgumentException("Illegal enum ordinal " + ordinal + ".");
+            }
+            return values[ordinal];
+        }
+
+        int readInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed variable length integer.");
+        }
+    }
+}
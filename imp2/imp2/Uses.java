@@ -0,0 +1,160 @@
+package imp2;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static imp2.TokenType.*;
+
+/**
+ * The variables a statement or expression reads and assigns, and whether it
+ * can make the variables visible, which print, abort, a procedure call or a
+ * runtime error all can, or be left by a break outside of any loop in it.
+ * The bodies of procedure definitions are left out.
+ */
+class Uses implements Stm.Visitor<Void>, BExp.Visitor<Void>, AExp.Visitor<Void> {
+
+    final Set<String> reads = new LinkedHashSet<>(), assigned = new LinkedHashSet<>();
+    boolean calls, observes, breaks;
+
+    // the procedures called, those called outside of any loop in it, and
+    // whether it prints or defines procedures
+    final Set<String> called = new LinkedHashSet<>(), calledOutside = new LinkedHashSet<>();
+    boolean prints, defines;
+
+    // the number of loops around the statement being visited
+    private int loops = 0;
+
+    static Uses of(Stm stm) {
+        Uses res = new Uses();
+        stm.accept(res);
+        return res;
+    }
+
+    static Uses of(BExp bexp) {
+        Uses res = new Uses();
+        bexp.accept(res);
+        return res;
+    }
+
+    static Uses of(AExp aexp) {
+        Uses res = new Uses();
+        aexp.accept(res);
+        return res;
+    }
+
+    public Void visitSingle(Stm.Single stm) {
+        observes |= stm.type == Stm.Single.Type.PRINT || stm.type == Stm.Single.Type.ABORT;
+        prints |= stm.type == Stm.Single.Type.PRINT;
+        breaks |= stm.type == Stm.Single.Type.BREAK && loops == 0;
+        return null;
+    }
+
+    public Void visitAssign(Stm.Assign stm) {
+        assigned.add(stm.name);
+        return stm.exp.accept(this);
+    }
+
+    public Void visitIf(Stm.If stm) {
+        stm.condition.accept(this);
+        stm.taken.accept(this);
+        return stm.notTaken.accept(this);
+    }
+
+    public Void visitWhile(Stm.While stm) {
+        stm.condition.accept(this);
+        return loop(stm.body);
+    }
+
+    public Void visitFor(Stm.For stm) {
+        assigned.add(stm.loopvar);
+        reads.add(stm.loopvar);
+        stm.start.accept(this);
+        stm.end.accept(this);
+        return loop(stm.body);
+    }
+
+    private Void loop(Stm body) {
+        loops++;
+        body.accept(this);
+        loops--;
+        return null;
+    }
+
+    public Void visitVar(Stm.Var stm) {
+        assigned.add(stm.name);
+        stm.decl.accept(this);
+        return stm.body.accept(this);
+    }
+
+    public Void visitSeq(Stm.Seq stm) {
+        for (Stm s : stm.stms) {
+            s.accept(this);
+        }
+        return null;
+    }
+
+    public Void visitNd(Stm.Nd stm) {
+        for (Stm s : stm.stms) {
+            s.accept(this);
+        }
+        return null;
+    }
+
+    public Void visitProcDef(Stm.ProcDef stm) {
+        defines = true;
+        return null;
+    }
+
+    public Void visitProcCall(Stm.ProcCall stm) {
+        calls = observes = true;
+        called.add(stm.name.lexeme);
+        if (loops == 0) {
+            calledOutside.add(stm.name.lexeme);
+        }
+        for (AExp a : stm.in) {
+            a.accept(this);
+        }
+        assigned.addAll(stm.out);
+        return null;
+    }
+
+    public Void visitBExp(Stm.SB stm) {
+        return stm.exp.accept(this);
+    }
+
+    public Void visitAExp(Stm.SA stm) {
+        return stm.exp.accept(this);
+    }
+
+    public Void visitBinary(BExp.Binary bexp) {
+        bexp.left.accept(this);
+        return bexp.right.accept(this);
+    }
+
+    public Void visitNot(BExp.Not bexp) {
+        return bexp.exp.accept(this);
+    }
+
+    public Void visitComparison(BExp.Comparison bexp) {
+        bexp.left.accept(this);
+        return bexp.right.accept(this);
+    }
+
+    public Void visitAtomic(BExp.Atomic bexp) {
+        return null;
+    }
+
+    public Void visitBinary(AExp.Binary aexp) {
+        aexp.left.accept(this);
+        return aexp.right.accept(this);
+    }
+
+    public Void visitAtomic(AExp.Atomic aexp) {
+        if (aexp.atom.type == IDENTIFIER) {
+            reads.add(aexp.atom.lexeme);
+        } else if (aexp.value == null) {
+            observes = true;
+        }
+        return null;
+    }
+}
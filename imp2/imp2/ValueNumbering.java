@@ -0,0 +1,444 @@
+package imp2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static imp2.TokenType.*;
+
+/**
+ * Global value numbering over a procedure body or top-level program in SSA
+ * form. IMP only has structured control flow, so the statements themselves
+ * are the control flow graph: every assignment defines a new value, and phi
+ * values are placed where an if or a loop joins paths that assign different
+ * values to a variable.
+ *
+ * Expressions whose value some variable already holds are replaced by that
+ * variable, and reads of a copy by the variable it was copied from. The
+ * resulting tree is executed as usual. With a dump, the SSA form is written
+ * out along the way.
+ */
+class ValueNumbering implements Stm.Visitor<Stm> {
+
+    private final Optimizer optimizer;
+    private final StringBuilder dump;
+
+    private final Map<Object, Integer> numbers = new HashMap<>();
+    private int next = 0;
+
+    // the values of the variables at the region's start, and of those assigned since
+    private final Map<String, Integer> entry = new LinkedHashMap<>();
+    private Map<String, Integer> values = new LinkedHashMap<>();
+
+    private String indent = "  ";
+
+    // the phi values of the loops being numbered
+    private final Deque<List<String>> loops = new ArrayDeque<>();
+
+    // prints expressions with every variable read as the value it has here
+    private final Printer printer = new Printer() {
+        @Override
+        public String visitAtomic(AExp.Atomic aexp) {
+            return aexp.atom.type == IDENTIFIER ? aexp.atom.lexeme + value(aexp.atom.lexeme) : aexp.atom.lexeme;
+        }
+    };
+
+    ValueNumbering(Optimizer optimizer, StringBuilder dump) {
+        this.optimizer = optimizer;
+        this.dump = dump;
+    }
+
+    Stm run(Stm region, String name) {
+        if (dump != null) {
+            dump.append(name).append('\n');
+        }
+        return region.accept(this);
+    }
+
+    private int fresh() {
+        return next++;
+    }
+
+    private int value(String name) {
+        Integer res = values.get(name);
+        return res != null ? res : entry.computeIfAbsent(name, n -> fresh());
+    }
+
+    // variables are kept in the order they were last assigned, so the oldest
+    // copy of a value is found first
+    private void define(String name, int value) {
+        values.remove(name);
+        values.put(name, value);
+    }
+
+    private int number(Object key) {
+        return numbers.computeIfAbsent(key, k -> fresh());
+    }
+
+    // the value of an expression, numbers that don't fit into an int are all different
+    private int number(AExp aexp) {
+        if (aexp instanceof AExp.Atomic) {
+            AExp.Atomic atomic = (AExp.Atomic) aexp;
+            if (atomic.atom.type == IDENTIFIER) {
+                return value(atomic.atom.lexeme);
+            }
+            return atomic.value != null ? number(atomic.value) : fresh();
+        }
+
+        AExp.Binary binary = (AExp.Binary) aexp;
+        int left = number(binary.left), right = number(binary.right);
+        if (binary.operator != AExp.Binary.OpType.MINUS && right < left) {
+            int tmp = left;
+            left = right;
+            right = tmp;
+        }
+        return number(List.of(binary.operator, left, right));
+    }
+
+    // the first variable that holds a value, variables still holding their
+    // value from the start of the region first
+    private String holder(int value) {
+        for (Map.Entry<String, Integer> e : entry.entrySet()) {
+            if (e.getValue() == value && !values.containsKey(e.getKey())) {
+                return e.getKey();
+            }
+        }
+        for (Map.Entry<String, Integer> e : values.entrySet()) {
+            if (e.getValue() == value) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    private AExp rewrite(AExp aexp) {
+        if (aexp instanceof AExp.Atomic) {
+            AExp.Atomic atomic = (AExp.Atomic) aexp;
+            if (atomic.atom.type != IDENTIFIER) {
+                return aexp;
+            }
+            String holder = holder(value(atomic.atom.lexeme));
+            if (holder == null || holder.equals(atomic.atom.lexeme)) {
+                return aexp;
+            }
+            return variable(atomic, holder);
+        }
+
+        AExp.Binary binary = (AExp.Binary) aexp;
+        if (Optimizer.safe(binary)) {
+            String holder = holder(number(binary));
+            if (holder != null) {
+                optimizer.count(Optimizer.Rule.VALUE_NUMBERING, Optimizer.size(binary) - 1);
+                return variable((AExp.Atomic) Optimizer.firstAtom(binary), holder);
+            }
+        }
+
+        AExp left = rewrite(binary.left), right = rewrite(binary.right);
+        if (left == binary.left && right == binary.right) {
+            return aexp;
+        }
+        AExp res = new AExp.Binary(left, right, binary.operator);
+        res.shared = binary.shared;
+        return res;
+    }
+
+    private BExp rewrite(BExp bexp) {
+        if (bexp instanceof BExp.Binary) {
+            BExp.Binary binary = (BExp.Binary) bexp;
+            BExp left = rewrite(binary.left), right = rewrite(binary.right);
+            return left == binary.left && right == binary.right ? bexp : new BExp.Binary(left, right, binary.operator);
+        } else if (bexp instanceof BExp.Not) {
+            BExp exp = rewrite(((BExp.Not) bexp).exp);
+            return exp == ((BExp.Not) bexp).exp ? bexp : new BExp.Not(exp);
+        } else if (bexp instanceof BExp.Comparison) {
+            BExp.Comparison comparison = (BExp.Comparison) bexp;
+            AExp left = rewrite(comparison.left), right = rewrite(comparison.right);
+            if (left == comparison.left && right == comparison.right) {
+                return bexp;
+            }
+            return new BExp.Comparison(left, right, comparison.operator);
+        }
+        return bexp;
+    }
+
+    private static AExp variable(AExp.Atomic at, String name) {
+        return new AExp.Atomic(new Token(IDENTIFIER, at.atom.line, at.atom.index, name));
+    }
+
+    // variables assigned since the start of the region in either state get a
+    // phi value where they differ
+    private Map<String, Integer> join(List<Map<String, Integer>> states) {
+        Set<String> names = new LinkedHashSet<>();
+        for (Map<String, Integer> state : states) {
+            names.addAll(state.keySet());
+        }
+
+        Map<String, Integer> res = new LinkedHashMap<>();
+        for (String name : names) {
+            List<Integer> incoming = new ArrayList<>();
+            for (Map<String, Integer> state : states) {
+                values = state;
+                incoming.add(value(name));
+            }
+            if (incoming.stream().distinct().count() == 1) {
+                res.put(name, incoming.get(0));
+            } else {
+                int phi = fresh();
+                res.put(name, phi);
+                phi(name, phi, incoming);
+            }
+        }
+        return res;
+    }
+
+    // variables assigned in a loop get a phi value at its head
+    private List<String> enterLoop(Stm loop) {
+        List<String> res = new ArrayList<>(Uses.of(loop).assigned);
+        loops.push(new ArrayList<>());
+        for (String name : res) {
+            loops.peek().add(name + "%d = phi(" + name + value(name) + ", " + name + "%d)");
+            define(name, fresh());
+        }
+        if (dump != null) {
+            loops.peek().add(0, Integer.toString(dump.length()));
+        }
+        return res;
+    }
+
+    // the phi values are listed once the values coming back from the end of
+    // the body are known
+    private void backEdge(List<String> assigned, Map<String, Integer> head) {
+        List<String> phis = loops.pop();
+        if (dump != null) {
+            StringBuilder res = new StringBuilder();
+            for (int i = 0; i < assigned.size(); i++) {
+                String name = assigned.get(i);
+                res.append(indent).append(String.format(phis.get(i + 1), head.get(name), value(name))).append('\n');
+            }
+            dump.insert(Integer.parseInt(phis.get(0)), res);
+        }
+    }
+
+    // after a loop, which may also be left by a break, the assigned variables
+    // have values of their own. A break in a procedure called in the loop
+    // leaves it without restoring the variables, so then all of them do.
+    private void leaveLoop(Stm loop, List<String> assigned) {
+        if (Uses.of(loop).calls) {
+            assigned = new ArrayList<>(entry.keySet());
+            assigned.addAll(values.keySet());
+        }
+        for (String name : assigned) {
+            define(name, fresh());
+        }
+    }
+
+    public Stm visitSingle(Stm.Single stm) {
+        line(printer.print(stm));
+        return stm;
+    }
+
+    public Stm visitAssign(Stm.Assign stm) {
+        int value = number(stm.exp);
+        AExp exp = rewrite(stm.exp);
+        String shown = show(stm.exp);
+        define(stm.name, value);
+        line(stm.name + value + " = " + shown);
+        return exp == stm.exp ? stm : new Stm.Assign(stm.name, exp);
+    }
+
+    public Stm visitIf(Stm.If stm) {
+        BExp condition = rewrite(stm.condition);
+        line("if " + show(stm.condition));
+
+        Map<String, Integer> before = values;
+        values = new LinkedHashMap<>(before);
+        Stm taken = nested(stm.taken);
+        Map<String, Integer> afterTaken = values;
+
+        values = new LinkedHashMap<>(before);
+        line("else");
+        Stm notTaken = nested(stm.notTaken);
+        Map<String, Integer> afterNotTaken = values;
+
+        line("end");
+        values = join(List.of(afterTaken, afterNotTaken));
+
+        if (condition == stm.condition && taken == stm.taken && notTaken == stm.notTaken) {
+            return stm;
+        }
+        return new Stm.If(condition, taken, notTaken);
+    }
+
+    public Stm visitWhile(Stm.While stm) {
+        line("loop");
+        indent += "  ";
+        List<String> assigned = enterLoop(stm);
+        BExp condition = rewrite(stm.condition);
+        line("exit unless " + show(stm.condition));
+        Map<String, Integer> head = values;
+        values = new LinkedHashMap<>(head);
+        Stm body = stm.body.accept(this);
+        backEdge(assigned, head);
+        values = head;
+        leaveLoop(stm, assigned);
+        indent = indent.substring(2);
+        line("end");
+
+        return condition == stm.condition && body == stm.body ? stm : new Stm.While(condition, body);
+    }
+
+    public Stm visitFor(Stm.For stm) {
+        int start = number(stm.start);
+        AExp startExp = rewrite(stm.start);
+        String shown = show(stm.start);
+        define(stm.loopvar, start);
+        line(stm.loopvar + start + " = " + shown);
+
+        line("loop");
+        indent += "  ";
+        List<String> assigned = enterLoop(stm);
+        AExp end = rewrite(stm.end);
+        line("exit if " + stm.loopvar + value(stm.loopvar) + " = " + show(stm.end));
+        Map<String, Integer> head = values;
+        values = new LinkedHashMap<>(head);
+        Stm body = stm.body.accept(this);
+        String increment = "(" + stm.loopvar + value(stm.loopvar) + " + 1)";
+        define(stm.loopvar, fresh());
+        line(stm.loopvar + value(stm.loopvar) + " = " + increment);
+        backEdge(assigned, head);
+        values = head;
+        leaveLoop(stm, assigned);
+        indent = indent.substring(2);
+        line("end");
+
+        if (startExp == stm.start && end == stm.end && body == stm.body) {
+            return stm;
+        }
+        return new Stm.For(stm.loopvar, startExp, end, body);
+    }
+
+    public Stm visitVar(Stm.Var stm) {
+        int value = number(stm.decl);
+        AExp decl = rewrite(stm.decl);
+        int previous = value(stm.name);
+        String shown = show(stm.decl);
+        define(stm.name, value);
+        line("var " + stm.name + value + " = " + shown);
+        Stm body = nested(stm.body);
+        define(stm.name, previous);
+        line("end " + stm.name + previous);
+
+        return decl == stm.decl && body == stm.body ? stm : new Stm.Var(stm.name, decl, body);
+    }
+
+    public Stm visitSeq(Stm.Seq stm) {
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+        for (Stm s : stm.stms) {
+            Stm res = s.accept(this);
+            changed |= res != s;
+            stms.add(res);
+        }
+        return changed ? new Stm.Seq(stms) : stm;
+    }
+
+    public Stm visitNd(Stm.Nd stm) {
+        Map<String, Integer> before = values;
+        List<Map<String, Integer>> after = new ArrayList<>();
+        List<Stm> stms = new ArrayList<>();
+        boolean changed = false;
+
+        line("choose");
+        for (Stm s : stm.stms) {
+            values = new LinkedHashMap<>(before);
+            Stm res = nested(s);
+            changed |= res != s;
+            stms.add(res);
+            after.add(values);
+        }
+        line("end");
+        values = join(after);
+
+        return changed ? new Stm.Nd(stms) : stm;
+    }
+
+    public Stm visitProcDef(Stm.ProcDef stm) {
+        // bodies are regions of their own
+        line("procedure " + stm.name.lexeme);
+        return stm;
+    }
+
+    public Stm visitProcCall(Stm.ProcCall stm) {
+        // the parameters are bound one after the other while the arguments
+        // are evaluated, so only the first argument sees the values known here
+        List<AExp> in = new ArrayList<>(stm.in);
+        if (!in.isEmpty()) {
+            in.set(0, rewrite(in.get(0)));
+        }
+        List<String> shown = new ArrayList<>();
+        for (AExp a : stm.in) {
+            shown.add(show(a));
+        }
+
+        for (String name : stm.out) {
+            define(name, fresh());
+        }
+        List<String> outputs = new ArrayList<>();
+        for (String name : stm.out) {
+            outputs.add(name + values.get(name));
+        }
+        line(String.join(", ", outputs) + " = call " + stm.name.lexeme + "(" + String.join(", ", shown) + ")");
+
+        return in.equals(stm.in) ? stm : new Stm.ProcCall(stm.name, in, stm.out);
+    }
+
+    public Stm visitBExp(Stm.SB stm) {
+        BExp exp = rewrite(stm.exp);
+        line("show " + show(stm.exp));
+        return exp == stm.exp ? stm : new Stm.SB(exp);
+    }
+
+    public Stm visitAExp(Stm.SA stm) {
+        int value = number(stm.exp);
+        AExp exp = rewrite(stm.exp);
+        line("show v" + value + " = " + show(stm.exp));
+        return exp == stm.exp ? stm : new Stm.SA(exp);
+    }
+
+    private Stm nested(Stm stm) {
+        indent += "  ";
+        Stm res = stm.accept(this);
+        indent = indent.substring(2);
+        return res;
+    }
+
+    private String show(AExp aexp) {
+        return dump != null ? aexp.accept(printer) : null;
+    }
+
+    private String show(BExp bexp) {
+        return dump != null ? bexp.accept(printer) : null;
+    }
+
+    private void phi(String name, int value, List<Integer> incoming) {
+        if (dump != null) {
+            List<String> operands = new ArrayList<>();
+            for (int i : incoming) {
+                operands.add(name + i);
+            }
+            line(name + value + " = phi(" + String.join(", ", operands) + ")");
+        }
+    }
+
+    private void line(String s) {
+        if (dump != null) {
+            dump.append(indent).append(s).append('\n');
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package imp2;
+
+import java.util.Random;
+
+/**
+ * Runs programs compiled by the code generator in a single loop that
+ * dispatches on the opcode of each instruction. The registers, see
+ * Registers, are the slots of the variables and of the temporaries the code
+ * generator uses, so an instruction sets a value and whether it's defined
+ * with one write.
+ *
+ * Procedure bodies are compiled when they're first called, and a call runs
+ * the body's code in a new loop. What the procedure may change and the
+ * variables of scopes are saved on one stack, and a break or abort leaves
+ * them there, just as the interpreter doesn't restore them either.
+ */
+class VirtualMachine extends Registers {
+
+    // how often code without loops runs before it's compiled
+    private static final int RUNS = 1000;
+
+    private static final SlotInterpreter.Completion[] COMPLETIONS = SlotInterpreter.Completion.values();
+
+    // the procedure whose arguments are being set, and what was saved for it
+    private Stm.ProcDef calling;
+    private int[] callSlots;
+    private int callBase;
+
+    // whether to print the code of programs and procedures when it's compiled
+    private final boolean dump;
+
+    // whether to compile code to classes of the JVM before running it
+    private final boolean jvm;
+
+    VirtualMachine(boolean dump, boolean jvm) {
+        this.dump = dump;
+        this.jvm = jvm;
+    }
+
+    SlotInterpreter.Completion run(Stm tree) {
+        Code code = CodeGenerator.generate(tree, resolver);
+        if (dump) {
+            System.out.println("Code\n" + code);
+        }
+        grow();
+        try {
+            return execute(code);
+        } finally {
+            calling = null;
+        }
+    }
+
+    // runs the code, compiled to a class of the JVM if that's turned on and
+    // it can be compiled. Code without loops is only compiled once it has run
+    // often, since defining a class takes longer than running it a few times
+    private SlotInterpreter.Completion execute(Code program) {
+        if (jvm && program.compiled == null && !program.interpreted && (program.loops || ++program.runs == RUNS)) {
+            try {
+                program.compiled = ClassGenerator.compile(program);
+            } catch (IllegalStateException e) {
+                program.interpreted = true;
+                if (dump) {
+                    System.out.println("Interpreting code that can't be compiled: " + e.getMessage());
+                }
+            }
+        }
+        if (program.compiled != null) {
+            return COMPLETIONS[program.compiled.run(this, program.pool)];
+        }
+        return run(program);
+    }
+
+    private SlotInterpreter.Completion run(Code program) {
+        int[] code = program.code;
+        Object[] pool = program.pool;
+        long[] r = registers;
+        int pc = 0;
+
+        while (true) {
+            switch (code[pc]) {
+                case Code.CONST:
+                    r[code[pc + 1]] = code[pc + 2] & VALUE | DEFINED;
+                    pc += 3;
+                    break;
+                case Code.MOVE:
+                    r[code[pc + 1]] = r[code[pc + 2]] | DEFINED;
+                    pc += 3;
+                    break;
+                case Code.ADD:
+                    r[code[pc + 1]] = (r[code[pc + 2]] + r[code[pc + 3]]) & VALUE | DEFINED;
+                    pc += 4;
+                    break;
+                case Code.SUB:
+                    r[code[pc + 1]] = (r[code[pc + 2]] - r[code[pc + 3]]) & VALUE | DEFINED;
+                    pc += 4;
+                    break;
+                case Code.MUL:
+                    r[code[pc + 1]] = (r[code[pc + 2]] * r[code[pc + 3]]) & VALUE | DEFINED;
+                    pc += 4;
+                    break;
+                case Code.ADD_CONST:
+                    r[code[pc + 1]] = (r[code[pc + 2]] + code[pc + 3]) & VALUE | DEFINED;
+                    pc += 4;
+                    break;
+                case Code.SUB_CONST:
+                    r[code[pc + 1]] = (r[code[pc + 2]] - code[pc + 3]) & VALUE | DEFINED;
+                    pc += 4;
+                    break;
+                case Code.MUL_CONST:
+                    r[code[pc + 1]] = (r[code[pc + 2]] * code[pc + 3]) & VALUE | DEFINED;
+                    pc += 4;
+                    break;
+                case Code.EQ:
+                    r[code[pc + 1]] = (int) r[code[pc + 2]] == (int) r[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case Code.NEQ:
+                    r[code[pc + 1]] = (int) r[code[pc + 2]] != (int) r[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case Code.L:
+                    r[code[pc + 1]] = (int) r[code[pc + 2]] < (int) r[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case Code.LEQ:
+                    r[code[pc + 1]] = (int) r[code[pc + 2]] <= (int) r[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case Code.G:
+                    r[code[pc + 1]] = (int) r[code[pc + 2]] > (int) r[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case Code.GEQ:
+                    r[code[pc + 1]] = (int) r[code[pc + 2]] >= (int) r[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case Code.AND:
+                    r[code[pc + 1]] = r[code[pc + 2]] & r[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case Code.OR:
+                    r[code[pc + 1]] = r[code[pc + 2]] | r[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case Code.NOT:
+                    r[code[pc + 1]] = r[code[pc + 2]] ^ 1;
+                    pc += 3;
+                    break;
+                case Code.JUMP:
+                    pc = code[pc + 1];
+                    break;
+                case Code.JUMP_FALSE:
+                    pc = (int) r[code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case Code.JUMP_EQ:
+                    pc = (int) r[code[pc + 1]] == (int) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_NEQ:
+                    pc = (int) r[code[pc + 1]] != (int) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_L:
+                    pc = (int) r[code[pc + 1]] < (int) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_LEQ:
+                    pc = (int) r[code[pc + 1]] <= (int) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_G:
+                    pc = (int) r[code[pc + 1]] > (int) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_GEQ:
+                    pc = (int) r[code[pc + 1]] >= (int) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_EQ_CONST:
+                    pc = (int) r[code[pc + 1]] == code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_NEQ_CONST:
+                    pc = (int) r[code[pc + 1]] != code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_L_CONST:
+                    pc = (int) r[code[pc + 1]] < code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_LEQ_CONST:
+                    pc = (int) r[code[pc + 1]] <= code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_G_CONST:
+                    pc = (int) r[code[pc + 1]] > code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.JUMP_GEQ_CONST:
+                    pc = (int) r[code[pc + 1]] >= code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case Code.BREAK:
+                    leave(code[pc + 1]);
+                    pc = code[pc + 2];
+                    break;
+                case Code.RETURN_BREAK:
+                    return SlotInterpreter.Completion.BREAK;
+                case Code.ABORT:
+                    return SlotInterpreter.Completion.ABORT;
+                case Code.PRINT:
+                    print();
+                    pc += 1;
+                    break;
+                case Code.SHOW_INT:
+                    show((int) r[code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Code.SHOW_BOOL:
+                    show((int) r[code[pc + 1]] != 0);
+                    pc += 2;
+                    break;
+                case Code.CHOOSE:
+                    pc = code[pc + 2 + choose(code[pc + 1])];
+                    break;
+                case Code.ENTER: {
+                    int slot = code[pc + 1];
+                    enter(r[slot]);
+                    r[slot] = r[code[pc + 2]] | DEFINED;
+                    pc += 3;
+                    break;
+                }
+                case Code.LEAVE:
+                    r[code[pc + 1]] = leave();
+                    pc += 2;
+                    break;
+                case Code.DEFINE:
+                    define((Stm.ProcDef) pool[code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Code.INLINED:
+                    pc = inlined((Stm.ProcCall) pool[code[pc + 1]]) ? pc + 3 : code[pc + 2];
+                    break;
+                case Code.CALL:
+                    call((Stm.ProcCall) pool[code[pc + 1]]);
+                    r = registers;
+                    pc += 2;
+                    break;
+                case Code.ARGUMENT:
+                    argument(code[pc + 1], r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case Code.RETURN: {
+                    SlotInterpreter.Completion res = ret((Stm.ProcCall) pool[code[pc + 1]]);
+                    r = registers;
+                    if (res == SlotInterpreter.Completion.ABORT) {
+                        return res;
+                    } else if (res == SlotInterpreter.Completion.BREAK) {
+                        if (code[pc + 3] < 0) {
+                            return res;
+                        }
+                        leave(code[pc + 2]);
+                        pc = code[pc + 3];
+                    } else {
+                        pc += 4;
+                    }
+                    break;
+                }
+                case Code.CLOSED:
+                    pc = closed((ClosedForms.Form) pool[code[pc + 1]]) ? code[pc + 2] : pc + 3;
+                    break;
+                case Code.MALFORMED:
+                    malformed((Token) pool[code[pc + 1]]);
+                    break;
+                default: // END
+                    return SlotInterpreter.Completion.NORMAL;
+            }
+        }
+    }
+
+    // what the instructions do that aren't just arithmetic and jumps, which
+    // the classes code is compiled to call as well
+
+    void show(int value) {
+        System.out.println("==> \033[3m" + value + "\033[0m");
+    }
+
+    void show(boolean value) {
+        System.out.println("==> \033[3m" + (value ? "tt" : "ff") + "\033[0m");
+    }
+
+    // one of n choices, at random
+    int choose(int n) {
+        return (int) (new Random().nextDouble() * n);
+    }
+
+    // saves the value of a variable whose scope starts
+    void enter(long value) {
+        push(1);
+        saved[top++] = value;
+    }
+
+    // the value of a variable before its scope, which ends
+    long leave() {
+        return saved[--top];
+    }
+
+    // leaves scopes without restoring their variables, for a break
+    void leave(int scopes) {
+        top -= scopes;
+    }
+
+    // whether the procedure the call was inlined from is still defined
+    boolean inlined(Stm.ProcCall stm) {
+        return procedures.get(stm.name.lexeme) == stm.target;
+    }
+
+    void argument(int index, long value) {
+        registers[calling.inSlots[index]] = value | DEFINED;
+    }
+
+    void malformed(Token token) {
+        throw new InterpreterException(token, "Number Format Error.");
+    }
+
+    // finds the procedure called, compiling it if needed, and saves the
+    // variables it may change
+    void call(Stm.ProcCall stm) {
+        Stm.ProcDef proc = procedure(stm);
+        if (proc.code == null) {
+            proc.code = CodeGenerator.generate(proc.body, resolver);
+            if (dump) {
+                System.out.println("Code of " + proc.name.lexeme + "\n" + proc.code);
+            }
+        }
+
+        calling = proc;
+        callSlots = slots(proc);
+        callBase = save(callSlots, proc.out.size());
+    }
+
+    // runs the procedure whose arguments were set, and restores what was saved
+    // for it unless it's left with a break or abort
+    SlotInterpreter.Completion ret(Stm.ProcCall stm) {
+        Stm.ProcDef proc = calling;
+        int[] slots = callSlots;
+        int base = callBase;
+        calling = null;
+
+        SlotInterpreter.Completion res = execute(proc.code);
+        if (res == SlotInterpreter.Completion.NORMAL) {
+            restore(base, slots, proc, stm);
+        } else {
+            top = base;
+        }
+        return res;
+    }
+
+    // sets the variables of a loop to their values after it, false if it has
+    // to run as usual since it wouldn't end or a variable would overflow
+    boolean closed(ClosedForms.Form form) {
+        return ClosedForms.apply(form, registers, this);
+    }
+}